@@ -18,7 +18,7 @@
 package org.apache.hadoop.dfs;
 
 import java.io.*;
-import java.util.List;
+import java.util.*;
 
 import org.apache.hadoop.dfs.DatanodeDescriptor.BlockSrcTargetPair;
 import org.apache.hadoop.dfs.DatanodeDescriptor.BlockTargetPair;
@@ -225,95 +225,86 @@ class BlockCommand extends DatanodeCommand {
 
 	public void write(DataOutput out) throws IOException {
 		super.write(out);
-		out.writeInt(blocks.length);
-		for (int i = 0; i < blocks.length; i++) {
-			blocks[i].write(out);
+		new PackedBlockList(blocks).write(out);
+		out.writeBoolean(group != null);
+		if (group != null) {
+			group.writePacked(out);
 		}
-		
-		group.write(out);
 		out.writeInt(index);
 
-		out.writeInt(targets.length);
-		for (int i = 0; i < targets.length; i++) {
-			out.writeInt(targets[i].length);
-			for (int j = 0; j < targets[i].length; j++) {
-				targets[i][j].write(out);
-			}
-		}
-		int brokenCount = 0;
-		// TODO sources seriable
-		out.writeInt(sources.length);
-		for (int i = 0; i < sources.length; i++) {
-			out.writeInt(sources[i].length);
-			for (int j = 0; j < sources[i].length; j++) {
-				//sources[i][j].write(out);
-				if(sources[i][j] == null) {
-					brokenCount++;
-				}
-			}
-			out.writeInt(brokenCount);
-			for (int j = 0; j < sources[i].length; j++) {
-				//sources[i][j].write(out);
-				if(sources[i][j] == null) {
-					out.writeInt(j);
-				}
-			}
-			
-			for (int j = 0; j < sources[i].length; j++) {
-				//sources[i][j].write(out);
-				if(sources[i][j] != null) {
-					sources[i][j].write(out);
-				}
-			}
+		// every datanode is written once, targets and sources refer to it by
+		// its position in the table, -1 for a missing source
+		Map<DatanodeInfo, Integer> nodeIndex = new HashMap<DatanodeInfo, Integer>();
+		List<DatanodeInfo> nodes = new ArrayList<DatanodeInfo>();
+		addNodes(targets, nodeIndex, nodes);
+		addNodes(sources, nodeIndex, nodes);
+		out.writeInt(nodes.size());
+		for (DatanodeInfo node : nodes) {
+			node.write(out);
 		}
+		writeNodeRefs(out, targets, nodeIndex);
+		writeNodeRefs(out, sources, nodeIndex);
 	}
 
 	public void readFields(DataInput in) throws IOException {
 		super.readFields(in);
-		this.blocks = new Block[in.readInt()];
-		for (int i = 0; i < blocks.length; i++) {
-			blocks[i] = new Block();
-			blocks[i].readFields(in);
-		}	
-		group = new RSGroup();
-		group.readFields(in);
+		PackedBlockList list = new PackedBlockList();
+		list.readFields(in);
+		this.blocks = list.toBlocks();
+		if (in.readBoolean()) {
+			group = new RSGroup();
+			group.readPacked(in);
+		} else {
+			group = null;
+		}
 		index = in.readInt();
 
-		this.targets = new DatanodeInfo[in.readInt()][];
-		for (int i = 0; i < targets.length; i++) {
-			this.targets[i] = new DatanodeInfo[in.readInt()];
-			for (int j = 0; j < targets[i].length; j++) {
-				targets[i][j] = new DatanodeInfo();
-				targets[i][j].readFields(in);
-			}
+		DatanodeInfo[] nodes = new DatanodeInfo[in.readInt()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = new DatanodeInfo();
+			nodes[i].readFields(in);
 		}
-		int brokenCount = 0;
-		int n = group.getN();
-		int m = group.getM();
-		int[] brokenIndex = new int[n-m];
-		// TODO sources seriable
-		this.sources = new DatanodeInfo[in.readInt()][];
-		for (int i = 0; i < sources.length; i++) {
-			this.sources[i] = new DatanodeInfo[in.readInt()];
-			brokenCount = in.readInt();
-			if(brokenCount > 0) {
-				for(int k = 0; k < brokenCount; k++){
-					brokenIndex[k] = in.readInt();
-				}
-			}		
-			for (int j = 0; j < sources[i].length; j++) {
-				int index = 0;
-				if (index < brokenCount) {
-					if (j == brokenIndex[index]) {
-						index++;
-						sources[i][j] = null;
-						continue;
-					}
+		this.targets = readNodeRefs(in, nodes);
+		this.sources = readNodeRefs(in, nodes);
+	}
+
+	private static void addNodes(DatanodeInfo[][] refs,
+			Map<DatanodeInfo, Integer> nodeIndex, List<DatanodeInfo> nodes) {
+		for (int i = 0; i < refs.length; i++) {
+			for (int j = 0; j < refs[i].length; j++) {
+				if (refs[i][j] != null && !nodeIndex.containsKey(refs[i][j])) {
+					nodeIndex.put(refs[i][j], nodes.size());
+					nodes.add(refs[i][j]);
 				}
-				sources[i][j] = new DatanodeInfo();
-				sources[i][j].readFields(in);
 			}
 		}
+	}
 
+	private static void writeNodeRefs(DataOutput out, DatanodeInfo[][] refs,
+			Map<DatanodeInfo, Integer> nodeIndex) throws IOException {
+		WritableUtils.writeVInt(out, refs.length);
+		for (int i = 0; i < refs.length; i++) {
+			WritableUtils.writeVInt(out, refs[i].length);
+			for (int j = 0; j < refs[i].length; j++) {
+				WritableUtils.writeVInt(out, refs[i][j] == null ? -1
+						: nodeIndex.get(refs[i][j]));
+			}
+		}
+	}
+
+	private static DatanodeInfo[][] readNodeRefs(DataInput in,
+			DatanodeInfo[] nodes) throws IOException {
+		DatanodeInfo[][] refs = new DatanodeInfo[WritableUtils.readVInt(in)][];
+		for (int i = 0; i < refs.length; i++) {
+			refs[i] = new DatanodeInfo[WritableUtils.readVInt(in)];
+			for (int j = 0; j < refs[i].length; j++) {
+				int idx = WritableUtils.readVInt(in);
+				if (idx >= nodes.length) {
+					throw new IOException("Unexpected datanode index: " + idx);
+				}
+				refs[i][j] = idx < 0 ? null : nodes[idx];
+			}
+		}
+		return refs;
 	}
 }
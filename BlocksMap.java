@@ -41,6 +41,13 @@ class BlocksMap {
      * list of blocks belonging to this data-node.
      */
     private Object[] triplets;
+    private static final int CODING = 1 << 30;
+    private static final int ENCODED = 1 << 29;
+    private static final int NO_INDEX = ENCODED - 1;
+    // position of the block in the data or redundant block list of its
+    // file in the low bits, the CODING and ENCODED flags above them; one
+    // int so that the block map does not grow per block
+    private int state = NO_INDEX;
     
     BlockInfo() {
     	super();
@@ -58,6 +65,34 @@ class BlocksMap {
       return inode;
     }
 
+    /**
+     * A data block is encoded once all the redundant blocks of its group
+     * are stored; it may then be kept at a lower replication.
+     */
+    boolean isEncoded() {
+      return (state & ENCODED) != 0;
+    }
+
+    void setEncoded(boolean encoded) {
+      state = encoded ? state | ENCODED : state & ~ENCODED;
+    }
+
+    /** @return the position of the block in its file, -1 if unknown */
+    int getFileIndex() {
+      int index = state & NO_INDEX;
+      return index == NO_INDEX ? -1 : index;
+    }
+
+    boolean isCodingBlock() {
+      return (state & CODING) != 0;
+    }
+
+    void setFileIndex(int fileIndex, boolean codingBlock) {
+      int index = fileIndex < 0 || fileIndex >= NO_INDEX ? NO_INDEX
+          : fileIndex;
+      state = (state & ENCODED) | (codingBlock ? CODING : 0) | index;
+    }
+
     DatanodeDescriptor getDatanode(int index) {
       assert this.triplets != null : "BlockInfo is not initialized";
       assert index >= 0 && index*3 < triplets.length : "Index is out of bound";
@@ -294,7 +329,164 @@ class BlocksMap {
     }
   }
 
-  private Map<Block, BlockInfo> map = new HashMap<Block, BlockInfo>();
+  /**
+   * Open addressing hash table of BlockInfo keyed by the primitive block id.
+   * Compared to a HashMap it does not allocate an entry object per block,
+   * and the ids are probed in a long[] without dereferencing the BlockInfo.
+   * It keeps the semantics of the HashMap<Block, BlockInfo> it replaces:
+   * a lookup matches the block id and, with wildcard, the generation stamp,
+   * so blocks sharing an id but not the stamp are kept apart.
+   */
+  private static class BlockInfoTable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] ids;
+    private BlockInfo[] infos;  // a null entry marks a free slot
+    private int size = 0;
+    private int threshold;
+    // structural changes, for fail-fast iterators
+    private int modCount = 0;
+
+    BlockInfoTable() {
+      allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+      ids = new long[capacity];
+      infos = new BlockInfo[capacity];
+      threshold = (int)(capacity * LOAD_FACTOR);
+    }
+
+    private int slot(long id) {
+      int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & (ids.length - 1);
+    }
+
+    /** @return the slot of the block, or -1 if it is not there. */
+    private int find(Block b) {
+      long id = b.getBlockId();
+      int mask = ids.length - 1;
+      for(int i = slot(id); infos[i] != null; i = (i + 1) & mask) {
+        if (ids[i] == id && infos[i].equals(b))
+          return i;
+      }
+      return -1;
+    }
+
+    BlockInfo get(Block b) {
+      int i = find(b);
+      return i < 0 ? null : infos[i];
+    }
+
+    boolean containsKey(Block b) {
+      return get(b) != null;
+    }
+
+    /** Add the block or replace the block equal to it. */
+    void put(BlockInfo info) {
+      int i = find(info);
+      if (i >= 0) {
+        infos[i] = info;
+        return;
+      }
+      if (size >= threshold) {
+        resize(2 * ids.length);
+      }
+      long id = info.getBlockId();
+      int mask = ids.length - 1;
+      for(i = slot(id); infos[i] != null; i = (i + 1) & mask)
+        ;
+      ids[i] = id;
+      infos[i] = info;
+      size++;
+      modCount++;
+    }
+
+    void remove(Block b) {
+      int i = find(b);
+      if (i < 0)
+        return;
+      // shift back the following entries of the probe sequence
+      // so that no free slot is left in the middle of it
+      int mask = ids.length - 1;
+      int free = i;
+      for(int j = (i + 1) & mask; infos[j] != null; j = (j + 1) & mask) {
+        int home = slot(ids[j]);
+        if (((j - home) & mask) >= ((j - free) & mask)) {
+          ids[free] = ids[j];
+          infos[free] = infos[j];
+          free = j;
+        }
+      }
+      infos[free] = null;
+      ids[free] = 0;
+      size--;
+      modCount++;
+    }
+
+    private void resize(int capacity) {
+      long[] oldIds = ids;
+      BlockInfo[] oldInfos = infos;
+      allocate(capacity);
+      int mask = capacity - 1;
+      for(int j = 0; j < oldInfos.length; j++) {
+        if (oldInfos[j] == null)
+          continue;
+        int i = slot(oldIds[j]);
+        while (infos[i] != null)
+          i = (i + 1) & mask;
+        ids[i] = oldIds[j];
+        infos[i] = oldInfos[j];
+      }
+    }
+
+    int size() {
+      return size;
+    }
+
+    Collection<BlockInfo> values() {
+      return new AbstractCollection<BlockInfo>() {
+        public int size() {
+          return size;
+        }
+
+        public Iterator<BlockInfo> iterator() {
+          return new Iterator<BlockInfo>() {
+            private final BlockInfo[] table = infos;
+            private final int expectedModCount = modCount;
+            private int next = advance(0);
+
+            private int advance(int i) {
+              while (i < table.length && table[i] == null)
+                i++;
+              return i;
+            }
+
+            public boolean hasNext() {
+              return next < table.length;
+            }
+
+            public BlockInfo next() {
+              if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+              if (!hasNext())
+                throw new NoSuchElementException();
+              BlockInfo info = table[next];
+              next = advance(next + 1);
+              return info;
+            }
+
+            public void remove() {
+              throw new UnsupportedOperationException("Sorry. can't remove.");
+            }
+          };
+        }
+      };
+    }
+  }
+
+  private BlockInfoTable map = new BlockInfoTable();
 
   /**
    * Add BlockInfo if mapping does not exist.
@@ -303,7 +495,7 @@ class BlocksMap {
     BlockInfo info = map.get(b);
     if (info == null) {
       info = new BlockInfo(b, replication);
-      map.put(info, info);
+      map.put(info);
     }
     return info;
   }
@@ -365,24 +557,20 @@ class BlocksMap {
 
   /** counts number of containing nodes. Better than using iterator. */
   int numNodes(Block b) {
-	String s = "\n*******************************************\n" +
-			   "At BlockMap.java, in the func:numNodes.";
     BlockInfo info = map.get(b);
-    //return info == null ? 0 : info.numNodes();
-    if(info == null)
-    {
-    	Debug.writeDebug(s);
-    	Debug.writeDebug("The block " + b +
-    					 "referring blockInfo is null.");
-    	return 0;
-    } else
-    {
-    	if(info.numNodes() == 0){
-    		Debug.writeDebug("The block" + b +
-    						 "does not existed in any nodes.");
-    	}
-    	return info.numNodes();
+    int numNodes = info == null ? 0 : info.numNodes();
+    if (numNodes == 0 && FSNamesystem.LOG.isDebugEnabled()) {
+      if (info == null) {
+        Debug.writeDebug("\n*******************************************\n" +
+                         "At BlockMap.java, in the func:numNodes.");
+        Debug.writeDebug("The block " + b +
+                         "referring blockInfo is null.");
+      } else {
+        Debug.writeDebug("The block" + b +
+                         "does not existed in any nodes.");
+      }
     }
+    return numNodes;
   }
 
   /** returns true if the node does not already exists and is added.
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.dfs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* A pool of packet buffers shared by the block senders, block receivers and
+ * coding tasks of a DataNode, so that a steady stream of transfers does not
+ * allocate a buffer per connection or per command.
+ * Buffers come in size classes of powers of two from MIN_SIZE to MAX_SIZE;
+ * a request is served from the smallest class that fits it. Larger buffers
+ * are neither pooled nor counted. The pool keeps at most maxPooledBytes of
+ * free buffers; buffers returned beyond that are left to the collector.
+ * The buffers are array-backed: checksums and stream I/O on the transfer
+ * path work on the backing arrays.
+ */
+class BufferPool {
+	static final int MIN_SIZE = 512;
+	static final int MAX_SIZE = 16 * 1024 * 1024;
+
+	private final ConcurrentLinkedQueue<byte[]>[] free;
+	private final long maxPooledBytes;
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong reuses = new AtomicLong();
+
+	/* constructor */
+	@SuppressWarnings("unchecked")
+	BufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		int numClasses = getSizeClass(MAX_SIZE) + 1;
+		free = new ConcurrentLinkedQueue[numClasses];
+		for (int i = 0; i < numClasses; i++) {
+			free[i] = new ConcurrentLinkedQueue<byte[]>();
+		}
+	}
+
+	/* Return the class of the smallest buffer holding size bytes */
+	private static int getSizeClass(int size) {
+		int cls = 0;
+		for (int s = MIN_SIZE; s < size; s <<= 1) {
+			cls++;
+		}
+		return cls;
+	}
+
+	/**
+	 * Get an array of exactly size bytes. It comes from the pool if size is
+	 * the size of a class, which is the case for power-of-two buffer sizes.
+	 */
+	byte[] getArray(int size) {
+		if (size > MAX_SIZE || size < MIN_SIZE || Integer.bitCount(size) != 1) {
+			return new byte[size];
+		}
+		byte[] array = free[getSizeClass(size)].poll();
+		if (array != null) {
+			pooledBytes.addAndGet(-array.length);
+			reuses.incrementAndGet();
+			return array;
+		}
+		allocations.incrementAndGet();
+		return new byte[size];
+	}
+
+	/**
+	 * Give an array back to the pool. The caller must not use it any more.
+	 */
+	void returnArray(byte[] array) {
+		int size = array.length;
+		if (size > MAX_SIZE || size < MIN_SIZE || Integer.bitCount(size) != 1) {
+			return;
+		}
+		if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+			pooledBytes.addAndGet(-size);
+			return;
+		}
+		free[getSizeClass(size)].offer(array);
+	}
+
+	/**
+	 * Get a cleared buffer of at least size bytes.
+	 */
+	ByteBuffer getBuffer(int size) {
+		int capacity = size;
+		if (size <= MAX_SIZE) {
+			capacity = Math.max(MIN_SIZE, Integer.highestOneBit(size - 1) << 1);
+		}
+		return ByteBuffer.wrap(getArray(capacity));
+	}
+
+	/**
+	 * Give a buffer from getBuffer back to the pool.
+	 */
+	void returnBuffer(ByteBuffer buf) {
+		returnArray(buf.array());
+	}
+
+	/* Return the number of buffers allocated because the pool had none */
+	long getAllocations() {
+		return allocations.get();
+	}
+
+	/* Return the number of buffers served from the pool */
+	long getReuses() {
+		return reuses.get();
+	}
+
+	/* Return the bytes held by free buffers */
+	long getPooledBytes() {
+		return pooledBytes.get();
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.dfs;
+
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.util.DataChecksum;
+
+/* Class for computing and verifying the checksums of many chunks at once.
+ * A packet holds up to a few hundred chunks; going through DataChecksum
+ * takes a reset, an update and a compare per chunk. Here each chunk is
+ * summed straight from the packet buffer and compared as an int with its
+ * stored checksum.
+ * Only CRC32 is handled: the checksum types, their header in the block
+ * meta file and in the transfer protocol all come from DataChecksum, and
+ * callers fall back to it for any other type.
+ */
+class BulkChecksum {
+	private final int type;
+	private final int bytesPerChecksum;
+	private final CRC32 crc32 = new CRC32();
+
+	/* constructor */
+	BulkChecksum(int type, int bytesPerChecksum) {
+		if (type != DataChecksum.CHECKSUM_CRC32) {
+			throw new IllegalArgumentException("Unknown checksum type " + type);
+		}
+		this.type = type;
+		this.bytesPerChecksum = bytesPerChecksum;
+	}
+
+	/**
+	 * Get the bulk checksum for a DataChecksum.
+	 *
+	 * @return the bulk checksum or null if the checksum type has none
+	 */
+	static BulkChecksum newBulkChecksum(DataChecksum checksum) {
+		int type = checksum.getChecksumType();
+		if (type != DataChecksum.CHECKSUM_CRC32) {
+			return null;
+		}
+		return new BulkChecksum(type, checksum.getBytesPerChecksum());
+	}
+
+	int getChecksumType() {
+		return type;
+	}
+
+	int getBytesPerChecksum() {
+		return bytesPerChecksum;
+	}
+
+	/* Return the checksum of a chunk */
+	private int sum(byte[] data, int off, int len) {
+		crc32.reset();
+		crc32.update(data, off, len);
+		return (int) crc32.getValue();
+	}
+
+	/**
+	 * Verify the checksums of the chunks in data[dataOff, dataOff+dataLen)
+	 * against the 4-byte checksums stored from sums[sumOff].
+	 *
+	 * @return the offset in the data of the first chunk that does not
+	 *         match its checksum, or -1 if all chunks match
+	 */
+	int verifyChunks(byte[] data, int dataOff, int dataLen, byte[] sums,
+			int sumOff) {
+		for (int pos = 0; pos < dataLen; pos += bytesPerChecksum) {
+			int chunkLen = Math.min(dataLen - pos, bytesPerChecksum);
+			int expected = ((sums[sumOff] & 0xff) << 24)
+					| ((sums[sumOff + 1] & 0xff) << 16)
+					| ((sums[sumOff + 2] & 0xff) << 8) | (sums[sumOff + 3] & 0xff);
+			if (sum(data, dataOff + pos, chunkLen) != expected) {
+				return pos;
+			}
+			sumOff += 4;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compute the checksums of the chunks in data[dataOff, dataOff+dataLen)
+	 * into sums from sumOff, 4 bytes each.
+	 */
+	void calculateChunks(byte[] data, int dataOff, int dataLen, byte[] sums,
+			int sumOff) {
+		for (int pos = 0; pos < dataLen; pos += bytesPerChecksum) {
+			int chunkLen = Math.min(dataLen - pos, bytesPerChecksum);
+			int crc = sum(data, dataOff + pos, chunkLen);
+			sums[sumOff++] = (byte) (crc >>> 24);
+			sums[sumOff++] = (byte) (crc >>> 16);
+			sums[sumOff++] = (byte) (crc >>> 8);
+			sums[sumOff++] = (byte) crc;
+		}
+	}
+}
@@ -38,8 +38,7 @@ class Coder {
 			//FSConstants.DEFAULT_BLOCK_SIZE);
 	public Coder() {
 		m_rs = new RSCoder();
-		RSCoder.setup_tables();
-		RSCoder.CalculateValue();	
+		RSCoder.setupTables();
 	}
 	
 	public byte[] getBuffer(int idx) {
@@ -37,8 +37,25 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.zip.CRC32;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
@@ -73,6 +90,33 @@ class DFSClient implements FSConstants {
 	private int datanodeWriteTimeout;
 	final int writePacketSize;
 	private FileSystem.Statistics stats;
+	// Average time of a positional read from each datanode, in msecs
+	private final ConcurrentHashMap<String, Long> nodeLatencies = new ConcurrentHashMap<String, Long>();
+	private static final int LATENCY_UNIT = 64 * 1024;
+	// A positional read from a datanode slower than this is raced against
+	// a rebuild of the bytes from the group of the block, 0 turns it off
+	private long reconstructThreshold;
+	// A positional read that has not finished after this is issued again
+	// to another replica, 0 turns it off
+	private long hedgedReadThreshold;
+	// Ranges of a vectored read at most this far apart are read at once,
+	// up to vectoredMaxMerge bytes per read, by vectoredParallelism workers
+	private int vectoredMergeGap;
+	private int vectoredMaxMerge;
+	private int vectoredParallelism;
+	// Runs the concurrent reads of positional reads, with at most
+	// readThreads threads
+	private ExecutorService readPool = null;
+	private int readThreads;
+	// Runs the reads raced against each other by hedged and hybrid reads,
+	// with at most raceReadThreads threads
+	private ExecutorService raceReadPool = null;
+	private int raceReadThreads;
+	// Positional reads of a block, hedged reads issued, and hedged reads
+	// that finished first
+	private final AtomicLong positionalReadOps = new AtomicLong();
+	private final AtomicLong hedgedReadOps = new AtomicLong();
+	private final AtomicLong hedgedReadWins = new AtomicLong();
 
 	/**
 	 * A map from name -> DFSOutputStream of files that are currently being
@@ -179,6 +223,20 @@ class DFSClient implements FSConstants {
 		}
 		defaultBlockSize = conf.getLong("dfs.block.size", DEFAULT_BLOCK_SIZE);
 		defaultReplication = (short) conf.getInt("dfs.replication", 3);
+		this.reconstructThreshold = conf.getLong(
+				"dfs.read.reconstruct.threshold.ms", 0);
+		this.hedgedReadThreshold = conf.getLong(
+				"dfs.read.hedged.threshold.ms", 0);
+		this.vectoredMergeGap = conf.getInt("dfs.read.vectored.merge.gap",
+				4096);
+		this.vectoredMaxMerge = conf.getInt("dfs.read.vectored.max.merge",
+				1024 * 1024);
+		this.vectoredParallelism = Math.max(1, conf.getInt(
+				"dfs.read.vectored.parallelism", 8));
+		this.raceReadThreads = Math.max(1, conf.getInt(
+				"dfs.client.hedged.read.threads", 16));
+		this.readThreads = Math.max(1, conf.getInt("dfs.client.read.threads",
+				16));
 		this.leaseChecker = new Daemon(new LeaseChecker());
 		this.leaseChecker.start();
 	}
@@ -224,6 +282,12 @@ class DFSClient implements FSConstants {
 				leaseChecker.join();
 			} catch (InterruptedException ie) {
 			}
+			if (readPool != null) {
+				readPool.shutdownNow();
+			}
+			if (raceReadPool != null) {
+				raceReadPool.shutdownNow();
+			}
 
 			// close connections to the namenode
 			RPC.stopProxy(rpcNamenode);
@@ -762,6 +826,83 @@ class DFSClient implements FSConstants {
 		}
 	}
 
+	/**
+	 * Note the time a read of len bytes from a datanode took. The average
+	 * is kept per LATENCY_UNIT bytes, so that long and short reads can be
+	 * compared; shorter reads count as a full unit since their time is
+	 * mostly the round trip.
+	 */
+	void updateLatency(DatanodeInfo node, long msecs, int len) {
+		long unitMsecs = msecs * LATENCY_UNIT / Math.max(len, LATENCY_UNIT);
+		Long old = nodeLatencies.get(node.getName());
+		nodeLatencies.put(node.getName(), old == null ? unitMsecs
+				: (3 * old + unitMsecs) / 4);
+	}
+
+	/**
+	 * Get the average time of a read of LATENCY_UNIT bytes from a
+	 * datanode, 0 if unknown.
+	 */
+	long getLatency(DatanodeInfo node) {
+		Long latency = nodeLatencies.get(node.getName());
+		return latency == null ? 0 : latency;
+	}
+
+	/** Number of positional reads of a block. */
+	long getPositionalReadOps() {
+		return positionalReadOps.get();
+	}
+
+	/** Number of hedged reads issued for slow positional reads. */
+	long getHedgedReadOps() {
+		return hedgedReadOps.get();
+	}
+
+	/** Number of hedged reads that finished before the first read. */
+	long getHedgedReadWins() {
+		return hedgedReadWins.get();
+	}
+
+	/*
+	 * Reads submitted while all the threads are busy run in the submitting
+	 * thread: they are never queued, so a read waiting for reads it started
+	 * cannot wait for a thread forever.
+	 */
+	private synchronized ExecutorService getReadPool() {
+		if (readPool == null) {
+			readPool = newReadPool(readThreads, "read",
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return readPool;
+	}
+
+	/*
+	 * Hedged and hybrid reads only help if their reads run next to each
+	 * other, so they get a pool of their own. A read submitted while all
+	 * its threads are busy is rejected, and the caller reads the replica
+	 * itself instead.
+	 */
+	private synchronized ExecutorService getRaceReadPool() {
+		if (raceReadPool == null) {
+			raceReadPool = newReadPool(raceReadThreads, "hedged read",
+					new ThreadPoolExecutor.AbortPolicy());
+		}
+		return raceReadPool;
+	}
+
+	private ExecutorService newReadPool(int threads, final String name,
+			RejectedExecutionHandler saturated) {
+		return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "DFSClient " + name + " for "
+								+ clientName);
+						t.setDaemon(true);
+						return t;
+					}
+				}, saturated);
+	}
+
 	/**
 	 * Pick the best node from which to stream the data. Entries in <i>nodes</i>
 	 * are already in the priority order
@@ -821,6 +962,21 @@ class DFSClient implements FSConstants {
 		}
 	}
 
+	/** A range of a file to read into a buffer, for a vectored read. */
+	static class ReadRange {
+		final long offset;
+		final byte[] buffer;
+		final int bufferOffset;
+		final int length;
+
+		ReadRange(long offset, byte[] buffer, int bufferOffset, int length) {
+			this.offset = offset;
+			this.buffer = buffer;
+			this.bufferOffset = bufferOffset;
+			this.length = length;
+		}
+	}
+
 	/**
 	 * This is a wrapper around connection to datadone and understands checksum,
 	 * offset etc
@@ -846,6 +1002,10 @@ class DFSClient implements FSConstants {
 		ByteBuffer checksumBytes = null;
 		int dataLeft = 0;
 		boolean isLastPacket = false;
+		// verifies whole packets as they arrive, if set
+		private BulkChecksum bulkChecksum = null;
+		private byte[] packetBuf = null; // data of the current packet
+		private int packetPos = 0;
 
 		/* FSInputChecker interface */
 
@@ -878,7 +1038,8 @@ class DFSClient implements FSConstants {
 			int nRead = super.read(buf, off, len);
 
 			// if gotEOS was set in the previous read and checksum is enabled :
-			if (gotEOS && !eosBefore && nRead >= 0 && needChecksum()) {
+			if (gotEOS && !eosBefore && nRead >= 0
+					&& (needChecksum() || bulkChecksum != null)) {
 				if (sentChecksumOk) {
 					// this should not happen; log the error for the debugging
 					// purpose
@@ -1022,6 +1183,9 @@ class DFSClient implements FSConstants {
 				if (dataLen > 0) {
 					IOUtils.readFully(in, checksumBytes.array(), 0,
 							checksumBytes.limit());
+					if (bulkChecksum != null) {
+						readPacketData(dataLen, chunkOffset);
+					}
 				}
 			}
 
@@ -1029,7 +1193,12 @@ class DFSClient implements FSConstants {
 
 			if (chunkLen > 0) {
 				// len should be >= chunkLen
-				IOUtils.readFully(in, buf, offset, chunkLen);
+				if (bulkChecksum != null) {
+					System.arraycopy(packetBuf, packetPos, buf, offset, chunkLen);
+					packetPos += chunkLen;
+				} else {
+					IOUtils.readFully(in, buf, offset, chunkLen);
+				}
 				checksumBytes.get(checksumBuf, 0, checksumSize);
 			}
 
@@ -1047,6 +1216,43 @@ class DFSClient implements FSConstants {
 			return chunkLen;
 		}
 
+		/*
+		 * Read the data of a packet and verify all its chunks in one pass.
+		 */
+		private void readPacketData(int dataLen, long chunkOffset)
+				throws IOException {
+			if (packetBuf == null || packetBuf.length < dataLen) {
+				packetBuf = new byte[dataLen];
+			}
+			IOUtils.readFully(in, packetBuf, 0, dataLen);
+			packetPos = 0;
+			int bad = bulkChecksum.verifyChunks(packetBuf, 0, dataLen,
+					checksumBytes.array(), 0);
+			if (bad >= 0) {
+				throw new ChecksumException("Checksum error: " + file + " at "
+						+ (chunkOffset + bad), chunkOffset + bad);
+			}
+		}
+
+		/**
+		 * Verify each packet with one bulk pass over its chunks when it
+		 * arrives, instead of chunk by chunk as it is read. This costs a copy
+		 * of the packet, and pays off for readers going through whole blocks
+		 * in large reads. Must be called before the first read.
+		 * 
+		 * @return true if the checksum type allows it
+		 */
+		synchronized boolean useBulkVerification() {
+			if (!needChecksum()) {
+				return false;
+			}
+			bulkChecksum = BulkChecksum.newBulkChecksum(checksum);
+			if (bulkChecksum != null) {
+				set(null, bytesPerChecksum, checksumSize);
+			}
+			return bulkChecksum != null;
+		}
+
 		public BlockReader(String file, long blockId, DataInputStream in,
 				DataChecksum checksum, boolean verifyChecksum,
 				long startOffset, long firstChunkOffset, Socket dnSock) {
@@ -1188,6 +1394,10 @@ class DFSClient implements FSConstants {
 		 */
 		private ConcurrentHashMap<DatanodeInfo, DatanodeInfo> deadNodes = new ConcurrentHashMap<DatanodeInfo, DatanodeInfo>();
 		private int buffersize = 1;
+		// The groups of the blocks read by reconstruction, an empty array
+		// if the group of the block is not encoded
+		private ConcurrentHashMap<Long, LocatedBlock[]> groups = new ConcurrentHashMap<Long, LocatedBlock[]>();
+		private int rsM;
 
 		private byte[] oneByteBuf = new byte[1]; // used for 'int read()'
 
@@ -1201,6 +1411,7 @@ class DFSClient implements FSConstants {
 			this.buffersize = buffersize;
 			this.src = src;
 			prefetchSize = conf.getLong("dfs.read.prefetch.size", prefetchSize);
+			rsM = conf.getInt("dfs.RSm", FSConstants.RSm);
 			openInfo();
 		}
 
@@ -1543,36 +1754,202 @@ class DFSClient implements FSConstants {
 
 		private void fetchBlockByteRange(LocatedBlock block, long start,
 				long end, byte[] buf, int offset) throws IOException {
+			positionalReadOps.incrementAndGet();
+			if (reconstructThreshold > 0 && isSlow(block)) {
+				LocatedBlock[] group = getGroupLocations(block);
+				int index = getGroupIndex(group, block);
+				if (index >= 0 && index < rsM) {
+					hybridRead(block, group, index, start, end, buf, offset);
+					return;
+				}
+			}
+			if (hedgedReadThreshold > 0) {
+				hedgedRead(block, start, end, buf, offset);
+				return;
+			}
+			readReplicaRange(block, start, end, buf, offset);
+		}
+
+		/*
+		 * Read from the best datanode and, if no read has finished within
+		 * dfs.read.hedged.threshold.ms, issue the same read to the next
+		 * replica, or rebuild the bytes from the group once no replica is
+		 * left. A failed read is replaced at once. The first read to finish
+		 * wins and the others are cancelled.
+		 */
+		private void hedgedRead(LocatedBlock block, long start, long end,
+				byte[] buf, int offset) throws IOException {
+			int len = (int) (end - start + 1);
+			CompletionService<byte[]> reads = new ExecutorCompletionService<byte[]>(
+					getRaceReadPool());
+			Map<Future<byte[]>, DatanodeInfo> running = new HashMap<Future<byte[]>, DatanodeInfo>();
+			Set<DatanodeInfo> tried = new HashSet<DatanodeInfo>();
+			// reads started because the running ones were slow
+			Set<Future<byte[]>> hedges = new HashSet<Future<byte[]>>();
+			boolean reconstructing = false;
+			IOException ioe = null;
+			try {
+				Future<byte[]> first;
+				try {
+					first = startRead(reads, running, tried, block, start,
+							len, false);
+				} catch (RejectedExecutionException e) {
+					first = null; // no thread to race with, read plainly
+				}
+				if (first == null) {
+					// no live replica, let the usual path refetch the locations
+					readReplicaRange(block, start, end, buf, offset);
+					return;
+				}
+				boolean exhausted = false;
+				while (!(exhausted && running.isEmpty())) {
+					Future<byte[]> done = exhausted ? reads.take() : reads.poll(
+							hedgedReadThreshold, TimeUnit.MILLISECONDS);
+					if (done == null) {
+						// the running reads are slow, hedge them
+						Future<byte[]> f;
+						try {
+							f = startRead(reads, running, tried, block, start,
+									len, !reconstructing);
+						} catch (RejectedExecutionException e) {
+							f = null; // no thread left, wait for the others
+						}
+						if (f == null) {
+							exhausted = true;
+						} else {
+							reconstructing |= (running.get(f) == null);
+							hedges.add(f);
+							hedgedReadOps.incrementAndGet();
+							if (LOG.isDebugEnabled()) {
+								LOG.debug("Hedged read of " + block.getBlock()
+										+ " from " + running.get(f));
+							}
+						}
+						continue;
+					}
+					DatanodeInfo node = running.remove(done);
+					try {
+						byte[] data = done.get();
+						System.arraycopy(data, 0, buf, offset, len);
+						// a win only if the first read was still going
+						if (hedges.contains(done) && !first.isDone()) {
+							hedgedReadWins.incrementAndGet();
+						}
+						return;
+					} catch (ExecutionException e) {
+						ioe = (e.getCause() instanceof IOException) ? (IOException) e
+								.getCause()
+								: (IOException) new IOException(
+										"Could not read " + block.getBlock())
+										.initCause(e.getCause());
+						LOG.warn("Failed to read " + block.getBlock()
+								+ " of " + src + " from "
+								+ (node == null ? "its group" : node.getName())
+								+ ": " + ioe);
+						if (node != null) {
+							addToDeadNodes(node);
+						}
+					}
+					if (!exhausted) {
+						Future<byte[]> f;
+						try {
+							f = startRead(reads, running, tried, block, start,
+									len, !reconstructing);
+						} catch (RejectedExecutionException e) {
+							if (running.isEmpty()) {
+								// nothing left to wait for, read plainly
+								readReplicaRange(block, start, end, buf,
+										offset);
+								return;
+							}
+							f = null;
+						}
+						if (f == null) {
+							exhausted = true;
+						} else {
+							reconstructing |= (running.get(f) == null);
+						}
+					}
+				}
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException("Interrupted while reading "
+						+ block.getBlock());
+			} finally {
+				for (Future<byte[]> f : running.keySet()) {
+					f.cancel(true);
+				}
+			}
+			throw (ioe == null) ? new IOException("Could not read "
+					+ block.getBlock()) : ioe;
+		}
+
+		/*
+		 * Start a read of the range from a replica that has not been tried,
+		 * or else, if allowed, a rebuild of the range from the group.
+		 * 
+		 * @return the started read, mapped to its datanode in running, or
+		 *         null if there is nothing left to start
+		 * @throws RejectedExecutionException if no thread is free for it
+		 */
+		private Future<byte[]> startRead(CompletionService<byte[]> reads,
+				Map<Future<byte[]>, DatanodeInfo> running,
+				Set<DatanodeInfo> tried, final LocatedBlock block,
+				final long start, final int len, boolean reconstruct) {
+			for (final DatanodeInfo node : block.getLocations()) {
+				if (tried.contains(node) || deadNodes.containsKey(node)) {
+					continue;
+				}
+				final DNAddrPair pair = new DNAddrPair(node, NetUtils
+						.createSocketAddr(node.getName()));
+				Future<byte[]> f = reads.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						byte[] data = new byte[len];
+						try {
+							readFromNode(pair, block.getBlock(), start, len,
+									data, 0);
+						} catch (ChecksumException e) {
+							reportChecksumFailure(src, block.getBlock(), node);
+							throw e;
+						}
+						return data;
+					}
+				});
+				tried.add(node);
+				running.put(f, node);
+				return f;
+			}
+			if (!reconstruct) {
+				return null;
+			}
+			final LocatedBlock[] group = getGroupLocations(block);
+			final int index = getGroupIndex(group, block);
+			if (index < 0 || index >= rsM) {
+				return null;
+			}
+			Future<byte[]> f = reads.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return reconstructRange(group, index, start, len);
+				}
+			});
+			running.put(f, null);
+			return f;
+		}
+
+		private void readReplicaRange(LocatedBlock block, long start,
+				long end, byte[] buf, int offset) throws IOException {
 			//
 			// Connect to best DataNode for desired Block, with potential offset
 			//
-			Socket dn = null;
 			int numAttempts = block.getLocations().length;
 			IOException ioe = null;
 
-			while (dn == null && numAttempts-- > 0) {
+			while (numAttempts-- > 0) {
 				DNAddrPair retval = chooseDataNode(block);
 				DatanodeInfo chosenNode = retval.info;
-				InetSocketAddress targetAddr = retval.addr;
-				BlockReader reader = null;
 
 				try {
-					dn = socketFactory.createSocket();
-					dn.connect(targetAddr, socketTimeout);
-					dn.setSoTimeout(socketTimeout);
-
-					int len = (int) (end - start + 1);
-
-					reader = BlockReader.newBlockReader(dn, src, block
-							.getBlock().getBlockId(), block.getBlock()
-							.getGenerationStamp(), start, len, buffersize,
-							verifyChecksum);
-					int nread = reader.readAll(buf, offset, len);
-					if (nread != len) {
-						throw new IOException(
-								"truncated return from reader.read(): "
-										+ "excpected " + len + ", got " + nread);
-					}
+					readFromNode(retval, block.getBlock(), start,
+							(int) (end - start + 1), buf, offset);
 					return;
 				} catch (ChecksumException e) {
 					ioe = e;
@@ -1588,14 +1965,10 @@ class DFSClient implements FSConstants {
 					reportChecksumFailure(src, block.getBlock(), chosenNode);
 				} catch (IOException e) {
 					ioe = e;
-					LOG.warn("Failed to connect to " + targetAddr
+					LOG.warn("Failed to connect to " + retval.addr
 							+ " for file " + src + " for block "
 							+ block.getBlock().getBlockId() + ":"
 							+ StringUtils.stringifyException(e));
-				} finally {
-					IOUtils.closeStream(reader);
-					IOUtils.closeSocket(dn);
-					dn = null;
 				}
 				// Put chosen node into dead list, continue
 				addToDeadNodes(chosenNode);
@@ -1603,6 +1976,271 @@ class DFSClient implements FSConstants {
 			throw (ioe == null) ? new IOException("Could not read data") : ioe;
 		}
 
+		/*
+		 * Read len bytes of a block from one datanode, and note how long
+		 * the datanode took.
+		 */
+		private void readFromNode(DNAddrPair node, Block blk, long start,
+				int len, byte[] buf, int offset) throws IOException {
+			Socket dn = null;
+			BlockReader reader = null;
+			long startTime = System.currentTimeMillis();
+			try {
+				dn = socketFactory.createSocket();
+				dn.connect(node.addr, socketTimeout);
+				dn.setSoTimeout(socketTimeout);
+
+				reader = BlockReader.newBlockReader(dn, src, blk.getBlockId(),
+						blk.getGenerationStamp(), start, len, buffersize,
+						verifyChecksum);
+				int nread = reader.readAll(buf, offset, len);
+				if (nread != len) {
+					throw new IOException(
+							"truncated return from reader.read(): "
+									+ "excpected " + len + ", got " + nread);
+				}
+				updateLatency(node.info, System.currentTimeMillis()
+						- startTime, len);
+			} finally {
+				IOUtils.closeStream(reader);
+				IOUtils.closeSocket(dn);
+			}
+		}
+
+		/*
+		 * Return true if the best datanode of the block reads slower than
+		 * dfs.read.reconstruct.threshold.ms, or if no datanode is left.
+		 */
+		private boolean isSlow(LocatedBlock block) {
+			for (DatanodeInfo node : block.getLocations()) {
+				if (!deadNodes.containsKey(node)) {
+					return getLatency(node) > reconstructThreshold;
+				}
+			}
+			return true;
+		}
+
+		/*
+		 * Get the blocks of the group of a block from the namenode, once
+		 * per block.
+		 * 
+		 * @return null if the group of the block is not encoded
+		 */
+		private LocatedBlock[] getGroupLocations(LocatedBlock block) {
+			Long id = block.getBlock().getBlockId();
+			LocatedBlock[] group = groups.get(id);
+			if (group == null) {
+				try {
+					group = namenode.getGroupLocations(src, block.getBlock());
+				} catch (IOException e) {
+					LOG.debug("Could not get the group of " + block.getBlock()
+							+ ": " + StringUtils.stringifyException(e));
+				}
+				if (group == null) {
+					group = new LocatedBlock[0];
+				}
+				groups.put(id, group);
+			}
+			return group.length == 0 ? null : group;
+		}
+
+		/*
+		 * Return the position of a block in its group, or -1.
+		 */
+		private int getGroupIndex(LocatedBlock[] group, LocatedBlock block) {
+			for (int i = 0; group != null && i < group.length; i++) {
+				if (group[i].getBlock().getBlockId() == block.getBlock()
+						.getBlockId()) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/*
+		 * Race a read of a replica against a rebuild of the same bytes from
+		 * the rest of the group, and keep whichever finishes first.
+		 */
+		private void hybridRead(final LocatedBlock block,
+				final LocatedBlock[] group, final int index, final long start,
+				final long end, byte[] buf, int offset) throws IOException {
+			final int len = (int) (end - start + 1);
+			CompletionService<byte[]> reads = new ExecutorCompletionService<byte[]>(
+					getRaceReadPool());
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(2);
+			try {
+				futures.add(reads.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						byte[] data = new byte[len];
+						readReplicaRange(block, start, end, data, 0);
+						return data;
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				// no thread to race with, read plainly
+				readReplicaRange(block, start, end, buf, offset);
+				return;
+			}
+			try {
+				futures.add(reads.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return reconstructRange(group, index, start, len);
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				// only the replica read is running, wait for it
+			}
+			IOException ioe = null;
+			try {
+				for (int i = 0; i < futures.size(); i++) {
+					try {
+						byte[] data = reads.take().get();
+						System.arraycopy(data, 0, buf, offset, len);
+						return;
+					} catch (ExecutionException e) {
+						ioe = (e.getCause() instanceof IOException) ? (IOException) e
+								.getCause()
+								: (IOException) new IOException(
+										"Could not read " + block.getBlock())
+										.initCause(e.getCause());
+					}
+				}
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException("Interrupted while reading "
+						+ block.getBlock());
+			} finally {
+				for (Future<byte[]> f : futures) {
+					f.cancel(true);
+				}
+			}
+			throw ioe;
+		}
+
+		/*
+		 * Rebuild len bytes of the index-th block of a group from rsM other
+		 * blocks of the group. The empty blocks padding the group are known
+		 * to be zeros and are used first, then the blocks on the fastest
+		 * datanodes.
+		 */
+		private byte[] reconstructRange(final LocatedBlock[] group, int index,
+				final long start, final int len) throws IOException {
+			List<Integer> candidates = new ArrayList<Integer>(group.length);
+			for (int i = 0; i < group.length; i++) {
+				if (i != index
+						&& (group[i].getBlock().getBlockId() == 0 || group[i]
+								.getLocations().length > 0)) {
+					candidates.add(i);
+				}
+			}
+			if (candidates.size() < rsM) {
+				throw new IOException("Not enough blocks left in the group of "
+						+ group[index].getBlock() + " to rebuild it");
+			}
+			Collections.sort(candidates, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					long ca = readCost(group[a]);
+					long cb = readCost(group[b]);
+					return ca < cb ? -1 : (ca == cb ? 0 : 1);
+				}
+			});
+
+			short[] units = new short[rsM];
+			byte[][] data = new byte[rsM][];
+			List<Future<byte[]>> sources = new ArrayList<Future<byte[]>>(rsM);
+			for (int j = 0; j < rsM; j++) {
+				final LocatedBlock member = group[candidates.get(j)];
+				units[j] = candidates.get(j).shortValue();
+				if (member.getBlock().getBlockId() == 0) {
+					sources.add(null);
+				} else {
+					sources.add(getReadPool().submit(new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							return readSourceRange(member, start, len);
+						}
+					}));
+				}
+			}
+			try {
+				for (int j = 0; j < rsM; j++) {
+					if (sources.get(j) != null) {
+						data[j] = sources.get(j).get();
+					}
+				}
+			} catch (ExecutionException e) {
+				throw (e.getCause() instanceof IOException) ? (IOException) e
+						.getCause() : (IOException) new IOException(
+						"Could not read the group of " + group[index].getBlock())
+						.initCause(e.getCause());
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while rebuilding "
+						+ group[index].getBlock());
+			} finally {
+				for (Future<byte[]> f : sources) {
+					if (f != null) {
+						f.cancel(true);
+					}
+				}
+			}
+
+			RSCoder.setupTables();
+			RSCoder coder = new RSCoder();
+			coder.InitialInvertedCauchyMatrix((short) rsM,
+					(short) (group.length - rsM), units);
+			byte[] out = new byte[len];
+			coder.RSDecodeUnit(data, len, index, out, 0);
+			return out;
+		}
+
+		/*
+		 * Padding blocks cost nothing, blocks without a live datanode are
+		 * read last.
+		 */
+		private long readCost(LocatedBlock member) {
+			if (member.getBlock().getBlockId() == 0) {
+				return -1;
+			}
+			for (DatanodeInfo node : member.getLocations()) {
+				if (!deadNodes.containsKey(node)) {
+					return getLatency(node);
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		/*
+		 * Read a byte range of a member of a group. A member is read as if
+		 * padded with zeros up to the end of the range.
+		 */
+		private byte[] readSourceRange(LocatedBlock member, long start, int len)
+				throws IOException {
+			byte[] data = new byte[len];
+			long memberLen = member.getBlockSize();
+			if (start >= memberLen) {
+				return data;
+			}
+			int toRead = (int) Math.min(len, memberLen - start);
+			IOException ioe = null;
+			for (DatanodeInfo node : member.getLocations()) {
+				if (deadNodes.containsKey(node)) {
+					continue;
+				}
+				try {
+					readFromNode(new DNAddrPair(node, NetUtils
+							.createSocketAddr(node.getName())), member
+							.getBlock(), start, toRead, data, 0);
+					return data;
+				} catch (ChecksumException e) {
+					ioe = e;
+					reportChecksumFailure(src, member.getBlock(), node);
+				} catch (IOException e) {
+					ioe = e;
+				}
+				addToDeadNodes(node);
+			}
+			throw (ioe == null) ? new IOException("No live nodes contain "
+					+ member.getBlock()) : ioe;
+		}
+
 		/**
 		 * Read bytes starting from the specified position.
 		 * 
@@ -1655,6 +2293,138 @@ class DFSClient implements FSConstants {
 			return realLen;
 		}
 
+		/**
+		 * Read many ranges of the file at once. Sorted by offset, ranges of
+		 * the same block that are at most dfs.read.vectored.merge.gap apart
+		 * are merged into one read from a datanode, of at most
+		 * dfs.read.vectored.max.merge bytes. The reads run in parallel on
+		 * dfs.read.vectored.parallelism workers of the read pool, block by
+		 * block. A range across a block boundary is read on its own.
+		 * 
+		 * @param ranges
+		 *            the ranges to read, all within the file
+		 * @return the futures of the ranges, in the order of the ranges.
+		 *         Ranges merged into one read share its future.
+		 * @throws IOException
+		 *             if a range is not within the file
+		 */
+		List<Future<Void>> readVectored(List<ReadRange> ranges)
+				throws IOException {
+			checkOpen();
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			long filelen = getFileLength();
+			List<ReadRange> sorted = new ArrayList<ReadRange>(ranges);
+			for (ReadRange r : sorted) {
+				if (r.offset < 0 || r.length < 0
+						|| r.offset + r.length > filelen) {
+					throw new EOFException("Range " + r.offset + "+"
+							+ r.length + " is not within " + src);
+				}
+			}
+			Collections.sort(sorted, new Comparator<ReadRange>() {
+				public int compare(ReadRange a, ReadRange b) {
+					return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0
+							: 1);
+				}
+			});
+
+			Map<ReadRange, Future<Void>> futures = new IdentityHashMap<ReadRange, Future<Void>>();
+			final Queue<FutureTask<Void>> reads = new ConcurrentLinkedQueue<FutureTask<Void>>();
+			int i = 0;
+			while (i < sorted.size()) {
+				ReadRange first = sorted.get(i);
+				List<LocatedBlock> blocks = first.length == 0 ? null
+						: getBlockRange(first.offset, first.length);
+				int j = i + 1;
+				FutureTask<Void> read;
+				if (blocks == null || blocks.size() != 1) {
+					read = newRangeRead(sorted.subList(i, j), null, 0, 0);
+				} else {
+					LocatedBlock blk = blocks.get(0);
+					long blockEnd = blk.getStartOffset() + blk.getBlockSize();
+					long start = first.offset;
+					long end = first.offset + first.length;
+					for (; j < sorted.size(); j++) {
+						ReadRange next = sorted.get(j);
+						long nextEnd = next.offset + next.length;
+						if (next.offset - end > vectoredMergeGap
+								|| nextEnd > blockEnd
+								|| Math.max(end, nextEnd) - start > vectoredMaxMerge) {
+							break;
+						}
+						end = Math.max(end, nextEnd);
+					}
+					read = newRangeRead(sorted.subList(i, j), blk, start, end);
+				}
+				for (ReadRange r : sorted.subList(i, j)) {
+					futures.put(r, read);
+				}
+				reads.add(read);
+				i = j;
+			}
+
+			// each worker runs reads until there are none left
+			int workers = Math.min(vectoredParallelism, reads.size());
+			for (int w = 0; w < workers; w++) {
+				getReadPool().execute(new Runnable() {
+					public void run() {
+						FutureTask<Void> read;
+						while ((read = reads.poll()) != null) {
+							read.run();
+						}
+					}
+				});
+			}
+
+			List<Future<Void>> result = new ArrayList<Future<Void>>(ranges
+					.size());
+			for (ReadRange r : ranges) {
+				result.add(futures.get(r));
+			}
+			return result;
+		}
+
+		/*
+		 * Create the read of bytes [start, end) of a block, copied to the
+		 * ranges inside it. With no block, the ranges are read one by one by
+		 * positional reads.
+		 */
+		private FutureTask<Void> newRangeRead(List<ReadRange> rangeList,
+				final LocatedBlock blk, final long start, final long end) {
+			final List<ReadRange> ranges = new ArrayList<ReadRange>(rangeList);
+			return new FutureTask<Void>(new Callable<Void>() {
+				public Void call() throws IOException {
+					if (blk == null) {
+						for (ReadRange r : ranges) {
+							readFully(r.offset, r.buffer, r.bufferOffset,
+									r.length);
+						}
+						return null;
+					}
+					long blockStart = blk.getStartOffset();
+					if (ranges.size() == 1) {
+						ReadRange r = ranges.get(0);
+						fetchBlockByteRange(blk, start - blockStart, end
+								- blockStart - 1, r.buffer, r.bufferOffset);
+					} else {
+						byte[] data = new byte[(int) (end - start)];
+						fetchBlockByteRange(blk, start - blockStart, end
+								- blockStart - 1, data, 0);
+						for (ReadRange r : ranges) {
+							System.arraycopy(data, (int) (r.offset - start),
+									r.buffer, r.bufferOffset, r.length);
+						}
+					}
+					if (stats != null) {
+						stats.incrementBytesRead(end - start);
+					}
+					return null;
+				}
+			});
+		}
+
 		@Override
 		public long skip(long n) throws IOException {
 			if (n > 0) {
@@ -1818,10 +2588,17 @@ class DFSClient implements FSConstants {
 		private Block block;
 		private long blockSize;
 		private DataChecksum checksum;
+		private BulkChecksum bulkChecksum = null; // for writeChunks()
+		private byte[] chunkSums = null;
+		private byte[] chunkSum = null;
+		// bytes of a partial chunk that writeChunks() left to FSOutputSummer
+		private int chunkTail = 0;
 		private LinkedList<Packet> dataQueue = new LinkedList<Packet>();
 		private LinkedList<Packet> ackQueue = new LinkedList<Packet>();
 		private Packet currentPacket = null;
-		private int maxPackets = 80; // each packet 64K, total 5MB
+		// each packet 64K, total 5MB by default. The writer keeps queueing
+		// packets while a new block is set up, as long as this allows.
+		private int maxPackets = conf.getInt("dfs.client.write.max.packets", 80);
 		// private int maxPackets = 1000; // each packet 64K, total 64MB
 		private DataStreamer streamer;
 		private ResponseProcessor response = null;
@@ -1845,6 +2622,35 @@ class DFSClient implements FSConstants {
 		// While we have different situation which is coming from the datanode
 		// to process the en/decoding process.
 
+		// With online parity the client computes the redundant blocks of
+		// each group while writing and stores them itself, so that no
+		// encoding task has to read the group back.
+		private boolean onlineParity = false;
+		private int rsN;
+		private int rsM;
+		private RSCoder parityCoder = null;
+		// The redundant units are encoded cell by cell. Only the cell being
+		// encoded is in memory; the partial cells of the earlier blocks of
+		// the group wait in a local spill file. A cell goes to the parity
+		// streamer of its group as soon as the last block of the group has
+		// been added to it.
+		private int parityCellSize;
+		private byte[][] parityCell = null; // cell being encoded, per unit
+		private int parityCellIndex = -1; // its index in the block
+		private int spilledCells = 0; // cells of the group in the spill file
+		private int nextParityCell = 0; // next cell to hand to the streamer
+		private File paritySpillFile = null;
+		private RandomAccessFile paritySpill = null;
+		private long parityLength = 0; // length of the longest block in group
+		private int blockInGroup = 0; // index of current block in its group
+		private long parityBlockOffset = 0; // bytes of block already encoded
+		private int groupIndex = 0;
+		private ParityStreamer parityStreamer = null; // of the current group
+		// cells the streamers are done with, reused for the next ones
+		private final BlockingQueue<byte[][]> freeParityCells = new ArrayBlockingQueue<byte[][]>(
+				8);
+		private List<Daemon> parityWriters = new ArrayList<Daemon>();
+
 		private class Packet {
 			ByteBuffer buffer; // only one of buf and buffer is non-null
 			byte[] buf;
@@ -1973,6 +2779,7 @@ class DFSClient implements FSConstants {
 					}
 
 					Packet one = null;
+					boolean newBlock = false;
 					synchronized (dataQueue) {
 
 						// process IO errors if any
@@ -1993,37 +2800,46 @@ class DFSClient implements FSConstants {
 							continue;
 						}
 
-						try {
-							// get packet to be sent.
-							one = dataQueue.getFirst();
-							long offsetInBlock = one.offsetInBlock;
-
-							// get new block from namenode.
-							if (blockStream == null) {
-								LOG.debug("Allocating new block");
-								// TODO default is called by the client
-								// else call REPERA's getBlockOutput Stream
-								if(isClient)
-									nodes = nextBlockOutputStream(src);
-								else {
-									if( nodes!= null )
-										getBlockOutputStream(src, nodes);
-								}
-								this.setName("DataStreamer for file " + src
-										+ " block " + block);
-								response = new ResponseProcessor(nodes);
-								response.start();
-							}
+						// get packet to be sent. The writer only appends to
+						// the queue, so it stays first while unlocked.
+						one = dataQueue.getFirst();
+						newBlock = blockStream == null;
+					}
 
-							if (offsetInBlock >= blockSize) {
-								throw new IOException("BlockSize " + blockSize
-										+ " is smaller than data size. "
-										+ " Offset of packet in block "
-										+ offsetInBlock + " Aborting file "
-										+ src);
+					// The block is set up and the packet written without
+					// holding dataQueue, so the writer can keep queueing
+					// packets while the namenode and the pipeline answer.
+					try {
+						long offsetInBlock = one.offsetInBlock;
+
+						// get new block from namenode.
+						if (newBlock) {
+							LOG.debug("Allocating new block");
+							// TODO default is called by the client
+							// else call REPERA's getBlockOutput Stream
+							if(isClient)
+								nodes = nextBlockOutputStream(src);
+							else {
+								if( nodes!= null )
+									getBlockOutputStream(src, nodes);
 							}
+							this.setName("DataStreamer for file " + src
+									+ " block " + block);
+							response = new ResponseProcessor(nodes);
+							response.start();
+						}
 
-							ByteBuffer buf = one.getBuffer();
+						if (offsetInBlock >= blockSize) {
+							throw new IOException("BlockSize " + blockSize
+									+ " is smaller than data size. "
+									+ " Offset of packet in block "
+									+ offsetInBlock + " Aborting file "
+									+ src);
+						}
+
+						ByteBuffer buf;
+						synchronized (dataQueue) {
+							buf = one.getBuffer();
 
 							// move packet from dataQueue to ackQueue
 							dataQueue.removeFirst();
@@ -2032,29 +2848,29 @@ class DFSClient implements FSConstants {
 								ackQueue.addLast(one);
 								ackQueue.notifyAll();
 							}
+						}
 
-							// write out data to remote datanode
-							blockStream.write(buf.array(), buf.position(), buf
-									.remaining());
+						// write out data to remote datanode
+						blockStream.write(buf.array(), buf.position(), buf
+								.remaining());
 
-							if (one.lastPacketInBlock) {
-								blockStream.writeInt(0); // indicate
-															// end-of-block
-							}
-							blockStream.flush();
-							if (LOG.isDebugEnabled()) {
-								LOG.debug("DataStreamer block " + block
-										+ " wrote packet seqno:" + one.seqno
-										+ " size:" + buf.remaining()
-										+ " offsetInBlock:" + one.offsetInBlock
-										+ " lastPacketInBlock:"
-										+ one.lastPacketInBlock);
-							}
-						} catch (Throwable e) {
-							LOG.warn("DataStreamer Exception: "
-									+ StringUtils.stringifyException(e));
-							hasError = true;
+						if (one.lastPacketInBlock) {
+							blockStream.writeInt(0); // indicate
+														// end-of-block
+						}
+						blockStream.flush();
+						if (LOG.isDebugEnabled()) {
+							LOG.debug("DataStreamer block " + block
+									+ " wrote packet seqno:" + one.seqno
+									+ " size:" + buf.remaining()
+									+ " offsetInBlock:" + one.offsetInBlock
+									+ " lastPacketInBlock:"
+									+ one.lastPacketInBlock);
 						}
+					} catch (Throwable e) {
+						LOG.warn("DataStreamer Exception: "
+								+ StringUtils.stringifyException(e));
+						hasError = true;
 					}
 
 					if (closed || hasError || !clientRunning) {
@@ -2406,6 +3222,18 @@ class DFSClient implements FSConstants {
 			packetSize = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER + chunkSize
 					* chunksPerPacket;
 
+			if (conf.getBoolean("dfs.write.online.parity", false)) {
+				onlineParity = true;
+				rsN = conf.getInt("dfs.RSn", FSConstants.RSn);
+				rsM = conf.getInt("dfs.RSm", FSConstants.RSm);
+				parityCellSize = Math.max(1, conf.getInt(
+						"dfs.write.parity.cell.size", 64 * 1024));
+				RSCoder.setupTables();
+				parityCoder = new RSCoder();
+				parityCoder.InitialCauchyMatrix((short) rsM,
+						(short) (rsN - rsM));
+			}
+
 			try {
 				namenode.create(src, masked, clientName, overwrite,
 						replication, blockSize);
@@ -2686,6 +3514,8 @@ class DFSClient implements FSConstants {
 								+ " but found to be " + checksum.length);
 			}
 
+			long chunkOffset;
+			boolean blockDone = false;
 			synchronized (dataQueue) {
 
 				// If queue is full, then wait till we can create enough space
@@ -2708,6 +3538,7 @@ class DFSClient implements FSConstants {
 				currentPacket.writeChecksum(checksum, 0, cklen);
 				currentPacket.writeData(b, offset, len);
 				currentPacket.numChunks++;
+				chunkOffset = bytesCurBlock;
 				bytesCurBlock += len;
 
 				// If packet is full, enqueue it for transmission
@@ -2725,16 +3556,401 @@ class DFSClient implements FSConstants {
 						currentPacket.lastPacketInBlock = true;
 						bytesCurBlock = 0;
 						lastFlushOffset = -1;
+						blockDone = true;
 					}
 					dataQueue.addLast(currentPacket);
 					dataQueue.notifyAll();
 					currentPacket = null;
 				}
 			}
+
+			// the parity is encoded without holding dataQueue, so the
+			// DataStreamer keeps sending while it is
+			if (onlineParity) {
+				accumulateParity(b, offset, len, chunkOffset);
+				if (blockDone) {
+					finishParityCell();
+					parityBlockOffset = 0;
+					if (++blockInGroup == rsM) {
+						writeParity(false);
+					}
+				}
+			}
 			// LOG.debug("DFSClient writeChunk done length " + len +
 			// " checksum length " + cklen);
 		}
 
+		/**
+		 * Write whole chunks, summing them in one pass instead of through
+		 * FSOutputSummer chunk by chunk. Coding tasks use it for the units
+		 * they have just encoded, while they are still in cache. Bytes past
+		 * the last whole chunk go through write(), and the next call
+		 * completes that chunk the same way before summing in bulk again.
+		 * It must not be mixed with write(), whose buffered partial chunk
+		 * it would not know of.
+		 */
+		synchronized void writeChunks(byte[] b, int off, int len)
+				throws IOException {
+			if (bulkChecksum == null) {
+				bulkChecksum = BulkChecksum.newBulkChecksum(checksum);
+				if (bulkChecksum == null) {
+					write(b, off, len);
+					return;
+				}
+			}
+			int bytesPerChecksum = checksum.getBytesPerChecksum();
+			int checksumSize = checksum.getChecksumSize();
+			if (chunkTail > 0) {
+				// complete the partial chunk left by the previous call
+				int n = Math.min(len, bytesPerChecksum - chunkTail);
+				write(b, off, n);
+				chunkTail = (chunkTail + n) % bytesPerChecksum;
+				off += n;
+				len -= n;
+			}
+			int numChunks = len / bytesPerChecksum;
+			int whole = numChunks * bytesPerChecksum;
+			if (chunkSums == null || chunkSums.length < numChunks * checksumSize) {
+				chunkSums = new byte[numChunks * checksumSize];
+			}
+			if (chunkSum == null) {
+				chunkSum = new byte[checksumSize];
+			}
+			bulkChecksum.calculateChunks(b, off, whole, chunkSums, 0);
+			for (int i = 0; i < numChunks; i++) {
+				System.arraycopy(chunkSums, i * checksumSize, chunkSum, 0,
+						checksumSize);
+				writeChunk(b, off + i * bytesPerChecksum, bytesPerChecksum,
+						chunkSum);
+			}
+			if (len > whole) {
+				write(b, off + whole, len - whole);
+				chunkTail = len - whole;
+			}
+		}
+
+		/**
+		 * Add a chunk of the current data block to the redundant units of its
+		 * group. A partial chunk flushed by sync() is sent again with the
+		 * rest of the chunk, so bytes already encoded are skipped.
+		 */
+		private void accumulateParity(byte[] b, int offset, int len,
+				long offsetInBlock) throws IOException {
+			int skip = (int) Math.max(0, parityBlockOffset - offsetInBlock);
+			if (skip >= len) {
+				return;
+			}
+			long pos = offsetInBlock + skip;
+			int off = offset + skip;
+			int left = len - skip;
+			while (left > 0) {
+				int cell = (int) (pos / parityCellSize);
+				if (cell != parityCellIndex) {
+					finishParityCell();
+					loadParityCell(cell);
+				}
+				int inCell = (int) (pos - (long) cell * parityCellSize);
+				int n = Math.min(left, parityCellSize - inCell);
+				parityCoder.RSEncodeUnit(b, off, n, blockInGroup, parityCell,
+						inCell);
+				pos += n;
+				off += n;
+				left -= n;
+			}
+			parityBlockOffset = offsetInBlock + len;
+			parityLength = Math.max(parityLength, parityBlockOffset);
+		}
+
+		/** Make a cell of the current group the one being encoded */
+		private void loadParityCell(int cell) throws IOException {
+			if (parityCell == null) {
+				parityCell = newParityCell();
+			}
+			if (cell < spilledCells) {
+				readSpilledCell(cell, parityCell);
+			} else {
+				for (byte[] unit : parityCell) {
+					Arrays.fill(unit, (byte) 0);
+				}
+			}
+			parityCellIndex = cell;
+		}
+
+		/**
+		 * Done with the cell being encoded. Once the last block of the group
+		 * went through it, it is complete and goes to the parity streamer;
+		 * before that it is spilled until the next block of the group.
+		 */
+		private void finishParityCell() throws IOException {
+			if (parityCellIndex < 0) {
+				return;
+			}
+			if (blockInGroup == rsM - 1) {
+				if (parityStreamer == null) {
+					startParityStreamer(false);
+				}
+				while (nextParityCell < parityCellIndex) {
+					handOffParityCell(nextParityCell,
+							readSpilledCell(nextParityCell, null));
+				}
+				handOffParityCell(parityCellIndex, parityCell);
+				parityCell = null;
+			} else {
+				spillParityCell(parityCellIndex, parityCell);
+			}
+			parityCellIndex = -1;
+		}
+
+		private void spillParityCell(int cell, byte[][] units)
+				throws IOException {
+			if (paritySpill == null) {
+				File dir = new File(conf.get("dfs.client.parity.spill.dir",
+						System.getProperty("java.io.tmpdir")));
+				paritySpillFile = File.createTempFile("parity", ".spill", dir);
+				paritySpillFile.deleteOnExit();
+				paritySpill = new RandomAccessFile(paritySpillFile, "rw");
+			}
+			paritySpill.seek((long) cell * units.length * parityCellSize);
+			for (byte[] unit : units) {
+				paritySpill.write(unit, 0, parityCellSize);
+			}
+			spilledCells = Math.max(spilledCells, cell + 1);
+		}
+
+		private byte[][] readSpilledCell(int cell, byte[][] units)
+				throws IOException {
+			if (units == null) {
+				units = newParityCell();
+			}
+			paritySpill.seek((long) cell * units.length * parityCellSize);
+			for (byte[] unit : units) {
+				paritySpill.readFully(unit, 0, parityCellSize);
+			}
+			return units;
+		}
+
+		/** A cell returned by a parity streamer, or a new one */
+		private byte[][] newParityCell() {
+			byte[][] units = freeParityCells.poll();
+			if (units == null) {
+				units = new byte[rsN - rsM][parityCellSize];
+			}
+			return units;
+		}
+
+		/** Queue a complete cell for the parity streamer of the group */
+		private void handOffParityCell(int cell, byte[][] units)
+				throws IOException {
+			long start = (long) cell * parityCellSize;
+			int len = (int) Math.min(parityCellSize, parityLength - start);
+			parityStreamer.add(new ParityCell(units, len));
+			nextParityCell = cell + 1;
+		}
+
+		private void startParityStreamer(boolean lastGroup) {
+			for (Iterator<Daemon> it = parityWriters.iterator(); it.hasNext();) {
+				if (!it.next().isAlive()) {
+					it.remove();
+				}
+			}
+			parityStreamer = new ParityStreamer(groupIndex, lastGroup);
+			Daemon writer = new Daemon(parityStreamer);
+			parityWriters.add(writer);
+			writer.start();
+		}
+
+		/**
+		 * The current group is complete: hand its remaining cells to the
+		 * parity streamer and start the next group. Does not wait for the
+		 * redundant units to be stored.
+		 */
+		private void writeParity(boolean lastGroup) throws IOException {
+			int numCells = (int) ((parityLength + parityCellSize - 1) / parityCellSize);
+			if (nextParityCell < numCells && parityStreamer == null) {
+				startParityStreamer(lastGroup);
+			}
+			for (int cell = nextParityCell; cell < numCells; cell++) {
+				if (cell == parityCellIndex) {
+					handOffParityCell(cell, parityCell);
+					parityCell = null;
+				} else {
+					handOffParityCell(cell, readSpilledCell(cell, null));
+				}
+			}
+			if (parityStreamer != null) {
+				parityStreamer.add(new ParityCell(null, 0));
+				parityStreamer = null;
+			}
+			parityCellIndex = -1;
+			spilledCells = 0;
+			nextParityCell = 0;
+			parityLength = 0;
+			blockInGroup = 0;
+			groupIndex++;
+		}
+
+		/** A complete cell of the redundant units, null units ends a group */
+		private class ParityCell {
+			final byte[][] units;
+			final int len;
+
+			ParityCell(byte[][] units, int len) {
+				this.units = units;
+				this.len = len;
+			}
+		}
+
+		/**
+		 * Stores the redundant units of a group on the datanodes chosen by
+		 * the namenode, one pipeline per unit, as its cells are completed. A
+		 * failed write is only logged: the namenode then schedules a regular
+		 * encoding task for the group.
+		 */
+		private class ParityStreamer implements Runnable {
+			private final int grp;
+			private final boolean lastGroup;
+			// a few cells in flight; the writer waits when the units are
+			// stored slower than the data
+			private final BlockingQueue<ParityCell> cells = new ArrayBlockingQueue<ParityCell>(
+					4);
+
+			ParityStreamer(int grp, boolean lastGroup) {
+				this.grp = grp;
+				this.lastGroup = lastGroup;
+			}
+
+			void add(ParityCell cell) throws IOException {
+				try {
+					cells.put(cell);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(
+							"Interrupted while queueing parity of group " + grp
+									+ " of " + src);
+				}
+			}
+
+			public void run() {
+				DFSOutputStream[] outs = null;
+				boolean failed = false;
+				while (true) {
+					ParityCell cell;
+					try {
+						cell = cells.take();
+					} catch (InterruptedException e) {
+						failed = true;
+						break;
+					}
+					if (cell.units == null) {
+						break;
+					}
+					if (failed) {
+						// keep draining so the writer never blocks
+						freeParityCells.offer(cell.units);
+						continue;
+					}
+					try {
+						if (outs == null) {
+							outs = openParityStreams();
+						}
+						for (int unit = 0; unit < outs.length; unit++) {
+							outs[unit].write(cell.units[unit], 0, cell.len);
+						}
+					} catch (IOException e) {
+						failed = true;
+						LOG.warn("Could not write parity of group " + grp
+								+ " of " + src + ": "
+								+ StringUtils.stringifyException(e));
+					}
+					// write() copies the bytes into packets
+					freeParityCells.offer(cell.units);
+				}
+				if (outs == null) {
+					return;
+				}
+				for (DFSOutputStream out : outs) {
+					if (failed) {
+						IOUtils.closeStream(out);
+						continue;
+					}
+					try {
+						out.close();
+					} catch (IOException e) {
+						LOG.warn("Could not write parity of group " + grp
+								+ " of " + src + ": "
+								+ StringUtils.stringifyException(e));
+					}
+				}
+			}
+
+			private DFSOutputStream[] openParityStreams() throws IOException {
+				LocatedBlock[] lbs = locateParityBlocks(grp, lastGroup);
+				DFSOutputStream[] outs = new DFSOutputStream[rsN - rsM];
+				for (int unit = 0; unit < outs.length; unit++) {
+					outs[unit] = new DFSOutputStream(src + "#parity" + unit,
+							lbs[unit].getBlock(), blockSize,
+							FSConstants.BUFFER_SIZE, false, lbs[unit]
+									.getLocations());
+				}
+				return outs;
+			}
+		}
+
+		/**
+		 * Ask the namenode for the redundant blocks of a group. Retries while
+		 * the last data blocks of the group are still being allocated.
+		 */
+		private LocatedBlock[] locateParityBlocks(int grp, boolean lastGroup)
+				throws IOException {
+			int retries = 5;
+			long sleeptime = 400;
+			while (true) {
+				try {
+					return namenode.getParityBlocks(src, clientName, grp,
+							lastGroup);
+				} catch (RemoteException e) {
+					if (--retries == 0
+							|| !NotReplicatedYetException.class.getName()
+									.equals(e.getClassName())) {
+						throw e;
+					}
+					try {
+						Thread.sleep(sleeptime);
+						sleeptime *= 2;
+					} catch (InterruptedException ie) {
+					}
+				}
+			}
+		}
+
+		/** Wait for the redundant units of all groups to be stored */
+		private void waitForParity() {
+			for (Daemon writer : parityWriters) {
+				try {
+					writer.join();
+				} catch (InterruptedException e) {
+				}
+			}
+			parityWriters.clear();
+		}
+
+		/**
+		 * Stop the streamer of a group left incomplete by a failed close and
+		 * remove the spill file of the partial cells.
+		 */
+		private void abortParity() {
+			if (parityStreamer != null) {
+				parityWriters.get(parityWriters.size() - 1).interrupt();
+				parityStreamer = null;
+			}
+			parityCell = null;
+			IOUtils.closeStream(paritySpill);
+			paritySpill = null;
+			if (paritySpillFile != null) {
+				paritySpillFile.delete();
+				paritySpillFile = null;
+			}
+		}
+
 		/**
 		 * All data is written out to datanodes. It is not guaranteed that data
 		 * has been flushed to persistent store on the datanode. Block
@@ -2909,6 +4125,12 @@ class DFSClient implements FSConstants {
 
 				flushInternal(); // flush all data to Datanodes
 				isClosed(); // check to see if flushInternal had any exceptions
+				if (onlineParity) {
+					// store the redundant units of the last group before
+					// the file is completed
+					writeParity(true);
+					waitForParity();
+				}
 				closed = true; // allow closeThreads() to showdown threads
 
 				closeThreads();
@@ -2947,6 +4169,9 @@ class DFSClient implements FSConstants {
 				}
 			} finally {
 				closed = true;
+				if (onlineParity) {
+					abortParity();
+				}
 			}
 		}
 
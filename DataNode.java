@@ -55,6 +55,8 @@ import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
@@ -115,9 +117,18 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 	private LinkedList<String> delHints = new LinkedList<String>();
 	final static String EMPTY_DEL_HINT = "";
 	int xmitsInProgress = 0;
+	// Coding load reported to the namenode with every heartbeat
+	private final AtomicInteger activeEncodes = new AtomicInteger();
+	private final AtomicInteger activeDecodes = new AtomicInteger();
+	private final AtomicLong codingBytesQueued = new AtomicLong();
+	private volatile long codingThroughput = 0; // bytes per second
 	Daemon dataXceiveServer = null;
 	ThreadGroup threadGroup = null;
 	long blockReportInterval;
+	// block reports within this long of the last full one carry only the
+	// changes since the previous report, 0 makes every report full
+	long fullBlockReportInterval;
+	long lastFullBlockReport = 0;
 	// disallow the sending of BR before instructed to do so
 	long lastBlockReport = Long.MAX_VALUE;
 	boolean resetBlockReportTime = true;
@@ -138,6 +149,13 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 	private int socketWriteTimeout = 0;
 	private boolean transferToAllowed = true;
 	private int writePacketSize = 0;
+	// packet buffers shared by all transfers and coding tasks
+	BufferPool bufferPool;
+	// block reads size their packets to the link, from one chunk up to
+	// maxPacketSize, aiming at this many nanoseconds per packet
+	private boolean adaptivePacketSize = false;
+	private int maxPacketSize;
+	private long packetTargetNanos;
 
 	DataBlockScanner blockScanner = null;
 	Daemon blockScannerThread = null;
@@ -275,6 +293,14 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		this.transferToAllowed = conf.getBoolean(
 				"dfs.datanode.transferTo.allowed", true);
 		this.writePacketSize = conf.getInt("dfs.write.packet.size", 64 * 1024);
+		this.bufferPool = new BufferPool(conf.getLong(
+				"dfs.datanode.buffer.pool.size", 64 * 1024 * 1024));
+		this.adaptivePacketSize = conf.getBoolean(
+				"dfs.datanode.packet.adaptive", false);
+		this.maxPacketSize = conf.getInt("dfs.datanode.packet.max.size",
+				1024 * 1024);
+		this.packetTargetNanos = conf.getLong("dfs.datanode.packet.target.ms",
+				10) * 1000000L;
 		String address = NetUtils.getServerAddress(conf,
 				"dfs.datanode.bindAddress", "dfs.datanode.port",
 				"dfs.datanode.address");
@@ -347,6 +373,8 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 
 		this.blockReportInterval = conf.getLong("dfs.blockreport.intervalMsec",
 				BLOCKREPORT_INTERVAL);
+		this.fullBlockReportInterval = conf.getLong(
+				"dfs.blockreport.full.intervalMsec", 0);
 		this.initialBlockReportDelay = conf.getLong(
 				"dfs.blockreport.initialDelay", BLOCKREPORT_INITIAL_DELAY) * 1000L;
 		if (this.initialBlockReportDelay >= blockReportInterval) {
@@ -717,13 +745,15 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					// -- Bytes remaining
 					//
 					lastHeartbeat = startTime;
-					DatanodeCommand cmd = namenode.sendHeartbeat(
+					DatanodeCommand[] cmds = namenode.sendHeartbeat(
 							dnRegistration, data.getCapacity(), data
 									.getDfsUsed(), data.getRemaining(),
-							xmitsInProgress, getXceiverCount());
+							xmitsInProgress, getXceiverCount(),
+							activeEncodes.get(), activeDecodes.get(),
+							codingBytesQueued.get(), codingThroughput);
 					myMetrics.heartbeats.inc(now() - startTime);
 					// LOG.info("Just sent heartbeat, with name " + localName);
-					if (!processCommand(cmd))
+					if (!processCommand(cmds))
 						continue;
 				}
 
@@ -754,8 +784,8 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 						LOG
 								.warn("Panic: block array & delHintArray are not the same");
 					}
-					namenode.blockReceived(dnRegistration, blockArray,
-							delHintArray);
+					namenode.blockReceived(dnRegistration,
+							new PackedBlockList(blockArray), delHintArray);
 					synchronized (receivedBlockList) {
 						synchronized (delHints) {
 							for (int i = 0; i < blockArray.length; i++) {
@@ -773,14 +803,13 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					// Get back a list of local block(s) that are obsolete
 					// and can be safely GC'ed.
 					//
-					long brStartTime = now();
-					Block[] bReport = data.getBlockReport();
-					DatanodeCommand cmd = namenode.blockReport(dnRegistration,
-							BlockListAsLongs.convertToArrayLongs(bReport));
-					long brTime = now() - brStartTime;
-					myMetrics.blockReports.inc(brTime);
-					LOG.info("BlockReport of " + bReport.length
-							+ " blocks got processed in " + brTime + " msecs");
+					DatanodeCommand cmd;
+					if (fullBlockReportInterval > 0 && lastFullBlockReport > 0
+							&& startTime - lastFullBlockReport < fullBlockReportInterval) {
+						cmd = sendBlockReportDelta();
+					} else {
+						cmd = sendFullBlockReport(startTime);
+					}
 					//
 					// If we have sent the first block report, then wait a
 					// random
@@ -847,6 +876,30 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		} // while (shouldRun)
 	} // offerService
 
+	/**
+	 * Process an array of datanode commands. Every command is processed even
+	 * if an earlier one fails, so that a bad coding command does not drop the
+	 * rest of the batch.
+	 * 
+	 * @param cmds
+	 * @return true if further processing may be required or false otherwise.
+	 */
+	private boolean processCommand(DatanodeCommand[] cmds) {
+		boolean ok = true;
+		if (cmds != null) {
+			for (DatanodeCommand cmd : cmds) {
+				try {
+					if (!processCommand(cmd)) {
+						ok = false;
+					}
+				} catch (IOException ioe) {
+					LOG.warn("Error processing datanode Command", ioe);
+				}
+			}
+		}
+		return ok;
+	}
+
 	/**
 	 * 
 	 * @param cmd
@@ -870,7 +923,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			DatanodeInfo[][] rtargets = bcmd.getTargets();
 			Block[] rblocks = bcmd.getBlocks();
 			
-			if (rtargets != null) {
+			if (rtargets != null && LOG.isDebugEnabled()) {
 				Debug.writeTime();
 				Debug.writeDebug(s);
 				Debug.writeDebug("Here get a replication command!");
@@ -892,9 +945,6 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					//.getTargets(), bcmd.getGroup());
 			// TODO Should we firstly test the connection to the sources
 			
-			Debug.writeTime();
-			Debug.writeDebug(s);
-			Debug.writeDebug("Here is going to handle the encoding command.");
 			DatanodeInfo[] srcs = bcmd.getSources()[0];
 			DatanodeInfo[][] tars = bcmd.getTargets();
 			RSGroup group= bcmd.getGroup();
@@ -902,25 +952,30 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			Block[] grpBlocks = group.getBlocks();
 			//int rep = tars.length / blocks.length;
 			int size = group.getNumOfRealBlocks();
-			
-			Debug.writeDebug("The pre-encoding group from the command is: " + group + ";");
-			Debug.writeDebug("The redundant blocks to be encoded is:");
-			for(int i = 0; i < blocks.length; i++)
-			{
-				Debug.writeDebug(blocks[i] + ";");
-			}
-			Debug.writeDebug("We should fetch the block from the corresponding source node:");
-			for(int i = 0 ; i < size; i++)
-			{
-				Debug.writeDebug(grpBlocks[i] + " is from " + srcs[i] + ";");
-			}
-			Debug.writeDebug("The redundant blocks should be transferred to corresponding target nodes:");
-			for(int i = 0 ; i < blocks.length; i++)
-			{
-				Debug.writeDebug(blocks[i] + " is to be transferred to:");
-				for(int j = 0; j < tars[i].length; j++)
+
+			if (LOG.isDebugEnabled()) {
+				Debug.writeTime();
+				Debug.writeDebug(s);
+				Debug.writeDebug("Here is going to handle the encoding command.");
+				Debug.writeDebug("The pre-encoding group from the command is: " + group + ";");
+				Debug.writeDebug("The redundant blocks to be encoded is:");
+				for(int i = 0; i < blocks.length; i++)
+				{
+					Debug.writeDebug(blocks[i] + ";");
+				}
+				Debug.writeDebug("We should fetch the block from the corresponding source node:");
+				for(int i = 0 ; i < size; i++)
 				{
-					Debug.writeDebug(tars[i][j] + ";");
+					Debug.writeDebug(grpBlocks[i] + " is from " + srcs[i] + ";");
+				}
+				Debug.writeDebug("The redundant blocks should be transferred to corresponding target nodes:");
+				for(int i = 0 ; i < blocks.length; i++)
+				{
+					Debug.writeDebug(blocks[i] + " is to be transferred to:");
+					for(int j = 0; j < tars[i].length; j++)
+					{
+						Debug.writeDebug(tars[i][j] + ";");
+					}
 				}
 			}
 						
@@ -948,9 +1003,6 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		case DatanodeProtocol.DNA_DECODING:
 			// TODO Should we firstly test the connection to the sources
 			//String s1 = "At DataNode.java, in the func: processCommand.";
-			Debug.writeTime();
-			Debug.writeDebug(s);
-			Debug.writeDebug("Here is going to handle the decoding command.");
 			DatanodeInfo[] srcs1 = bcmd.getSources()[0];
 			DatanodeInfo[][] tars1 = bcmd.getTargets();
 			RSGroup group1= bcmd.getGroup();
@@ -961,9 +1013,14 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			//int n = group1.getN();
 			int m = group1.getM();
 			
-			Debug.writeDebug("The pre-decoding group from the command is:" + group1 + ";");
-			Debug.writeDebug("The broken block to be decoded to recover is:" + blocks1[0]);
-			
+			if (LOG.isDebugEnabled()) {
+				Debug.writeTime();
+				Debug.writeDebug(s);
+				Debug.writeDebug("Here is going to handle the decoding command.");
+				Debug.writeDebug("The pre-decoding group from the command is:" + group1 + ";");
+				Debug.writeDebug("The broken block to be decoded to recover is:" + blocks1[0]);
+			}
+
 			int[] NotNull1 = new int[m];
 			int size1 = 0;
 			for(int i = 0; i < srcs1.length; i++)
@@ -981,11 +1038,12 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					count++;
 				}
 			}
-			Debug.writeDebug("We must create " + size1 + " threads to get blocks!");
-			Debug.writeDebug("The NotNull Array is:");
-			for(int i = 0; i < m; i++){
-				Debug.writeDebug(NotNull1[i] + ";");
-			
+			if (LOG.isDebugEnabled()) {
+				Debug.writeDebug("We must create " + size1 + " threads to get blocks!");
+				Debug.writeDebug("The NotNull Array is:");
+				for(int i = 0; i < m; i++){
+					Debug.writeDebug(NotNull1[i] + ";");
+				}
 			}
 			
 			if(count < m)
@@ -1001,17 +1059,19 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 				return false;
 			}
 			
-			Debug.writeDebug("We should fetch the block from the corresponding source node:");
-			for (int i = 0; i < NotNull1.length; i++) {
-				int idx = NotNull1[i];
-				Debug.writeDebug("The " + idx + "th block " + grpBlocks1[idx]
-						+ " is from " + srcs1[idx] + ";");
-			}
-			Debug.writeDebug("The decoded blocks should be transferred to corresponding target nodes:");
-			Debug.writeDebug(blocks1[0] + " is to be transferred to:");
-			for(int i = 0; i < tars1[0].length; i++)
-			{
-				Debug.writeDebug(tars1[0][i] + ";");
+			if (LOG.isDebugEnabled()) {
+				Debug.writeDebug("We should fetch the block from the corresponding source node:");
+				for (int i = 0; i < NotNull1.length; i++) {
+					int idx = NotNull1[i];
+					Debug.writeDebug("The " + idx + "th block " + grpBlocks1[idx]
+							+ " is from " + srcs1[idx] + ";");
+				}
+				Debug.writeDebug("The decoded blocks should be transferred to corresponding target nodes:");
+				Debug.writeDebug(blocks1[0] + " is to be transferred to:");
+				for(int i = 0; i < tars1[0].length; i++)
+				{
+					Debug.writeDebug(tars1[0][i] + ";");
+				}
 			}
 					
 			new codingBlockControlor(blocks1, srcs1, tars1, group1, size1,
@@ -1096,6 +1156,12 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		ExecutorService exec;
 		DFSOutputStream[] outstream;
 		//int time;
+		// Receivers still fetching source blocks for this task
+		private final AtomicInteger liveReceivers = new AtomicInteger();
+		// buffers of the source blocks, taken from the buffer pool
+		private byte[][] buffers;
+		private final AtomicLong bytesRead = new AtomicLong();
+		private long startTime;
 		
 		public codingBlockControlor(Block[] blks, DatanodeInfo[] srcs, 
 				DatanodeInfo[][] tars, RSGroup grp, int nthreads, int t, int[] nn, int idx)
@@ -1115,7 +1181,13 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			final int n = group.getN();
 			final int m = group.getM();
 			//final byte[][] buffers = new byte[n][(int)estimateBlockSize];
-			final byte[][] buffers = new byte[n][BUFFER_SIZE];
+			final byte[][] buffers = new byte[n][];
+			for (int i = 0; i < n; i++) {
+				// missing source blocks are read as zeros
+				buffers[i] = bufferPool.getArray(BUFFER_SIZE);
+				Arrays.fill(buffers[i], (byte) 0);
+			}
+			this.buffers = buffers;
 			final Block[] codingBlocks = group.getCodingBlocks();
 			final Block[] allBlocks = group.getBlocks();
 			final Coder cd = new Coder();
@@ -1188,7 +1260,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 								// We should transfer the redundant block to the targets
 								
 								
-								outstream[i].write(cd.getBuffer(i), 0, BUFFER_SIZE);								
+								outstream[i].writeChunks(cd.getBuffer(i), 0, BUFFER_SIZE);
 							}
 
 							// decoding
@@ -1209,7 +1281,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 							
 							
 							//Debug.writeDebug("The real size of this block is " + realSize);
-							outstream[0].write(cd.getBuffer(0), 0, BUFFER_SIZE);				
+							outstream[0].writeChunks(cd.getBuffer(0), 0, BUFFER_SIZE);
 						}
 						//exec.shutdownNow();
 						// flush buffer
@@ -1229,15 +1301,33 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			});
 			
 			// Just control all the threads to fetch the corresponding blocks
-			Debug.writeDebug("New thread created to process the coding command!");
+			if (LOG.isDebugEnabled()) {
+				Debug.writeDebug("New thread created to process the coding command!");
+			}
 			//Block[] allBlocks = (Block[])group.getBlocks();
 			int tmp;
+			int numReceivers = 0;
+			for (int i = 0; i < m; i++) {
+				if (allBlocks[NotNull[i]].getBlockId() != 0) {
+					numReceivers++;
+				}
+			}
+			// Account for the task before any receiver may finish
+			startTime = now();
+			liveReceivers.set(numReceivers);
+			codingBytesQueued.addAndGet(numReceivers * estimateBlockSize);
+			(task == DatanodeProtocol.DNA_ENCODING ? activeEncodes
+					: activeDecodes).incrementAndGet();
+			if (numReceivers == 0) {
+				finish();
+				return;
+			}
 			for (int i = 0; i < m; i++) {
 				tmp = NotNull[i];
 				if (allBlocks[tmp].getBlockId() != 0) {
 					String name = "Thread_" + i;
 					exec.execute(new codingBlockReceiver(allBlocks[tmp],
-							sources[tmp], buffers[tmp], barrier, name));
+							sources[tmp], buffers[tmp], barrier, name, this));
 				}
 			}
 			// Wait for all the source blocks ready in place(the tmp file)
@@ -1245,6 +1335,36 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					//+ " all the codingBlockReceiver's jobs are done!");	
 			
 		}
+
+		/**
+		 * Called by each receiver once it stops fetching its source block.
+		 */
+		void receiverDone(long bytes) {
+			bytesRead.addAndGet(bytes);
+			if (liveReceivers.decrementAndGet() == 0) {
+				finish();
+			}
+		}
+
+		/**
+		 * Take the task off the coding load and fold its rate into the
+		 * codec throughput reported to the namenode.
+		 */
+		private void finish() {
+			(task == DatanodeProtocol.DNA_ENCODING ? activeEncodes
+					: activeDecodes).decrementAndGet();
+			long elapsed = now() - startTime;
+			if (elapsed > 0 && bytesRead.get() > 0) {
+				long rate = bytesRead.get() * 1000 / elapsed;
+				codingThroughput = codingThroughput == 0 ? rate
+						: (3 * codingThroughput + rate) / 4;
+			}
+			exec.shutdown();
+			// every receiver is done, and with it the last coding round
+			for (int i = 0; i < buffers.length; i++) {
+				bufferPool.returnArray(buffers[i]);
+			}
+		}
 		
 	}
 	
@@ -1261,16 +1381,22 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		private int curRead;
 		private int lastRead;
 		private boolean isLastRead;
+		private codingBlockControlor controlor;
+		// Bytes of this receiver still counted in codingBytesQueued
+		private long queued;
 		
 		//byte[] checksumBuf;
 		public codingBlockReceiver(Block b, DatanodeInfo src, 
-						byte[] buf, CyclicBarrier cb, String s)
+						byte[] buf, CyclicBarrier cb, String s,
+						codingBlockControlor ctrl)
 		{		
 			this.block = b;
 			this.source = src;
 			this.buffer = buf;
 			this.barrier = cb;
 			this.name = s;
+			this.controlor = ctrl;
+			this.queued = estimateBlockSize;
 			this.off = 0;
 			this.curRead = 0;
 			this.lastRead = 0;
@@ -1279,6 +1405,12 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			//times = 0;
 			//this.checksumBuf = csBuf;
 		}
+
+		private void consumed(long len) {
+			long n = Math.min(len, queued);
+			queued -= n;
+			codingBytesQueued.addAndGet(-n);
+		}
 		
 		
 		// TODO We just figure out the request for asking a block to process the
@@ -1369,7 +1501,9 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 
 			}
 			
-			Debug.writeDebug("Create a new BlockReader to send the coding request!");
+			if (LOG.isDebugEnabled()) {
+				Debug.writeDebug("Create a new BlockReader to send the coding request!");
+			}
 			// Here we don't need a file name
 			return new BlockReader((String)null, b.getBlockId(), in, checksum,
 					verifyChecksum, startOffset, firstChunkOffset, sock);
@@ -1377,15 +1511,22 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		
 		public void run()
 		{
-			String s = "At DataNode.java, in the func: codingBlockReceiver.run!";
-			Debug.writeTime();
-			Debug.writeDebug(s);
-			Debug.writeDebug("New codingBlockReceiver " + this.name + " is created!");
+			if (LOG.isDebugEnabled()) {
+				String s = "At DataNode.java, in the func: codingBlockReceiver.run!";
+				Debug.writeTime();
+				Debug.writeDebug(s);
+				Debug.writeDebug("New codingBlockReceiver " + this.name + " is created!");
+			}
 			//DataOutputStream out = null;
 			long red = block.getNumBytes() % BUFFER_SIZE;
 
 			try{
 				reader = sendCodingRst(block, source, 0, -1, BUFFER_SIZE, true);
+				if (reader != null) {
+					// the source datanode does not verify blocks it sends
+					// for coding; this is the one check of the source data
+					reader.useBulkVerification();
+				}
 				//File f = new File(".", block.getBlockName());
 				//out = new DataOutputStream(
 						//new BufferedOutputStream(
@@ -1444,6 +1585,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 						// off += curRead;
 						// }
 						off += buffer.length;
+						consumed(buffer.length);
 						// } else {
 						// barrier.await();
 						// break;
@@ -1470,6 +1612,9 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			} catch(InterruptedException e){
 				Debug.writeDebug(this.name + " is interrupted for some reason!");
 				//return;
+			} finally {
+				consumed(queued);
+				controlor.receiverDone(Math.min(off, estimateBlockSize));
 			}
 		}
 	}
@@ -1686,7 +1831,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					// TODO We add the operation for processing the coding
 					// request from other datanode
 				case OP_CODING_BLOCK:
-					readBlock(in);
+					readBlock(in, op == OP_CODING_BLOCK);
 					myMetrics.readBlockOp.inc(now() - startTime);
 					if (local)
 						myMetrics.readsFromLocalClient.inc();
@@ -1738,15 +1883,18 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		 *            The stream to read from
 		 * @throws IOException
 		 */
-		private void readBlock(DataInputStream in) throws IOException {
+		private void readBlock(DataInputStream in, boolean forCoding)
+				throws IOException {
 			//
 			// Read in the header
 			//
-			String ds = "At DataNode.java, in the func: readBlock";
-			Debug.writeTime();
-			Debug.writeDebug(ds);
 			long blockId = in.readLong();
-			Debug.writeDebug("The block to read has the ID of " + blockId);
+			if (LOG.isDebugEnabled()) {
+				String ds = "At DataNode.java, in the func: readBlock";
+				Debug.writeTime();
+				Debug.writeDebug(ds);
+				Debug.writeDebug("The block to read has the ID of " + blockId);
+			}
 			Block block = new Block(blockId, 0, in.readLong());
 
 			long startOffset = in.readLong();
@@ -1763,6 +1911,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 				try {
 					blockSender = new BlockSender(block, startOffset, length,
 							true, true, false);
+					blockSender.setForCoding(forCoding);
 				} catch (IOException e) {
 					out.writeShort(OP_STATUS_ERROR);
 					throw e;
@@ -2360,6 +2509,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		private long blockInPosition = -1; // updated while using transferTo().
 		private DataInputStream checksumIn; // checksum datastream
 		private DataChecksum checksum; // checksum stream
+		private BulkChecksum bulkChecksum; // verifies whole packets
 		private long offset; // starting position to read
 		private long endOffset; // ending position
 		private long blockLength;
@@ -2372,6 +2522,8 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		private boolean blockReadFully; // set when the whole block is read
 		private boolean verifyChecksum; // if true, check is verified while
 										// reading
+		private boolean forCoding; // if the block is read by a coding task
+		private double sendRate = 0; // recent bytes per nanosecond
 		private Throttler throttler;
 
 		BlockSender(Block block, long startOffset, long length,
@@ -2422,6 +2574,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					bytesPerChecksum = checksum.getBytesPerChecksum();
 				}
 				checksumSize = checksum.getChecksumSize();
+				bulkChecksum = BulkChecksum.newBulkChecksum(checksum);
 
 				if (length < 0) {
 					length = blockLength;
@@ -2569,7 +2722,14 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 				// normal transfer
 				IOUtils.readFully(blockIn, buf, dataOff, len);
 
-				if (verifyChecksum) {
+				if (verifyChecksum && bulkChecksum != null) {
+					int bad = bulkChecksum.verifyChunks(buf, dataOff, len, buf,
+							checksumOff);
+					if (bad >= 0) {
+						throw new ChecksumException("Checksum failed at "
+								+ (offset + bad), len);
+					}
+				} else if (verifyChecksum) {
 					int dOff = dataOff;
 					int cOff = checksumOff;
 					int dLeft = len;
@@ -2666,6 +2826,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			long initialOffset = offset;
 			long totalRead = 0;
 			OutputStream streamForSendChunks = out;
+			ByteBuffer pktBuf = null;
 
 			try {
 				checksum.writeHeader(out);
@@ -2676,6 +2837,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 
 				int maxChunksPerPacket;
 				int pktSize = PKT_HEADER_LEN + SIZE_OF_INTEGER;
+				boolean adaptive = adaptivePacketSize && !forCoding;
 
 				if (transferToAllowed && !verifyChecksum
 						&& baseStream instanceof SocketOutputStream
@@ -2689,9 +2851,10 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					blockInPosition = fileChannel.position();
 					streamForSendChunks = baseStream;
 
-					// assure a mininum buffer size.
-					maxChunksPerPacket = (Math.max(BUFFER_SIZE,
-							MIN_BUFFER_WITH_TRANSFERTO)
+					// assure a mininum buffer size. A coding task reads
+					// BUFFER_SIZE per round, so give it one round a packet.
+					maxChunksPerPacket = ((forCoding ? BUFFER_SIZE : Math
+							.max(BUFFER_SIZE, MIN_BUFFER_WITH_TRANSFERTO))
 							+ bytesPerChecksum - 1)
 							/ bytesPerChecksum;
 
@@ -2705,11 +2868,27 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 							* maxChunksPerPacket;
 				}
 
-				ByteBuffer pktBuf = ByteBuffer.allocate(pktSize);
+				// room for the largest packet the size may adapt to
+				int chunksPerPacket = maxChunksPerPacket;
+				if (adaptive) {
+					int perChunk = (pktSize - PKT_HEADER_LEN - SIZE_OF_INTEGER)
+							/ maxChunksPerPacket;
+					maxChunksPerPacket = Math.max(maxChunksPerPacket,
+							maxPacketSize / bytesPerChecksum);
+					pktSize = PKT_HEADER_LEN + SIZE_OF_INTEGER + perChunk
+							* maxChunksPerPacket;
+				}
+				pktBuf = bufferPool.getBuffer(pktSize);
 
 				while (endOffset > offset) {
-					long len = sendChunks(pktBuf, maxChunksPerPacket,
+					long sendStart = System.nanoTime();
+					long len = sendChunks(pktBuf, chunksPerPacket,
 							streamForSendChunks);
+					if (adaptive) {
+						chunksPerPacket = getNextPacketChunks(chunksPerPacket,
+								maxChunksPerPacket, len, System.nanoTime()
+										- sendStart);
+					}
 					offset += len;
 					totalRead += len
 							+ ((len + bytesPerChecksum - 1) / bytesPerChecksum * checksumSize);
@@ -2718,6 +2897,9 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 				out.writeInt(0); // mark the end of block
 				out.flush();
 			} finally {
+				if (pktBuf != null) {
+					bufferPool.returnBuffer(pktBuf);
+				}
 				close();
 			}
 
@@ -2729,6 +2911,30 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		boolean isBlockReadFully() {
 			return blockReadFully;
 		}
+
+		void setForCoding(boolean forCoding) {
+			this.forCoding = forCoding;
+		}
+
+		/**
+		 * Size the next packet so that it goes out in about
+		 * dfs.datanode.packet.target.ms at the recent send rate, changing by
+		 * at most a factor of two per packet. A throttled or slow link gets
+		 * small packets, a fast one large packets.
+		 */
+		private int getNextPacketChunks(int chunks, int maxChunks, long bytes,
+				long nanos) {
+			if (bytes <= 0 || nanos <= 0) {
+				return chunks;
+			}
+			double rate = (double) bytes / nanos;
+			sendRate = (sendRate == 0) ? rate : 0.75 * sendRate + 0.25 * rate;
+			long wanted = (long) (sendRate * packetTargetNanos)
+					/ bytesPerChecksum;
+			wanted = Math.max(wanted, chunks / 2);
+			wanted = Math.min(wanted, 2L * chunks);
+			return (int) Math.max(1, Math.min(wanted, maxChunks));
+		}
 	}
 
 	// This information is cached by the Datanode in the ackQueue
@@ -3053,6 +3259,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		private DataInputStream in = null; // from where data are read
 		private DataChecksum checksum; // from where chunks of a block can be
 										// read
+		private BulkChecksum bulkChecksum; // verifies whole packets
 		private OutputStream out = null; // to block file at local disk
 		private DataOutputStream checksumOut = null; // to crc file at local
 														// disk
@@ -3068,6 +3275,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		private Daemon responder = null;
 		private Throttler throttler;
 		private FSDataset.BlockWriteStreams streams;
+		private FSDataset.FSVolume volume; // the volume being written
 		private boolean isRecovery = false;
 		private String clientName;
 		DatanodeInfo srcDataNode = null;
@@ -3086,6 +3294,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 				this.checksum = DataChecksum.newDataChecksum(in);
 				this.bytesPerChecksum = checksum.getBytesPerChecksum();
 				this.checksumSize = checksum.getChecksumSize();
+				this.bulkChecksum = BulkChecksum.newBulkChecksum(checksum);
 				//
 				// Open local disk out
 				//
@@ -3096,6 +3305,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					this.checksumOut = new DataOutputStream(
 							new BufferedOutputStream(streams.checksumOut,
 									SMALL_BUFFER_SIZE));
+					this.volume = data.getVolumeFromBlock(block);
 				}
 			} catch (IOException ioe) {
 				IOUtils.closeStream(this);
@@ -3175,28 +3385,20 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 		 */
 		private void verifyChunks(byte[] dataBuf, int dataOff, int len,
 				byte[] checksumBuf, int checksumOff) throws IOException {
+			if (bulkChecksum != null) {
+				if (bulkChecksum.verifyChunks(dataBuf, dataOff, len,
+						checksumBuf, checksumOff) >= 0) {
+					reportChecksumMismatch();
+				}
+				return;
+			}
 			while (len > 0) {
 				int chunkLen = Math.min(len, bytesPerChecksum);
 
 				checksum.update(dataBuf, dataOff, chunkLen);
 
 				if (!checksum.compare(checksumBuf, checksumOff)) {
-					if (srcDataNode != null) {
-						try {
-							LOG.info("report corrupt block " + block
-									+ " from datanode " + srcDataNode
-									+ " to namenode");
-							LocatedBlock lb = new LocatedBlock(block,
-									new DatanodeInfo[] { srcDataNode });
-							namenode.reportBadBlocks(new LocatedBlock[] { lb });
-						} catch (IOException e) {
-							LOG.warn("Failed to report bad block " + block
-									+ " from datanode " + srcDataNode
-									+ " to namenode");
-						}
-					}
-					throw new IOException("Unexpected checksum mismatch "
-							+ "while writing " + block + " from " + inAddr);
+					reportChecksumMismatch();
 				}
 
 				checksum.reset();
@@ -3206,6 +3408,29 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			}
 		}
 
+		/**
+		 * Report the block to the namenode if it came from another datanode,
+		 * and fail the write.
+		 */
+		private void reportChecksumMismatch() throws IOException {
+			if (srcDataNode != null) {
+				try {
+					LOG.info("report corrupt block " + block
+							+ " from datanode " + srcDataNode
+							+ " to namenode");
+					LocatedBlock lb = new LocatedBlock(block,
+							new DatanodeInfo[] { srcDataNode });
+					namenode.reportBadBlocks(new LocatedBlock[] { lb });
+				} catch (IOException e) {
+					LOG.warn("Failed to report bad block " + block
+							+ " from datanode " + srcDataNode
+							+ " to namenode");
+				}
+			}
+			throw new IOException("Unexpected checksum mismatch "
+					+ "while writing " + block + " from " + inAddr);
+		}
+
 		/**
 		 * Makes sure buf.position() is zero without modifying buf.remaining().
 		 * It moves the data if position needs to be changed.
@@ -3277,7 +3502,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 				int chunksPerPacket = (writePacketSize - PKT_HEADER_LEN
 						- SIZE_OF_INTEGER + chunkSize - 1)
 						/ chunkSize;
-				buf = ByteBuffer.allocate(PKT_HEADER_LEN + SIZE_OF_INTEGER
+				buf = bufferPool.getBuffer(PKT_HEADER_LEN + SIZE_OF_INTEGER
 						+ Math.max(chunksPerPacket, 1) * chunkSize);
 				buf.limit(0);
 			}
@@ -3326,11 +3551,13 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					spaceLeft = buf.capacity() - buf.limit();
 				}
 				if (toRead > spaceLeft) {
-					byte oldBuf[] = buf.array();
+					ByteBuffer oldBuf = buf;
 					int toCopy = buf.limit();
-					buf = ByteBuffer.allocate(toCopy + toRead);
-					System.arraycopy(oldBuf, 0, buf.array(), 0, toCopy);
+					buf = bufferPool.getBuffer(toCopy + toRead);
+					System.arraycopy(oldBuf.array(), 0, buf.array(), 0, toCopy);
 					buf.limit(toCopy);
+					buf.position(oldBuf.position());
+					bufferPool.returnBuffer(oldBuf);
 				}
 
 				// now read:
@@ -3401,6 +3628,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 						+ offsetInBlock + ": " + len);
 			}
 
+			long writeStart = 0;
 			if (len == 0) {
 				LOG.debug("Receiving empty packet for block " + block);
 			} else {
@@ -3422,6 +3650,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 
 				verifyChunks(pktBuf, dataOff, len, pktBuf, checksumOff);
 
+				writeStart = System.nanoTime();
 				try {
 					if (!finalized) {
 						// finally write to the disk :
@@ -3437,6 +3666,10 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 
 			// / flush entire packet before sending ack
 			flush();
+			if (writeStart > 0 && volume != null && !finalized) {
+				volume.updateWriteLatency((System.nanoTime() - writeStart)
+						/ 1000);
+			}
 
 			// put in queue for pending acks
 			if (responder != null) {
@@ -3532,6 +3765,10 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 					}
 					responder = null;
 				}
+				if (buf != null) {
+					bufferPool.returnBuffer(buf);
+					buf = null;
+				}
 			}
 		}
 
@@ -3857,6 +4094,54 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 				StartupOption.REGULAR.toString()));
 	}
 
+	/**
+	 * Send the list of all the blocks on the datanode.
+	 */
+	private DatanodeCommand sendFullBlockReport(long startTime)
+			throws IOException {
+		long brStartTime = now();
+		// the drained changes are only in this report: until the namenode
+		// takes it, the next report has to be a full one
+		lastFullBlockReport = 0;
+		// changes from here on go into the next delta; a block finalized
+		// while the volumes are scanned may be reported twice, which the
+		// namenode ignores
+		data.getBlockReportDelta(new ArrayList<Block>(),
+				new ArrayList<Block>());
+		Block[] bReport = data.getBlockReport();
+		DatanodeCommand cmd = namenode.blockReport(dnRegistration,
+				new PackedBlockList(bReport));
+		lastFullBlockReport = startTime;
+		long brTime = now() - brStartTime;
+		myMetrics.blockReports.inc(brTime);
+		LOG.info("BlockReport of " + bReport.length
+				+ " blocks got processed in " + brTime + " msecs");
+		return cmd;
+	}
+
+	/**
+	 * Send the blocks finalized and removed since the last block report. If
+	 * the namenode does not take it, the changes are lost, so the next
+	 * report is a full one.
+	 */
+	private DatanodeCommand sendBlockReportDelta() throws IOException {
+		long brStartTime = now();
+		List<Block> added = new ArrayList<Block>();
+		List<Block> removed = new ArrayList<Block>();
+		data.getBlockReportDelta(added, removed);
+		long lastFull = lastFullBlockReport;
+		lastFullBlockReport = 0;
+		DatanodeCommand cmd = namenode.blockReportDelta(dnRegistration,
+				new PackedBlockList(added), new PackedBlockList(removed));
+		lastFullBlockReport = lastFull;
+		long brTime = now() - brStartTime;
+		myMetrics.blockReports.inc(brTime);
+		LOG.info("BlockReport delta of " + added.size() + " added and "
+				+ removed.size() + " removed blocks got processed in "
+				+ brTime + " msecs");
+		return cmd;
+	}
+
 	/**
 	 * This methods arranges for the data node to send the block report at the
 	 * next heartbeat.
@@ -3869,6 +4154,7 @@ public class DataNode extends Configured implements InterDatanodeProtocol,
 			lastBlockReport = lastHeartbeat - blockReportInterval;
 		}
 		resetBlockReportTime = true; // reset future BRs for randomness
+		lastFullBlockReport = 0; // the namenode needs a full report
 	}
 
 	/**
@@ -180,6 +180,12 @@ public class DatanodeDescriptor extends DatanodeInfo {
 	private BlockCodingQueue encodingBlocks = new BlockCodingQueue();	
 	private BlockCodingQueue decodingBlocks = new BlockCodingQueue();
 	// TODO 
+
+	// Coding load as last reported by the datanode
+	private int activeEncodes = 0;
+	private int activeDecodes = 0;
+	private long codingBytesQueued = 0;
+	private long codingThroughput = 0; // bytes per second
 	
 	boolean processedBlockReport = false;
 
@@ -313,6 +319,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
 		this.xceiverCount = 0;
 		this.blockList = null;
 		this.invalidateBlocks.clear();
+		updateCodingLoad(0, 0, 0L, 0L);
 	}
 
 	int numBlocks() {
@@ -331,6 +338,50 @@ public class DatanodeDescriptor extends DatanodeInfo {
 		rollBlocksScheduled(lastUpdate);
 	}
 
+	/**
+	 * Record the coding load reported with the heartbeat.
+	 */
+	void updateCodingLoad(int activeEncodes, int activeDecodes,
+			long codingBytesQueued, long codingThroughput) {
+		this.activeEncodes = activeEncodes;
+		this.activeDecodes = activeDecodes;
+		this.codingBytesQueued = codingBytesQueued;
+		this.codingThroughput = codingThroughput;
+	}
+
+	/**
+	 * The number of coding tasks running on the datanode or waiting to be
+	 * sent to it.
+	 */
+	int getCodingLoad() {
+		return activeEncodes + activeDecodes + encodingBlocks.size()
+				+ decodingBlocks.size();
+	}
+
+	/** The number of coding tasks running on the datanode. */
+	int getActiveCodingTasks() {
+		return activeEncodes + activeDecodes;
+	}
+
+	/**
+	 * Estimated time in msec for the datanode to read the source bytes of
+	 * its running coding tasks. Until the datanode has measured its
+	 * throughput, 1MB per second is assumed.
+	 */
+	long getCodingBacklog() {
+		return estimateCodingTime(0);
+	}
+
+	/**
+	 * Estimated time in msec for the datanode to read the given number of
+	 * source bytes after the ones it has already queued.
+	 */
+	long estimateCodingTime(long bytes) {
+		long throughput = codingThroughput > 0 ? codingThroughput
+				: 1024 * 1024;
+		return (codingBytesQueued + bytes) * 1000 / throughput;
+	}
+
 	/**
 	 * Iterates over the list of blocks belonging to the data-node.
 	 */
@@ -452,7 +503,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
 				.poll(maxTransfers);
 		// TODO for test
 		String s = "At DatanodeDescriptor.java, in the func: getReplicationCommand";
-		if (blocktargetlist != null) {
+		if (blocktargetlist != null && FSNamesystem.LOG.isDebugEnabled()) {
 			Debug.writeTime();
 			Debug.writeDebug(s);
 			for (int i = 0; i < blocktargetlist.size(); i++) {
@@ -497,37 +548,39 @@ public class DatanodeDescriptor extends DatanodeInfo {
 			return null;
 		}
 		
-		String s = "At DatanodeDescriptor.java, in the func: getEncodingCommand";
-		Debug.writeTime();
-		Debug.writeDebug(s);
-		
-		DatanodeDescriptor[] sources = p.getSources();
-		DatanodeDescriptor[][] targets = p.getTargets();
-		RSGroup group = p.getGroup();
-		Block[] blks = p.getBlocks();
-		
-		int rep = targets.length / blks.length; // The replication num
-		
-		Debug.writeDebug("We get a new encoding command:");
-		Debug.writeDebug("The pre-encoding group is:" + group + ";");
-		Debug.writeDebug("The Blocks to be encoded is:");
-		for(int i = 0; i < blks.length; i++)
-		{
-			Debug.writeDebug(blks[i] + ";");
-		}
-		Debug.writeDebug("The sources come from:");
-		for(int i = 0; i < sources.length; i++)
-		{
-			Debug.writeDebug("Source " + i + ": " + sources[i]);
-		}
-		Debug.writeDebug("The targets go to:");
-		for(int i = 0; i < blks.length; i++)
-		{
-			Debug.writeDebug("The targets for " + blks[i] + " is:");
-			for(int j = 0; j < rep; j++)
+		if (FSNamesystem.LOG.isDebugEnabled()) {
+			String s = "At DatanodeDescriptor.java, in the func: getEncodingCommand";
+			Debug.writeTime();
+			Debug.writeDebug(s);
+
+			DatanodeDescriptor[] sources = p.getSources();
+			DatanodeDescriptor[][] targets = p.getTargets();
+			RSGroup group = p.getGroup();
+			Block[] blks = p.getBlocks();
+
+			int rep = targets.length / blks.length; // The replication num
+
+			Debug.writeDebug("We get a new encoding command:");
+			Debug.writeDebug("The pre-encoding group is:" + group + ";");
+			Debug.writeDebug("The Blocks to be encoded is:");
+			for(int i = 0; i < blks.length; i++)
 			{
-				//Debug.writeDebug(targets[j + i * rep] + ";");
-				Debug.writeDebug(targets[i][j] + ";");
+				Debug.writeDebug(blks[i] + ";");
+			}
+			Debug.writeDebug("The sources come from:");
+			for(int i = 0; i < sources.length; i++)
+			{
+				Debug.writeDebug("Source " + i + ": " + sources[i]);
+			}
+			Debug.writeDebug("The targets go to:");
+			for(int i = 0; i < blks.length; i++)
+			{
+				Debug.writeDebug("The targets for " + blks[i] + " is:");
+				for(int j = 0; j < rep; j++)
+				{
+					//Debug.writeDebug(targets[j + i * rep] + ";");
+					Debug.writeDebug(targets[i][j] + ";");
+				}
 			}
 		}
 		BlockCommand cmd = new BlockCommand(DatanodeProtocol.DNA_ENCODING, p);
@@ -542,38 +595,40 @@ public class DatanodeDescriptor extends DatanodeInfo {
 			return null;
 		}
 
-		String s = "At DatanodeDescriptor.java, in the func: getDecodingCommand.";
-		Debug.writeTime();
-		Debug.writeDebug(s);
-		
-		DatanodeDescriptor[] sources = p.getSources();
-		DatanodeDescriptor[][] targets = p.getTargets();
-		RSGroup group = p.getGroup();
-		Block[] blks = p.getBlocks();
-		Block[] grpBlks = group.getBlocks();
-
-		Debug.writeDebug("We get a new decoding command!");	
-		Debug.writeDebug("The pre-decoding group is:" + group + ";");
-		Debug.writeDebug("The Blocks to be decoded to recover is:" + blks[0] + ";");
-
-		Debug.writeDebug("The sources come from:");
-		for(int i = 0; i < sources.length; i++)
-		{
-			if (sources[i] != null){
-				if (sources[i].getName() != "NullForCode")
-					Debug.writeDebug("Source " + i + " to get blocks:"
-							+ grpBlks[i] + ": " + sources[i]);
-				else
-					break;
+		if (FSNamesystem.LOG.isDebugEnabled()) {
+			String s = "At DatanodeDescriptor.java, in the func: getDecodingCommand.";
+			Debug.writeTime();
+			Debug.writeDebug(s);
+
+			DatanodeDescriptor[] sources = p.getSources();
+			DatanodeDescriptor[][] targets = p.getTargets();
+			RSGroup group = p.getGroup();
+			Block[] blks = p.getBlocks();
+			Block[] grpBlks = group.getBlocks();
+
+			Debug.writeDebug("We get a new decoding command!");
+			Debug.writeDebug("The pre-decoding group is:" + group + ";");
+			Debug.writeDebug("The Blocks to be decoded to recover is:" + blks[0] + ";");
+
+			Debug.writeDebug("The sources come from:");
+			for(int i = 0; i < sources.length; i++)
+			{
+				if (sources[i] != null){
+					if (sources[i].getName() != "NullForCode")
+						Debug.writeDebug("Source " + i + " to get blocks:"
+								+ grpBlks[i] + ": " + sources[i]);
+					else
+						break;
+				}
 			}
-		}
 
-		Debug.writeDebug("The targets for recovered block " + blks[0] + " is:");
-		for(int i = 0; i < targets[0].length; i++)
-		{
-				Debug.writeDebug(targets[0][i] + ";");
+			Debug.writeDebug("The targets for recovered block " + blks[0] + " is:");
+			for(int i = 0; i < targets[0].length; i++)
+			{
+					Debug.writeDebug(targets[0][i] + ";");
+			}
 		}
-		
+
 		BlockCommand cmd = new BlockCommand(DatanodeProtocol.DNA_DECODING, p);
 		return cmd == null ? null : cmd;
 	}
@@ -617,7 +672,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
 		return blockarray;
 	}
 
-	void reportDiff(BlocksMap blocksMap, BlockListAsLongs newReport,
+	void reportDiff(BlocksMap blocksMap, PackedBlockList newReport,
 			Collection<Block> toAdd, Collection<Block> toRemove,
 			Collection<Block> toInvalidate) {
 		// place a deilimiter in the list which separates blocks
@@ -626,7 +681,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
 		boolean added = this.addBlock(delimiter);
 		assert added : "Delimiting block cannot be present in the node";
 		if (newReport == null)
-			newReport = new BlockListAsLongs(new long[0]);
+			newReport = new PackedBlockList();
 		// scan the report and collect newly reported blocks
 		// Note we are taking special precaution to limit tmp blocks allocated
 		// as part this block report - which why block list is stored as longs
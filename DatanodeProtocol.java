@@ -31,9 +31,10 @@ import org.apache.hadoop.ipc.VersionedProtocol;
  **********************************************************************/
 interface DatanodeProtocol extends VersionedProtocol {
   /**
-   * 16: Block parameter added to nextGenerationStamp().
+   * 20: blockReport(), blockReportDelta() and blockReceived() send their
+   *     blocks as a PackedBlockList.
    */
-  public static final long versionID = 16L;
+  public static final long versionID = 20L;
   
   // error code
   final static int NOTIFY = 0;
@@ -71,15 +72,23 @@ interface DatanodeProtocol extends VersionedProtocol {
   /**
    * sendHeartbeat() tells the NameNode that the DataNode is still
    * alive and well.  Includes some status info, too. 
-   * It also gives the NameNode a chance to return a "DatanodeCommand" object.
+   * It also gives the NameNode a chance to return an array of
+   * "DatanodeCommand" objects.
    * A DatanodeCommand tells the DataNode to invalidate local block(s), 
    * or to copy them to other DataNodes, etc.
+   * The coding load (active encoding and decoding tasks, source bytes
+   * still to be read by them and the recent codec throughput in bytes
+   * per second) is used to spread coding work across DataNodes.
    */
-  public DatanodeCommand sendHeartbeat(DatanodeRegistration registration,
+  public DatanodeCommand[] sendHeartbeat(DatanodeRegistration registration,
                                        long capacity,
                                        long dfsUsed, long remaining,
                                        int xmitsInProgress,
-                                       int xceiverCount) throws IOException;
+                                       int xceiverCount,
+                                       int activeEncodes,
+                                       int activeDecodes,
+                                       long codingBytesQueued,
+                                       long codingThroughput) throws IOException;
 
   /**
    * blockReport() tells the NameNode about all the locally-stored blocks.
@@ -88,15 +97,31 @@ interface DatanodeProtocol extends VersionedProtocol {
    * the locally-stored blocks.  It's invoked upon startup and then
    * infrequently afterwards.
    * @param registration
-   * @param blocks - the block list as an array of longs.
-   *     Each block is represented as 2 longs.
+   * @param blocks - the block list packed into parallel arrays of longs.
    *     This is done instead of Block[] to reduce memory used by block reports.
    *     
    * @return - the next command for DN to process.
    * @throws IOException
    */
   public DatanodeCommand blockReport(DatanodeRegistration registration,
-                                     long[] blocks) throws IOException;
+                                     PackedBlockList blocks) throws IOException;
+
+  /**
+   * blockReportDelta() tells the NameNode about the blocks the DataNode
+   * finalized and removed since its last block report, full or delta.
+   * It is sent between full block reports, which remain the safety net:
+   * the NameNode only reconciles the listed blocks, and refuses a delta
+   * from a DataNode whose full report it has not processed yet.
+   * @param registration
+   * @param added - the blocks finalized
+   * @param removed - the blocks removed
+   * @return - the next command for DN to process.
+   * @throws IOException
+   */
+  public DatanodeCommand blockReportDelta(DatanodeRegistration registration,
+                                          PackedBlockList added,
+                                          PackedBlockList removed
+                                          ) throws IOException;
     
   /**
    * blockReceived() allows the DataNode to tell the NameNode about
@@ -107,7 +132,7 @@ interface DatanodeProtocol extends VersionedProtocol {
    * this DataNode, it will call blockReceived().
    */
   public void blockReceived(DatanodeRegistration registration,
-                            Block blocks[],
+                            PackedBlockList blocks,
                             String[] delHints) throws IOException;
 
   /**
@@ -192,9 +192,10 @@ public interface FSConstants {
   // Version is reflected in the data storage file.
   // Versions are negative.
   // Decrement LAYOUT_VERSION to define a new version.
-  public static final int LAYOUT_VERSION = -16;
+  public static final int LAYOUT_VERSION = -17;
   // Current version: 
-  // Change edit log and fsimage to support quotas
+  // Store the redundant blocks of files and the RS layout in the edit log
+  // and fsimage
   
   // TODO robinӵĴ룬
   // 1. RSn  ܿ
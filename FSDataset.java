@@ -19,12 +19,19 @@
 
 	import java.io.*;
 	import java.util.*;
+	import java.util.concurrent.Callable;
+	import java.util.concurrent.ConcurrentHashMap;
+	import java.util.concurrent.ExecutionException;
+	import java.util.concurrent.ExecutorService;
+	import java.util.concurrent.Executors;
+	import java.util.concurrent.Future;
 	import javax.management.NotCompliantMBeanException;
 	import javax.management.ObjectName;
 	import javax.management.StandardMBean;
 	import org.apache.hadoop.conf.*;
 	import org.apache.hadoop.dfs.datanode.metrics.FSDatasetMBean;
 	import org.apache.hadoop.fs.*;
+	import org.apache.hadoop.io.IOUtils;
 	import org.apache.hadoop.metrics.util.MBeanUtil;
 	import org.apache.hadoop.util.DiskChecker;
 	import org.apache.hadoop.util.DiskChecker.DiskErrorException;
@@ -80,8 +87,18 @@
 				}
 			}
 
+			/**
+			 * Build a node from a volume map cache, without listing the
+			 * directory.
+			 */
+			FSDir(File dir, int numBlocks, FSDir[] children) {
+				this.dir = dir;
+				this.numBlocks = numBlocks;
+				this.children = children;
+			}
+
 			public File addBlock(Block b, File src) throws IOException {
-				// First try without creating subdirectories
+				// First try without creating subdirectories
 				File file = addBlock(b, src, false, false);
 				return (file != null) ? file : addBlock(b, src, true, true);
 			}
@@ -138,29 +155,47 @@
 			}
 
 			/**
-			 * Find the metadata file for the specified block file. Return the
-			 * generation stamp from the name of the metafile.
+			 * Map the name of each block file in a directory listing to the
+			 * generation stamp in the name of its metafile, so that a
+			 * directory is listed only once to pair blocks and metafiles.
 			 */
-			long getGenerationStampFromFile(File[] listdir, File blockFile) {
-				String blockName = blockFile.getName();
+			Map<String, Long> getGenerationStamps(File[] listdir) {
+				Map<String, Long> genStamps = new HashMap<String, Long>();
 				for (int j = 0; j < listdir.length; j++) {
 					String path = listdir[j].getName();
-					if (!path.startsWith(blockName)) {
+					if (!path.endsWith(METADATA_EXTENSION)) {
 						continue;
 					}
 					String[] vals = path.split("_");
-					if (vals.length != 3) { // blk, blkid, genstamp.meta
+					if (vals.length != 3) { // blk, blkid, genstamp.meta
 						continue;
 					}
 					String[] str = vals[2].split("\\.");
 					if (str.length != 2) {
 						continue;
 					}
-					return Long.parseLong(str[0]);
+					try {
+						genStamps.put(vals[0] + "_" + vals[1], Long
+								.valueOf(str[0]));
+					} catch (NumberFormatException ignored) {
+					}
+				}
+				return genStamps;
+			}
+
+			/**
+			 * Return the generation stamp of a block file from the
+			 * generation stamps of its directory.
+			 */
+			long getGenerationStamp(Map<String, Long> genStamps,
+					File blockFile) {
+				Long genStamp = genStamps.get(blockFile.getName());
+				if (genStamp == null) {
+					DataNode.LOG.warn("Block " + blockFile
+							+ " does not have a metafile!");
+					return Block.GRANDFATHER_GENERATION_STAMP;
 				}
-				DataNode.LOG.warn("Block " + blockFile
-						+ " does not have a metafile!");
-				return Block.GRANDFATHER_GENERATION_STAMP;
+				return genStamp.longValue();
 			}
 
 			/**
@@ -175,9 +210,10 @@
 				}
 
 				File blockFiles[] = dir.listFiles();
+				Map<String, Long> genStamps = getGenerationStamps(blockFiles);
 				for (int i = 0; i < blockFiles.length; i++) {
 					if (Block.isBlockFilename(blockFiles[i])) {
-						long genStamp = getGenerationStampFromFile(blockFiles,
+						long genStamp = getGenerationStamp(genStamps,
 								blockFiles[i]);
 						blockSet.add(new Block(blockFiles[i], blockFiles[i]
 								.length(), genStamp));
@@ -185,7 +221,7 @@
 				}
 			}
 
-			void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap,
+			void getVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap,
 					FSVolume volume) {
 				if (children != null) {
 					for (int i = 0; i < children.length; i++) {
@@ -194,9 +230,10 @@
 				}
 
 				File blockFiles[] = dir.listFiles();
+				Map<String, Long> genStamps = getGenerationStamps(blockFiles);
 				for (int i = 0; i < blockFiles.length; i++) {
 					if (Block.isBlockFilename(blockFiles[i])) {
-						long genStamp = getGenerationStampFromFile(blockFiles,
+						long genStamp = getGenerationStamp(genStamps,
 								blockFiles[i]);
 						volumeMap.put(new Block(blockFiles[i], blockFiles[i]
 								.length(), genStamp), new DatanodeBlockInfo(
@@ -205,6 +242,43 @@
 				}
 			}
 
+			/**
+			 * Write the blocks of this directory tree, grouped by directory,
+			 * to a volume map cache.
+			 */
+			void saveVolumeMap(DataOutputStream out, String path,
+					Map<File, List<Block>> blocksByDir) throws IOException {
+				List<Block> blocks = blocksByDir.get(dir);
+				out.writeUTF(path);
+				out.writeInt(blocks == null ? 0 : blocks.size());
+				if (blocks != null) {
+					for (Block b : blocks) {
+						out.writeLong(b.getBlockId());
+						out.writeLong(b.getNumBytes());
+						out.writeLong(b.getGenerationStamp());
+					}
+				}
+				if (children != null) {
+					for (int i = 0; i < children.length; i++) {
+						children[i].saveVolumeMap(out, path + "/"
+								+ children[i].dir.getName(), blocksByDir);
+					}
+				}
+			}
+
+			/**
+			 * Return the number of directories in this tree.
+			 */
+			int countDirs() {
+				int count = 1;
+				if (children != null) {
+					for (int i = 0; i < children.length; i++) {
+						count += children[i].countDirs();
+					}
+				}
+				return count;
+			}
+
 			/**
 			 * check if a data diretory is healthy
 			 * 
@@ -284,6 +358,10 @@
 
 		class FSVolume {
 			static final double USABLE_DISK_PCT_DEFAULT = 0.98f;
+			// the write latency halves every this many milliseconds without
+			// writes
+			static final long LATENCY_HALF_LIFE = 60 * 1000;
+			static final int VOLUME_MAP_CACHE_VERSION = 1;
 
 			private FSDir dataDir;
 			private File tmpDir;
@@ -292,12 +370,27 @@
 			private DU dfsUsage;
 			private long reserved;
 			private double usableDiskPct = USABLE_DISK_PCT_DEFAULT;
+			// blocks of the volume saved at the last clean shutdown
+			private File volumeMapCache;
+			private boolean useVolumeMapCache;
+			// blocks read from the cache, until they go to the volume map
+			private Map<Block, DatanodeBlockInfo> cachedBlocks = null;
+			// block writes in progress on this volume
+			private int activeWriters = 0;
+			// average time in microseconds to write and flush a packet
+			private long writeLatency = 0;
+			// when writeLatency was last updated
+			private long latencyUpdated = 0;
+			private final Object statsLock = new Object();
 
 			FSVolume(File currentDir, Configuration conf) throws IOException {
 				this.reserved = conf.getLong("dfs.datanode.du.reserved", 0);
 				this.usableDiskPct = conf.getFloat("dfs.datanode.du.pct",
 						(float) USABLE_DISK_PCT_DEFAULT);
 				File parent = currentDir.getParentFile();
+				this.volumeMapCache = new File(parent, "volumemap.cache");
+				this.useVolumeMapCache = conf.getBoolean(
+						"dfs.datanode.volume.map.cache", false);
 
 				this.detachDir = new File(parent, "detach");
 				if (detachDir.exists()) {
@@ -310,7 +403,16 @@
 				if (tmpDir.exists()) {
 					FileUtil.fullyDelete(tmpDir);
 				}
-				this.dataDir = new FSDir(currentDir);
+				if (useVolumeMapCache) {
+					cachedBlocks = new HashMap<Block, DatanodeBlockInfo>();
+					this.dataDir = loadVolumeMap(currentDir, cachedBlocks);
+					if (dataDir == null) {
+						cachedBlocks = null;
+					}
+				}
+				if (dataDir == null) {
+					this.dataDir = new FSDir(currentDir);
+				}
 				if (!tmpDir.mkdirs()) {
 					if (!tmpDir.isDirectory()) {
 						throw new IOException("Mkdirs failed to create "
@@ -353,6 +455,56 @@
 				return usage.getMount();
 			}
 
+			void addWriter() {
+				synchronized (statsLock) {
+					activeWriters++;
+				}
+			}
+
+			void removeWriter() {
+				synchronized (statsLock) {
+					if (activeWriters > 0) {
+						activeWriters--;
+					}
+				}
+			}
+
+			int getActiveWriters() {
+				synchronized (statsLock) {
+					return activeWriters;
+				}
+			}
+
+			/**
+			 * Fold the time taken to write a packet to this volume into its
+			 * average write latency.
+			 */
+			void updateWriteLatency(long micros) {
+				long now = System.currentTimeMillis();
+				synchronized (statsLock) {
+					long old = decayedWriteLatency(now);
+					writeLatency = (old == 0) ? micros : (7 * old + micros) / 8;
+					latencyUpdated = now;
+				}
+			}
+
+			long getWriteLatency() {
+				long now = System.currentTimeMillis();
+				synchronized (statsLock) {
+					return decayedWriteLatency(now);
+				}
+			}
+
+			/*
+			 * A volume found slow gets no more writes, so nothing would
+			 * update its average. Let it fade while the volume is idle, so
+			 * that it gets a write again and is measured afresh.
+			 */
+			private long decayedWriteLatency(long now) {
+				long halvings = (now - latencyUpdated) / LATENCY_HALF_LIFE;
+				return (halvings >= 63) ? 0 : writeLatency >> halvings;
+			}
+
 			File getDir() {
 				return dataDir.dir;
 			}
@@ -409,7 +561,11 @@
 				return f;
 			}
 
-			File addBlock(Block b, File f) throws IOException {
+			/**
+			 * Move a finished block into the directory tree. Changes to the
+			 * tree of a volume are serialized on the volume.
+			 */
+			synchronized File addBlock(Block b, File f) throws IOException {
 				File blockFile = dataDir.addBlock(b, f);
 				File metaFile = getMetaFile(blockFile, b);
 				dfsUsage.incDfsUsed(b.getNumBytes() + metaFile.length());
@@ -425,11 +581,172 @@
 				dataDir.getBlockInfo(blockSet);
 			}
 
-			void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
+			/**
+			 * Add the blocks of this volume to the volume map, from the cache
+			 * saved at the last clean shutdown if it was still valid when the
+			 * volume was opened, or else by scanning the directory tree.
+			 */
+			void getVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap) {
+				if (cachedBlocks != null) {
+					volumeMap.putAll(cachedBlocks);
+					cachedBlocks = null;
+					DataNode.LOG.info("Loaded the blocks of volume " + this
+							+ " from " + volumeMapCache);
+					return;
+				}
 				dataDir.getVolumeMap(volumeMap, this);
 			}
 
-			void clearPath(File f) {
+			/**
+			 * Read the volume map cache and build the directory tree from it,
+			 * so that the volume is neither listed nor scanned. The cache is
+			 * removed once read, so that it is never used after the volume
+			 * changes.
+			 * 
+			 * @return the directory tree, or null if there is no valid cache
+			 */
+			private FSDir loadVolumeMap(File currentDir,
+					Map<Block, DatanodeBlockInfo> volumeMap) {
+				if (!volumeMapCache.exists()) {
+					return null;
+				}
+				DataInputStream in = null;
+				try {
+					in = new DataInputStream(new BufferedInputStream(
+							new FileInputStream(volumeMapCache)));
+					if (in.readInt() != VOLUME_MAP_CACHE_VERSION) {
+						return null;
+					}
+					long cacheTime = in.readLong();
+					int numDirs = in.readInt();
+					Map<String, List<Block>> cached = new HashMap<String, List<Block>>();
+					Map<String, List<String>> subdirs = new HashMap<String, List<String>>();
+					for (int i = 0; i < numDirs; i++) {
+						String path = in.readUTF();
+						int numBlocks = in.readInt();
+						List<Block> blocks = new ArrayList<Block>(numBlocks);
+						for (int j = 0; j < numBlocks; j++) {
+							blocks.add(new Block(in.readLong(), in.readLong(),
+									in.readLong()));
+						}
+						cached.put(path, blocks);
+						int slash = path.lastIndexOf('/');
+						if (slash >= 0) {
+							String parentPath = path.substring(0, slash);
+							List<String> names = subdirs.get(parentPath);
+							if (names == null) {
+								names = new ArrayList<String>();
+								subdirs.put(parentPath, names);
+							}
+							names.add(path.substring(slash + 1));
+						}
+					}
+					FSDir root = loadDir(currentDir, "", cached, subdirs,
+							cacheTime, volumeMap);
+					if (root == null) {
+						DataNode.LOG.info("Volume map cache " + volumeMapCache
+								+ " is out of date");
+						volumeMap.clear();
+					}
+					return root;
+				} catch (IOException e) {
+					DataNode.LOG.warn("Could not read volume map cache "
+							+ volumeMapCache + ": " + e);
+					volumeMap.clear();
+					return null;
+				} finally {
+					IOUtils.closeStream(in);
+					volumeMapCache.delete();
+				}
+			}
+
+			/**
+			 * Build the directory tree below path from the cache and add its
+			 * blocks to the volume map. A directory changed within a second
+			 * of the cache being written, or a block file whose length is
+			 * not the cached one, makes the whole cache invalid.
+			 * 
+			 * @return the tree, or null if the cache does not match the disk
+			 */
+			private FSDir loadDir(File dir, String path,
+					Map<String, List<Block>> cached,
+					Map<String, List<String>> subdirs, long cacheTime,
+					Map<Block, DatanodeBlockInfo> volumeMap) {
+				List<Block> blocks = cached.get(path);
+				long mtime = dir.lastModified();
+				if (blocks == null || mtime == 0 || mtime >= cacheTime - 1000) {
+					return null;
+				}
+				for (Block b : blocks) {
+					File f = new File(dir, b.getBlockName());
+					if (f.length() != b.getNumBytes()) {
+						return null;
+					}
+					volumeMap.put(b, new DatanodeBlockInfo(this, f));
+				}
+				FSDir[] children = null;
+				List<String> names = subdirs.get(path);
+				if (names != null) {
+					children = new FSDir[names.size()];
+					for (int i = 0; i < children.length; i++) {
+						String name = names.get(i);
+						children[i] = loadDir(new File(dir, name), path + "/"
+								+ name, cached, subdirs, cacheTime, volumeMap);
+						if (children[i] == null) {
+							return null;
+						}
+					}
+				}
+				return new FSDir(dir, blocks.size(), children);
+			}
+
+			/**
+			 * Save the finalized blocks of this volume, to be read on the
+			 * next start instead of scanning the volume.
+			 */
+			void saveVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap) {
+				if (!useVolumeMapCache) {
+					return;
+				}
+				Map<File, List<Block>> blocksByDir = new HashMap<File, List<Block>>();
+				int numDirs = dataDir.countDirs();
+				for (Map.Entry<Block, DatanodeBlockInfo> e : volumeMap
+						.entrySet()) {
+					File f = e.getValue().getFile();
+					if (e.getValue().getVolume() != this || f == null) {
+						continue;
+					}
+					List<Block> blocks = blocksByDir.get(f.getParentFile());
+					if (blocks == null) {
+						blocks = new ArrayList<Block>();
+						blocksByDir.put(f.getParentFile(), blocks);
+					}
+					blocks.add(e.getKey());
+				}
+				File tmp = new File(volumeMapCache.getPath() + ".tmp");
+				DataOutputStream out = null;
+				try {
+					out = new DataOutputStream(new BufferedOutputStream(
+							new FileOutputStream(tmp)));
+					out.writeInt(VOLUME_MAP_CACHE_VERSION);
+					out.writeLong(System.currentTimeMillis());
+					out.writeInt(numDirs);
+					dataDir.saveVolumeMap(out, "", blocksByDir);
+					out.close();
+					out = null;
+					if (!tmp.renameTo(volumeMapCache)) {
+						throw new IOException("Could not rename " + tmp);
+					}
+				} catch (IOException e) {
+					DataNode.LOG.warn("Could not save volume map cache "
+							+ volumeMapCache + ": " + e);
+					tmp.delete();
+				} finally {
+					IOUtils.closeStream(out);
+				}
+			}
+
+			synchronized void clearPath(File f) {
 				dataDir.clearPath(f);
 			}
 
@@ -477,15 +794,29 @@
 		}
 
 		static class FSVolumeSet {
+			// volumes this much slower than the fastest one are avoided
+			static final float SLOW_FACTOR_DEFAULT = 2.0f;
+			// latencies below this are not told apart, in microseconds
+			static final long MIN_LATENCY = 1000;
+
 			FSVolume[] volumes = null;
 			int curVolume = 0;
+			private boolean loadAware = false;
+			private float slowFactor = SLOW_FACTOR_DEFAULT;
 
-			FSVolumeSet(FSVolume[] volumes) {
+			FSVolumeSet(FSVolume[] volumes, Configuration conf) {
 				this.volumes = volumes;
+				this.loadAware = conf.getBoolean(
+						"dfs.datanode.volume.load.aware", false);
+				this.slowFactor = conf.getFloat(
+						"dfs.datanode.volume.slow.factor", SLOW_FACTOR_DEFAULT);
 			}
 
 			synchronized FSVolume getNextVolume(long blockSize)
 					throws IOException {
+				if (loadAware) {
+					return getLeastLoadedVolume(blockSize);
+				}
 				int startVolume = curVolume;
 				while (true) {
 					FSVolume volume = volumes[curVolume];
@@ -500,6 +831,70 @@
 				}
 			}
 
+			/**
+			 * Choose a volume with room for the block, passing over volumes
+			 * whose write latency is more than slowFactor times that of the
+			 * fastest one unless nothing else has room. Among the rest the
+			 * volume with the fewest writes in progress wins, and ties go
+			 * round-robin so that idle volumes fill evenly.
+			 */
+			private FSVolume getLeastLoadedVolume(long blockSize)
+					throws IOException {
+				long[] latency = new long[volumes.length];
+				boolean[] usable = new boolean[volumes.length];
+				long fastest = Long.MAX_VALUE;
+				for (int idx = 0; idx < volumes.length; idx++) {
+					usable[idx] = volumes[idx].getAvailable() > blockSize;
+					latency[idx] = Math.max(volumes[idx].getWriteLatency(),
+							MIN_LATENCY);
+					if (usable[idx]) {
+						fastest = Math.min(fastest, latency[idx]);
+					}
+				}
+				int best = -1;
+				boolean bestSlow = false;
+				int bestWriters = 0;
+				for (int i = 0; i < volumes.length; i++) {
+					int idx = (curVolume + i) % volumes.length;
+					if (!usable[idx]) {
+						continue;
+					}
+					boolean slow = latency[idx] > slowFactor * fastest;
+					int writers = volumes[idx].getActiveWriters();
+					if (best < 0 || (bestSlow && !slow)
+							|| (bestSlow == slow && writers < bestWriters)) {
+						best = idx;
+						bestSlow = slow;
+						bestWriters = writers;
+					}
+				}
+				if (best < 0) {
+					throw new DiskOutOfSpaceException(
+							"Insufficient space for an additional block");
+				}
+				curVolume = (best + 1) % volumes.length;
+				return volumes[best];
+			}
+
+			/**
+			 * Describe the load of each volume.
+			 */
+			String getVolumeStats() throws IOException {
+				StringBuffer sb = new StringBuffer();
+				for (int idx = 0; idx < volumes.length; idx++) {
+					if (idx > 0) {
+						sb.append(", ");
+					}
+					sb.append(volumes[idx]).append("{writers=").append(
+							volumes[idx].getActiveWriters()).append(
+							", latencyMicros=").append(
+							volumes[idx].getWriteLatency()).append(
+							", remaining=").append(
+							volumes[idx].getAvailable()).append("}");
+				}
+				return sb.toString();
+			}
+
 			long getDfsUsed() throws IOException {
 				long dfsUsed = 0L;
 				for (int idx = 0; idx < volumes.length; idx++) {
@@ -530,11 +925,23 @@
 				}
 			}
 
+			/**
+			 * Scan all the volumes at once, one thread per volume.
+			 */
 			synchronized void getVolumeMap(
-					HashMap<Block, DatanodeBlockInfo> volumeMap) {
+					final ConcurrentHashMap<Block, DatanodeBlockInfo> volumeMap)
+					throws IOException {
+				List<Callable<Object>> scans = new ArrayList<Callable<Object>>();
 				for (int idx = 0; idx < volumes.length; idx++) {
-					volumes[idx].getVolumeMap(volumeMap);
+					final FSVolume volume = volumes[idx];
+					scans.add(new Callable<Object>() {
+						public Object call() {
+							volume.getVolumeMap(volumeMap);
+							return null;
+						}
+					});
 				}
+				runPerVolume(scans);
 			}
 
 			synchronized void checkDirs() throws DiskErrorException {
@@ -568,6 +975,8 @@
 		static class ActiveFile {
 			final File file;
 			final List<Thread> threads = new ArrayList<Thread>(2);
+			// the volume counting this write as in progress, if any
+			FSVolume volume;
 
 			ActiveFile(File f, List<Thread> list) {
 				file = f;
@@ -654,7 +1063,7 @@
 		}
 
 		/** {@inheritDoc} */
-		public synchronized Block getStoredBlock(long blkid) throws IOException {
+		public Block getStoredBlock(long blkid) throws IOException {
 			File blockfile = findBlockFile(blkid);
 			if (blockfile == null) {
 				return null;
@@ -681,9 +1090,17 @@
 		}
 
 		FSVolumeSet volumes;
-		private HashMap<Block, ActiveFile> ongoingCreates = new HashMap<Block, ActiveFile>();
+		// volumeMap and ongoingCreates are read without locking. Changes that
+		// touch both, or that must check the maps before changing them, hold
+		// the lock stripe of the block, so that operations on different
+		// blocks do not wait on each other.
+		private ConcurrentHashMap<Block, ActiveFile> ongoingCreates = new ConcurrentHashMap<Block, ActiveFile>();
 		private int maxBlocksPerDir = 0;
-		private HashMap<Block, DatanodeBlockInfo> volumeMap = null;
+		private ConcurrentHashMap<Block, DatanodeBlockInfo> volumeMap = null;
+		private Object[] blockLocks;
+		// blocks finalized and removed since the last block report
+		private final Set<Block> addedSinceReport = new HashSet<Block>();
+		private final Set<Block> removedSinceReport = new HashSet<Block>();
 		static Random random = new Random();
 
 		/**
@@ -692,17 +1109,88 @@
 		public FSDataset(DataStorage storage, Configuration conf)
 				throws IOException {
 			this.maxBlocksPerDir = conf.getInt("dfs.datanode.numblocks", 64);
-			FSVolume[] volArray = new FSVolume[storage.getNumStorageDirs()];
+			List<Callable<FSVolume>> opens = new ArrayList<Callable<FSVolume>>();
 			for (int idx = 0; idx < storage.getNumStorageDirs(); idx++) {
-				volArray[idx] = new FSVolume(storage.getStorageDir(idx)
-						.getCurrentDir(), conf);
+				final File dir = storage.getStorageDir(idx).getCurrentDir();
+				final Configuration volConf = conf;
+				opens.add(new Callable<FSVolume>() {
+					public FSVolume call() throws IOException {
+						return new FSVolume(dir, volConf);
+					}
+				});
 			}
-			volumes = new FSVolumeSet(volArray);
-			volumeMap = new HashMap<Block, DatanodeBlockInfo>();
+			List<FSVolume> volList = runPerVolume(opens);
+			volumes = new FSVolumeSet(volList.toArray(new FSVolume[volList
+					.size()]), conf);
+			volumeMap = new ConcurrentHashMap<Block, DatanodeBlockInfo>();
 			volumes.getVolumeMap(volumeMap);
+			int numLocks = Math.max(1, conf.getInt(
+					"dfs.datanode.block.lock.stripes", 64));
+			blockLocks = new Object[numLocks];
+			for (int i = 0; i < numLocks; i++) {
+				blockLocks[i] = new Object();
+			}
 			registerMBean(storage.getStorageID());
 		}
 		
+		/**
+		 * Run one task per volume, each in its own thread, and wait for all
+		 * of them. A disk scan is bound by seeks, so volumes are scanned
+		 * side by side rather than one after another.
+		 * 
+		 * @return the results of the tasks, in order
+		 */
+		static <T> List<T> runPerVolume(List<Callable<T>> tasks)
+				throws IOException {
+			List<T> results = new ArrayList<T>(tasks.size());
+			if (tasks.size() <= 1) {
+				try {
+					for (Callable<T> task : tasks) {
+						results.add(task.call());
+					}
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw (IOException) new IOException(e.toString())
+							.initCause(e);
+				}
+				return results;
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+			try {
+				for (Future<T> f : pool.invokeAll(tasks)) {
+					results.add(f.get());
+				}
+				return results;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException(
+						"Interrupted while scanning volumes");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw (IOException) new IOException(cause.toString())
+						.initCause(cause);
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+
+		/**
+		 * Get the lock guarding changes to a block. All the generation stamps
+		 * of a block share its lock.
+		 */
+		private Object getBlockLock(Block b) {
+			long id = b.getBlockId();
+			int hash = (int) (id ^ (id >>> 32)) & Integer.MAX_VALUE;
+			return blockLocks[hash % blockLocks.length];
+		}
+
 		//TODO
 		/**
 		 * Get the blk-referred volume
@@ -744,7 +1232,7 @@
 		/**
 		 * Get File name for a given block.
 		 */
-		protected synchronized File getBlockFile(Block b) throws IOException {
+		protected File getBlockFile(Block b) throws IOException {
 			File f = validateBlockFile(b);
 			if (f == null) {
 				if (InterDatanodeProtocol.LOG.isDebugEnabled()) {
@@ -756,12 +1244,12 @@
 			return f;
 		}
 
-		public synchronized InputStream getBlockInputStream(Block b)
+		public InputStream getBlockInputStream(Block b)
 				throws IOException {
 			return new FileInputStream(getBlockFile(b));
 		}
 
-		public synchronized InputStream getBlockInputStream(Block b,
+		public InputStream getBlockInputStream(Block b,
 				long seekOffset) throws IOException {
 
 			File blockFile = getBlockFile(b);
@@ -794,11 +1282,7 @@
 		 * @return - true if the specified block was detached
 		 */
 		boolean detachBlock(Block block, int numLinks) throws IOException {
-			DatanodeBlockInfo info = null;
-
-			synchronized (this) {
-				info = volumeMap.get(block);
-			}
+			DatanodeBlockInfo info = volumeMap.get(block);
 			return info.detachBlock(block, numLinks);
 		}
 
@@ -846,7 +1330,14 @@
 		 * @return ongoing create threads if there is any. Otherwise, return
 		 *         null.
 		 */
-		private synchronized List<Thread> tryUpdateBlock(Block oldblock,
+		private List<Thread> tryUpdateBlock(Block oldblock, Block newblock)
+				throws IOException {
+			synchronized (getBlockLock(oldblock)) {
+				return tryUpdateBlockLocked(oldblock, newblock);
+			}
+		}
+
+		private List<Thread> tryUpdateBlockLocked(Block oldblock,
 				Block newblock) throws IOException {
 			// check ongoing create threads
 			final ActiveFile activefile = ongoingCreates.get(oldblock);
@@ -912,6 +1403,10 @@
 
 			updateBlockMap(ongoingCreates, oldblock, newblock);
 			updateBlockMap(volumeMap, oldblock, newblock);
+			if (!ongoingCreates.containsKey(newblock)) {
+				blockRemoved(oldblock);
+				blockAdded(newblock);
+			}
 
 			// paranoia! verify that the contents of the stored block
 			// matches the block file on disk.
@@ -1016,11 +1511,12 @@
 			long blockSize = b.getNumBytes();
 
 			//
-			// Serialize access to /tmp, and check if file already there.
-			//
+			// Serialize creates of the block, and check if file already there.
+			//
 			File f = null;
 			List<Thread> threads = null;
-			synchronized (this) {
+			FSVolume writing = null;
+			synchronized (getBlockLock(b)) {
 				//
 				// Is it already in the create process?
 				//
@@ -1028,6 +1524,7 @@
 				if (activeFile != null) {
 					f = activeFile.file;
 					threads = activeFile.threads;
+					writing = activeFile.volume;
 
 					if (!isRecovery) {
 						throw new IOException(
@@ -1049,8 +1546,12 @@
 					// Do not insert temporary file into volume map.
 					f = createTmpFile(v, b);					
 					volumeMap.put(b, new DatanodeBlockInfo(v));
+					writing = v;
+					v.addWriter();
 				}
-				ongoingCreates.put(b, new ActiveFile(f, threads));
+				ActiveFile activeFile = new ActiveFile(f, threads);
+				activeFile.volume = writing;
+				ongoingCreates.put(b, activeFile);
 			}
 
 			try {
@@ -1089,11 +1590,8 @@
 		 */
 		public void setChannelPosition(Block b, BlockWriteStreams streams,
 				long dataOffset, long ckOffset) throws IOException {
-			long size = 0;
-			synchronized (this) {
-				FSVolume vol = volumeMap.get(b).getVolume();
-				size = vol.getTmpFile(b).length();
-			}
+			FSVolume vol = volumeMap.get(b).getVolume();
+			long size = vol.getTmpFile(b).length();
 			if (size < dataOffset) {
 				String msg = "Trying to change block file offset of block " + b
 						+ " to " + dataOffset + " but actual size of file is "
@@ -1106,7 +1604,7 @@
 			file.getChannel().position(ckOffset);
 		}
 
-		synchronized File createTmpFile(FSVolume vol, Block blk)
+		File createTmpFile(FSVolume vol, Block blk)
 				throws IOException {
 			if (vol == null) {
 				vol = volumeMap.get(blk).getVolume();
@@ -1129,7 +1627,13 @@
 		/**
 		 * Complete the block write!
 		 */
-		public synchronized void finalizeBlock(Block b) throws IOException {
+		public void finalizeBlock(Block b) throws IOException {
+			synchronized (getBlockLock(b)) {
+				finalizeBlockLocked(b);
+			}
+		}
+
+		private void finalizeBlockLocked(Block b) throws IOException {
 			ActiveFile activeFile = ongoingCreates.get(b);
 			if (activeFile == null) {
 				throw new IOException("Block " + b + " is already finalized.");
@@ -1149,18 +1653,28 @@
 			dest = v.addBlock(b, f);
 			volumeMap.put(b, new DatanodeBlockInfo(v, dest));
 			ongoingCreates.remove(b);
+			blockAdded(b);
+			if (activeFile.volume != null) {
+				activeFile.volume.removeWriter();
+			}
 		}
 
 		/**
 		 * Remove the temporary block file (if any)
 		 */
-		public synchronized void unfinalizeBlock(Block b) throws IOException {
-			// remove the block from in-memory data structure
-			ActiveFile activefile = ongoingCreates.remove(b);
-			if (activefile == null) {
-				return;
+		public void unfinalizeBlock(Block b) throws IOException {
+			// remove the block from in-memory data structure
+			ActiveFile activefile;
+			synchronized (getBlockLock(b)) {
+				activefile = ongoingCreates.remove(b);
+				if (activefile == null) {
+					return;
+				}
+				volumeMap.remove(b);
+			}
+			if (activefile.volume != null) {
+				activefile.volume.removeWriter();
 			}
-			volumeMap.remove(b);
 
 			// delete the on-disk temp file
 			if (delBlockFromDisk(activefile.file, getMetaFile(activefile.file,
@@ -1215,6 +1729,37 @@
 			return blockTable;
 		}
 
+		/**
+		 * Record a finalized block for the next block report delta.
+		 */
+		private void blockAdded(Block b) {
+			synchronized (addedSinceReport) {
+				removedSinceReport.remove(b);
+				addedSinceReport.add(new Block(b));
+			}
+		}
+
+		/**
+		 * Record a removed block for the next block report delta.
+		 */
+		private void blockRemoved(Block b) {
+			synchronized (addedSinceReport) {
+				addedSinceReport.remove(b);
+				removedSinceReport.add(new Block(b));
+			}
+		}
+
+		/** {@inheritDoc} */
+		public void getBlockReportDelta(Collection<Block> added,
+				Collection<Block> removed) {
+			synchronized (addedSinceReport) {
+				added.addAll(addedSinceReport);
+				removed.addAll(removedSinceReport);
+				addedSinceReport.clear();
+				removedSinceReport.clear();
+			}
+		}
+
 		/**
 		 * Check whether the given block is a valid one.
 		 */
@@ -1286,7 +1831,7 @@
 		/**
 		 * To get the ongoingCreate to get rid of the block while coding processes finishes
 		 */
-		public HashMap<Block, ActiveFile>  getOngoingCreates()
+		public Map<Block, ActiveFile>  getOngoingCreates()
 		{
 			return ongoingCreates;
 		}
@@ -1298,9 +1843,17 @@
 		public void invalidate(Block invalidBlks[]) throws IOException {
 			boolean error = false;
 			for (int i = 0; i < invalidBlks.length; i++) {
+				if (ongoingCreates.containsKey(invalidBlks[i])) {
+					// a write that never finished: drop it with its
+					// temporary file and release its volume
+					unfinalizeBlock(invalidBlks[i]);
+					if (!volumeMap.containsKey(invalidBlks[i])) {
+						continue;
+					}
+				}
 				File f = null;
 				FSVolume v;
-				synchronized (this) {
+				synchronized (getBlockLock(invalidBlks[i])) {
 					f = getFile(invalidBlks[i]);
 					DatanodeBlockInfo dinfo = volumeMap.get(invalidBlks[i]);
 					if (dinfo == null) {
@@ -1346,6 +1899,7 @@
 					}
 					v.clearPath(parent);
 					volumeMap.remove(invalidBlks[i]);
+					blockRemoved(invalidBlks[i]);
 				}
 				File metaFile = getMetaFile(f, invalidBlks[i]);
 				long blockSize = f.length() + metaFile.length();
@@ -1376,7 +1930,7 @@
 		/**
 		 * Turn the block identifier into a filename.
 		 */
-		synchronized File getFile(Block b) {
+		File getFile(Block b) {
 			DatanodeBlockInfo info = volumeMap.get(b);
 			if (info != null) {
 				return info.getFile();
@@ -1433,12 +1987,18 @@
 				for (FSVolume volume : volumes.volumes) {
 					if (volume != null) {
 						volume.dfsUsage.shutdown();
+						volume.saveVolumeMap(volumeMap);
 					}
 				}
 			}
 		}
 
 		public String getStorageInfo() {
-			return toString();
+			try {
+				return toString() + " volumes=[" + volumes.getVolumeStats()
+						+ "]";
+			} catch (IOException e) {
+				return toString();
+			}
 		}
 	}
@@ -22,7 +22,8 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Map;
 
 
 
@@ -171,6 +172,16 @@ public interface FSDatasetInterface extends FSDatasetMBean {
    */
   public Block[] getBlockReport();
 
+  /**
+   * Moves the blocks finalized and removed since the last call into the
+   * given collections, for a block report that carries only the changes.
+   * A block is never in both.
+   * @param added - receives the blocks finalized
+   * @param removed - receives the blocks removed
+   */
+  public void getBlockReportDelta(Collection<Block> added,
+                                  Collection<Block> removed);
+
   /**
    * Is the block valid?
    * @param b
@@ -189,7 +200,7 @@ public interface FSDatasetInterface extends FSDatasetMBean {
   /**
 	* To get the ongoingCreate to get rid of the block while coding processes finishes
 	*/	
-  public HashMap<Block, ActiveFile>  getOngoingCreates();
+  public Map<Block, ActiveFile>  getOngoingCreates();
   
   	//TODO
 	/**
@@ -70,6 +70,14 @@ class FSDirectory implements FSConstants, Closeable {
 		directoryMetrics = MetricsUtil.createRecord(metricsContext,
 				"FSDirectory");
 		directoryMetrics.setTag("sessionId", conf.get("session.id"));
+		FSEditLog editLog = fsImage.getEditLog();
+		if (editLog != null) {
+			editLog.setGroupCommit(
+					conf.getBoolean("dfs.name.edits.groupcommit", false),
+					conf.getLong("dfs.name.edits.groupcommit.interval", 5),
+					conf.getInt("dfs.name.edits.groupcommit.batch.size",
+							64 * 1024));
+		}
 	}
 
 	void loadFSImage(Collection<File> dataDirs, StartupOption startOpt)
@@ -165,40 +173,20 @@ class FSDirectory implements FSConstants, Closeable {
 	/**
    */
 	INode unprotectedAddFile(String path, PermissionStatus permissions,
-			Block[] blocks, //Block[] cBlocks, RSGroup[] groups, 
-			short replication, long modificationTime,
-			long preferredBlockSize /*, int n, int m*/) {
+			Block[] blocks, Block[] cBlocks, short replication,
+			long modificationTime, long preferredBlockSize) {
 		INode newNode;
 		if (blocks == null)
 			newNode = new INodeDirectory(permissions, modificationTime);
-		else //if(cBlocks == null)
-			newNode = new INodeFile(permissions, blocks.length, replication,
-					modificationTime, preferredBlockSize);
-		//else // TODO
-			//newNode = new INodeFile(permissions, blocks.length, cBlocks.length,
-					//groups, replication, modificationTime, preferredBlockSize, n, m);
-		
+		else
+			newNode = newFileINode(permissions, blocks, cBlocks,
+					replication, modificationTime, preferredBlockSize);
+
 		synchronized (rootDir) {
 			try {
 				newNode = addNode(path, newNode, false);
 				if (newNode != null && blocks != null) {
-					int nrBlocks = blocks.length;
-					// Add file->block mapping
-					INodeFile newF = (INodeFile) newNode;
-					for (int i = 0; i < nrBlocks; i++) {
-						newF.setBlock(i, namesystem.blocksMap.addINode(
-								blocks[i], newF));
-					} 
-					// TODO
-					/*
-					if(cBlocks != null){
-						int nrCBlocks = cBlocks.length;
-						for(int i = 0; i < nrCBlocks; i++){
-							newF.setCodingBlocks(i, namesystem.blocksMap.addINode(
-								blocks[i], newF));
-						}
-					}
-					*/
+					addBlocksToMap((INodeFile) newNode, blocks, cBlocks);
 				}
 			} catch (IOException e) {
 				return null;
@@ -208,9 +196,9 @@ class FSDirectory implements FSConstants, Closeable {
 	}
 
 	INodeDirectory addToParent(String src, INodeDirectory parentINode,
-			PermissionStatus permissions, Block[] blocks, //Block[] cBlocks,
-			/*RSGroup[] groups,*/ short replication, long modificationTime,
-			long quota, long preferredBlockSize /*, int n, int m*/) {
+			PermissionStatus permissions, Block[] blocks, Block[] cBlocks,
+			short replication, long modificationTime, long quota,
+			long preferredBlockSize) {
 		// create new inode
 		INode newNode;
 		if (blocks == null) {
@@ -221,11 +209,8 @@ class FSDirectory implements FSConstants, Closeable {
 				newNode = new INodeDirectory(permissions, modificationTime);
 			}
 		} else
-			//newNode = new INodeFile(permissions, blocks.length, cBlocks.length,
-					//groups, replication, modificationTime,
-					//preferredBlockSize, n, m); // TODO
-			newNode = new INodeFile(permissions, blocks.length,
-					replication, modificationTime, preferredBlockSize); // TODO
+			newNode = newFileINode(permissions, blocks, cBlocks,
+					replication, modificationTime, preferredBlockSize);
 		// add new node to the parent
 		INodeDirectory newParent = null;
 		synchronized (rootDir) {
@@ -238,31 +223,37 @@ class FSDirectory implements FSConstants, Closeable {
 			if (newParent == null)
 				return null;
 			if (blocks != null) {
-				int nrBlocks = blocks.length;
-				// Add file->block mapping
-				INodeFile newF = (INodeFile) newNode;
-				for (int i = 0; i < nrBlocks; i++) {
-					newF.setBlock(i, namesystem.blocksMap.addINode(blocks[i], newF));
-				}
+				addBlocksToMap((INodeFile) newNode, blocks, cBlocks);
 			}
-			// TODO
-			/* TODO
-			if(cBlocks != null) {
-				int nrCBlocks = cBlocks.length;
-				INodeFile newF = (INodeFile) newNode;
-				for(int i = 0; i < nrCBlocks; i++) {
-					newF.setCodingBlocks(i, namesystem.blocksMap.addINode(cBlocks[i],
-							newF));
-				}
-			}*/
 		}
 		return newParent;
 	}
 
+	private INodeFile newFileINode(PermissionStatus permissions,
+			Block[] blocks, Block[] cBlocks, short replication,
+			long modificationTime, long preferredBlockSize) {
+		return new INodeFile(permissions, blocks.length,
+				cBlocks == null ? 0 : cBlocks.length, replication,
+				modificationTime, preferredBlockSize, namesystem.getRSn(),
+				namesystem.getRSm());
+	}
+
+	/* Add file->block mapping for the data and the redundant blocks */
+	private void addBlocksToMap(INodeFile file, Block[] blocks,
+			Block[] cBlocks) {
+		for (int i = 0; i < blocks.length; i++) {
+			file.setBlock(i, namesystem.blocksMap.addINode(blocks[i], file));
+		}
+		for (int i = 0; cBlocks != null && i < cBlocks.length; i++) {
+			file.setCodingBlocks(i, namesystem.blocksMap.addINode(cBlocks[i],
+					file));
+		}
+	}
+
 	/**
 	 * Add a block to the file. Returns a reference to the added block.
 	 */
-	Block addBlock(String path, INode file, Block block, int n, int m)
+	Block addBlock(String path, INode file, Block block)
 			throws IOException {
 		waitForReady();
 
@@ -273,7 +264,7 @@ class FSDirectory implements FSConstants, Closeable {
 			namesystem.blocksMap.addINode(block, fileNode);
 			BlockInfo blockInfo = namesystem.blocksMap.getStoredBlock(block);
 
-			fileNode.addBlock(blockInfo, n, m);
+			fileNode.addBlock(blockInfo);
 
 			NameNode.stateChangeLog.debug("DIR* FSDirectory.addFile: " + path
 					+ " with " + block + " block is added to the in-memory "
@@ -704,6 +695,37 @@ class FSDirectory implements FSConstants, Closeable {
 												// BlocksMap
 				index++;
 			}
+			BlockInfo[] cBlocks = newnode.getCodingBlocks();
+			for (int i = 0; cBlocks != null && i < cBlocks.length; i++) {
+				newnode.setCodingBlocks(i, namesystem.blocksMap.addINode(
+						cBlocks[i], newnode));
+			}
+		}
+	}
+
+	/**
+	 * Replace the redundant blocks of a file, as recorded in the edit log.
+	 * The old redundant blocks are dropped from the block map first, the new
+	 * list may hold the same blocks under a new generation stamp.
+	 */
+	void unprotectedSetCodingBlocks(String path, Block[] cBlocks)
+			throws IOException {
+		synchronized (rootDir) {
+			INode inode = rootDir.getNode(path);
+			if (inode == null || inode.isDirectory()) {
+				throw new FileNotFoundException("File " + path
+						+ " does not exist");
+			}
+			INodeFile file = (INodeFile) inode;
+			BlockInfo[] old = file.getCodingBlocks();
+			for (int i = 0; old != null && i < old.length; i++) {
+				namesystem.blocksMap.removeINode(old[i]);
+			}
+			file.setCodingBlocks(new BlockInfo[cBlocks.length]);
+			for (int i = 0; i < cBlocks.length; i++) {
+				file.setCodingBlocks(i, namesystem.blocksMap.addINode(
+						cBlocks[i], file));
+			}
 		}
 	}
 
@@ -783,6 +805,57 @@ class FSDirectory implements FSConstants, Closeable {
 		}
 	}
 
+	/**
+	 * Get the paths of up to <code>limit</code> closed files of the subtree
+	 * rooted at <code>src</code> that come after <code>startAfter</code> in
+	 * namespace order. A null startAfter starts at the top of the subtree.
+	 */
+	List<String> getClosedFilesAfter(String src, String startAfter, int limit) {
+		String srcs = normalizePath(src);
+		List<String> files = new ArrayList<String>();
+		synchronized (rootDir) {
+			INode targetNode = rootDir.getNode(srcs);
+			if (targetNode == null || !targetNode.isDirectory())
+				return files;
+			byte[][] after = startAfter == null ? null : INode
+					.getPathComponents(startAfter);
+			int depth = INode.getPathComponents(srcs).length;
+			collectClosedFiles((INodeDirectory) targetNode, srcs, after, depth,
+					limit, files);
+		}
+		return files;
+	}
+
+	/*
+	 * Walk the children of dir in name order. While after is not null the
+	 * walk is still on the path of the last returned file, and the children
+	 * up to that path are skipped.
+	 */
+	private static void collectClosedFiles(INodeDirectory dir, String path,
+			byte[][] after, int depth, int limit, List<String> files) {
+		if (!path.endsWith(Path.SEPARATOR))
+			path += Path.SEPARATOR;
+		for (INode child : dir.getChildren()) {
+			if (files.size() >= limit)
+				return;
+			byte[][] childAfter = null;
+			if (after != null && depth < after.length) {
+				int cmp = child.compareTo(after[depth]);
+				if (cmp < 0 || (cmp == 0 && !child.isDirectory()))
+					continue;
+				if (cmp == 0)
+					childAfter = after;
+			}
+			String childPath = path + child.getLocalName();
+			if (child.isDirectory()) {
+				collectClosedFiles((INodeDirectory) child, childPath,
+						childAfter, depth + 1, limit, files);
+			} else if (!child.isUnderConstruction()) {
+				files.add(childPath);
+			}
+		}
+	}
+
 	/**
 	 * Check whether the filepath could be created
 	 */
@@ -17,7 +17,6 @@
  */
 package org.apache.hadoop.dfs;
 
-import java.io.BufferedInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
@@ -25,16 +24,20 @@ import java.io.DataOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.lang.Math;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.fs.permission.*;
 import org.apache.hadoop.dfs.DFSFileInfo;
+import org.apache.hadoop.dfs.BlocksMap.BlockInfo;
+import org.apache.hadoop.util.Daemon;
 
 /**
  * FSEditLog maintains a log of the namespace modifications.
@@ -57,6 +60,11 @@ class FSEditLog {
 	private static final byte OP_SET_GENSTAMP = 10; // store genstamp
 	private static final byte OP_SET_QUOTA = 11; // set a directory's quota
 	private static final byte OP_CLEAR_QUOTA = 12; // clear a directory's quota
+	private static final byte OP_SET_CODING_BLOCKS = 13; // redundant blocks
+	private static final byte OP_CONVERSION_CHECKPOINT = 14; // last converted file
+	private static final byte OP_SET_SHARED_GROUP = 15; // add or re-stamp
+	private static final byte OP_REMOVE_SHARED_GROUP = 16;
+	private static final byte OP_POOL_BLOCK = 17; // move a block between pools
 	private static int sizeFlushBuffer = 512 * 1024;
 
 	private ArrayList<EditLogOutputStream> editStreams = null;
@@ -74,6 +82,18 @@ class FSEditLog {
 	// is a sync currently running?
 	private boolean isSyncRunning;
 
+	// group commit: when enabled, a dedicated thread syncs the edits of
+	// all the waiting transactions at once instead of the callers of
+	// logSync doing it themselves.
+	private boolean groupCommit = false;
+	// the longest time (msec) the sync thread waits to fill a batch
+	private long syncInterval = 0;
+	// the amount of buffered edits (bytes) that triggers a sync at once
+	private int syncBatchSize = 64 * 1024;
+	private Daemon syncThread = null;
+	// time when the first transaction not yet synced was written
+	private long firstUnsyncedTime = 0;
+
 	// these are statistics counters.
 	private long numTransactions; // number of transactions
 	private long totalTimeTransactions; // total time for all transactions
@@ -220,6 +240,50 @@ class FSEditLog {
 		lastPrintTime = FSNamesystem.now();
 	}
 
+	/**
+	 * Set up group commit of the edits.
+	 *
+	 * @param enabled
+	 *            sync the edits by a dedicated thread
+	 * @param interval
+	 *            the longest time in msec a transaction waits for other
+	 *            transactions to join its sync
+	 * @param batchSize
+	 *            the amount of buffered edits in bytes that is synced without
+	 *            waiting for the interval to expire
+	 */
+	synchronized void setGroupCommit(boolean enabled, long interval,
+			int batchSize) {
+		this.groupCommit = enabled;
+		this.syncInterval = Math.max(0, interval);
+		this.syncBatchSize = batchSize;
+		if (enabled) {
+			startSyncThread();
+		} else {
+			stopSyncThread();
+		}
+	}
+
+	private synchronized void startSyncThread() {
+		if (!groupCommit || syncThread != null || editStreams == null
+				|| editStreams.isEmpty()) {
+			return;
+		}
+		syncThread = new Daemon(new EditLogSyncer());
+		syncThread.setName("EditLogSyncer");
+		syncThread.start();
+	}
+
+	/*
+	 * The sync thread exits as soon as it notices it has been replaced.
+	 */
+	private synchronized void stopSyncThread() {
+		if (syncThread != null) {
+			syncThread = null;
+			this.notifyAll();
+		}
+	}
+
 	private File getEditFile(int idx) {
 		return fsimage.getEditFile(idx);
 	}
@@ -261,6 +325,7 @@ class FSEditLog {
 				idx--;
 			}
 		}
+		startSyncThread();
 	}
 
 	synchronized void createEditLogFile(File name) throws IOException {
@@ -284,6 +349,7 @@ class FSEditLog {
 	 * Shutdown the filestore
 	 */
 	synchronized void close() throws IOException {
+		stopSyncThread();
 		while (isSyncRunning) {
 			try {
 				wait(1000);
@@ -307,6 +373,9 @@ class FSEditLog {
 			}
 		}
 		editStreams.clear();
+		// every transaction has been synced, release the waiting callers
+		synctxid = txid;
+		this.notifyAll();
 	}
 
 	/**
@@ -389,8 +458,10 @@ class FSEditLog {
 		long startTime = FSNamesystem.now();
 
 		if (edits != null) {
-			DataInputStream in = new DataInputStream(new BufferedInputStream(
-					new FileInputStream(edits)));
+			DataInputStream in = new DataInputStream(
+					new MappedEditsInputStream(edits));
+			Block[] blockPool = new Block[0];
+			Block[] codingBlockPool = new Block[0];
 			try {
 				// Read log file version. Could be missing.
 				in.mark(4);
@@ -449,7 +520,11 @@ class FSEditLog {
 						// get blocks
 						Block blocks[] = null;
 						if (logVersion <= -14) {
-							blocks = readBlocks(in);
+							int numBlocks = in.readInt();
+							if (blockPool.length < numBlocks) {
+								blockPool = growBlockPool(blockPool, numBlocks);
+							}
+							blocks = readBlocks(in, numBlocks, blockPool);
 						} else {
 							BlockTwo oldblk = new BlockTwo();
 							int num = in.readInt();
@@ -479,48 +554,18 @@ class FSEditLog {
 							}
 						}
 						
-						// TODO Generally we use the default action
-						// Cause I do not really understand what the version means
-						// TODO
-						// TODO
-						// TODO
-						/*
-						Block[] cBlocks = null;
-						//cBlocks = readBlocks(in);
-						//Block blocks[] = null;
-						if (logVersion <= -14) {
-							cBlocks = readBlocks(in);
-						} else {
-							BlockTwo oldblk = new BlockTwo();
-							int num = in.readInt();
-							cBlocks = new Block[num];
-							for (int i = 0; i < num; i++) {
-								oldblk.readFields(in);
-								cBlocks[i] = new Block(oldblk.blkid, oldblk.len,
-										Block.GRANDFATHER_GENERATION_STAMP);
-							}
-						}
-						for(int i = 0; i < cBlocks.length; i++){
-							if(cBlocks[i].getNumBytes() != fsNamesys.getDefaultBlockSize()){
-								cBlocks[i].setNumBytes(fsNamesys.getDefaultBlockSize());
+						// redundant blocks, appeared in version -17
+						Block cBlocks[] = null;
+						if (logVersion <= -17) {
+							int numCBlocks = in.readInt();
+							if (codingBlockPool.length < numCBlocks) {
+								codingBlockPool = growBlockPool(
+										codingBlockPool, numCBlocks);
 							}
+							cBlocks = readBlocks(in, numCBlocks,
+									codingBlockPool);
 						}
-						
-						RSGroup[] groups = null;
-						groups = readGroups(in);
-						Debug.writeTime();
-						Debug.writeDebug("At FSEditLog.java, in the func: loadFSEdits.");
-						Debug.writeDebug("This time we got a group with a length of " + groups.length);
-						
-						int n = Integer.parseInt(FSImage.readString(in));						
-						int m = Integer.parseInt(FSImage.readString(in));
-						
-						Debug.writeDebug("This time we got a RSn of " + n);
-						Debug.writeDebug("This time we got a RSm of " + m);
-						*/
-						
-						// TODO
-						
+
 						PermissionStatus permissions = fsNamesys
 								.getUpgradePermission();
 						if (logVersion <= -11) {
@@ -554,11 +599,8 @@ class FSEditLog {
 
 						// add to the file tree
 						INodeFile node = (INodeFile) fsDir.unprotectedAddFile(
-								path, permissions, blocks, replication, mtime,
-								blockSize);
-						//INodeFile node = (INodeFile) fsDir.unprotectedAddFile(
-								//path, permissions, blocks, cBlocks, groups, replication, mtime,
-								//blockSize, n, m);
+								path, permissions, blocks, cBlocks, replication,
+								mtime, blockSize);
 						if (opcode == OP_ADD) {
 							numOpAdd++;
 							//
@@ -566,17 +608,12 @@ class FSEditLog {
 							// INodeUnderConstruction.
 							// Recreate in-memory lease record.
 							//
-							//TODO INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
-									//node.getLocalNameBytes(), node.getReplication(), 
-									//node.getModificationTime(), node.getPreferredBlockSize(),
-									//node.getBlocks(), node.getGroups(), node.getCodingBlocks(),
-									//node.getPermissionStatus(), clientName,
-									//clientMachine, null, node.RSn, node.RSm);
 							INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
 									node.getLocalNameBytes(), node.getReplication(), 
 									node.getModificationTime(), node.getPreferredBlockSize(),
-									node.getBlocks(), node.getPermissionStatus(), clientName,
-									clientMachine, null);
+									node.getBlocks(), node.getCodingBlocks(),
+									node.getPermissionStatus(), clientName,
+									clientMachine, null, node.RSn, node.RSm);
 							
 							fsDir.replaceNode(path, node, cons);
 							fsNamesys.leaseManager.addLease(cons.clientName,
@@ -706,6 +743,76 @@ class FSEditLog {
 						fsDir.unprotectedClearQuota(FSImage.readString(in));
 						break;
 					}
+					case OP_SET_CODING_BLOCKS: {
+						if (logVersion > -17) {
+							throw new IOException("Unexpected opcode " + opcode
+									+ " for version " + logVersion);
+						}
+						numOpOther++;
+						path = FSImage.readString(in);
+						int numCBlocks = in.readInt();
+						if (codingBlockPool.length < numCBlocks) {
+							codingBlockPool = growBlockPool(codingBlockPool,
+									numCBlocks);
+						}
+						fsDir.unprotectedSetCodingBlocks(path, readBlocks(in,
+								numCBlocks, codingBlockPool));
+						break;
+					}
+					case OP_CONVERSION_CHECKPOINT: {
+						numOpOther++;
+						if (logVersion > -17) {
+							throw new IOException("Unexpected opcode " + opcode
+									+ " for version " + logVersion);
+						}
+						fsNamesys.setConversionCheckpoint(FSImage
+								.readString_EmptyAsNull(in));
+						break;
+					}
+					case OP_SET_SHARED_GROUP: {
+						numOpOther++;
+						if (logVersion > -17) {
+							throw new IOException("Unexpected opcode " + opcode
+									+ " for version " + logVersion);
+						}
+						int groupId = in.readInt();
+						short replication = readShort(in);
+						Block[] members = new Block[in.readInt()];
+						for (int i = 0; i < members.length; i++) {
+							members[i] = new Block();
+							members[i].readFields(in);
+						}
+						int numCBlocks = in.readInt();
+						if (codingBlockPool.length < numCBlocks) {
+							codingBlockPool = growBlockPool(codingBlockPool,
+									numCBlocks);
+						}
+						fsNamesys.unprotectedSetSharedGroup(groupId,
+								replication, members, readBlocks(in,
+										numCBlocks, codingBlockPool));
+						break;
+					}
+					case OP_REMOVE_SHARED_GROUP: {
+						numOpOther++;
+						if (logVersion > -17) {
+							throw new IOException("Unexpected opcode " + opcode
+									+ " for version " + logVersion);
+						}
+						fsNamesys.unprotectedRemoveSharedGroup(in.readInt());
+						break;
+					}
+					case OP_POOL_BLOCK: {
+						numOpOther++;
+						if (logVersion > -17) {
+							throw new IOException("Unexpected opcode " + opcode
+									+ " for version " + logVersion);
+						}
+						path = FSImage.readString_EmptyAsNull(in);
+						Block block = new Block();
+						block.readFields(in);
+						fsNamesys.unprotectedPoolBlock(path, block);
+						break;
+					}
 					default: {
 						throw new IOException("Never seen opcode " + opcode);
 					}
@@ -777,6 +884,9 @@ class FSEditLog {
 			}
 		}
 		// get a new transactionId
+		if (txid == synctxid) {
+			firstUnsyncedTime = start;
+		}
 		txid++;
 
 		//
@@ -807,6 +917,12 @@ class FSEditLog {
 			assert this.getNumEditStreams() > 0 : "no editlog streams";
 			printStatistics(false);
 
+			// the sync thread does the sync, wait for it to cover us
+			if (syncThread != null) {
+				waitForSync(mytxid);
+				return;
+			}
+
 			// if somebody is already syncing, then wait
 			while (mytxid > synctxid && isSyncRunning) {
 				try {
@@ -863,6 +979,105 @@ class FSEditLog {
 		metrics.syncs.inc(elapsed);
 	}
 
+	/*
+	 * Wait until the sync thread has synced the transaction mytxid. The
+	 * caller must hold the lock of the edit log.
+	 */
+	private void waitForSync(long mytxid) {
+		if (mytxid <= synctxid) {
+			return;
+		}
+		// wake the sync thread up if it waits for transactions
+		this.notifyAll();
+		while (mytxid > synctxid) {
+			try {
+				wait(1000);
+			} catch (InterruptedException ie) {
+			}
+		}
+	}
+
+	/**
+	 * The sync thread of group commit. It waits for transactions, lets more
+	 * transactions join the batch for up to syncInterval msec or until
+	 * syncBatchSize bytes are buffered, then syncs them all at once.
+	 */
+	class EditLogSyncer implements Runnable {
+		public void run() {
+			while (true) {
+				ArrayList<EditLogOutputStream> errorStreams = null;
+				ArrayList<EditLogOutputStream> streams;
+				long syncStart;
+				synchronized (FSEditLog.this) {
+					if (!waitForBatch()) {
+						return;
+					}
+					syncStart = txid;
+					isSyncRunning = true;
+					firstUnsyncedTime = FSNamesystem.now();
+					streams = new ArrayList<EditLogOutputStream>(editStreams);
+					for (EditLogOutputStream eStream : streams) {
+						eStream.swap();
+					}
+				}
+
+				long start = FSNamesystem.now();
+				for (EditLogOutputStream eStream : streams) {
+					try {
+						eStream.flushAndSyncOld();
+					} catch (IOException ie) {
+						if (errorStreams == null) {
+							errorStreams = new ArrayList<EditLogOutputStream>(1);
+						}
+						errorStreams.add(eStream);
+						FSNamesystem.LOG.error("Unable to sync edit log. "
+								+ "Fatal Error.");
+					}
+				}
+				long elapsed = FSNamesystem.now() - start;
+
+				synchronized (FSEditLog.this) {
+					processIOError(errorStreams);
+					synctxid = syncStart;
+					isSyncRunning = false;
+					FSEditLog.this.notifyAll();
+				}
+				metrics.syncs.inc(elapsed);
+			}
+		}
+
+		/*
+		 * Wait until a batch is ready to be synced.
+		 *
+		 * @return false if this thread should exit
+		 */
+		private boolean waitForBatch() {
+			while (true) {
+				if (syncThread != Thread.currentThread()) {
+					return false;
+				}
+				if (txid > synctxid && editStreams != null
+						&& !editStreams.isEmpty()) {
+					long wait = firstUnsyncedTime + syncInterval
+							- FSNamesystem.now();
+					if (wait <= 0
+							|| editStreams.get(0).getBufSize() >= syncBatchSize) {
+						return true;
+					}
+					try {
+						FSEditLog.this.wait(wait);
+					} catch (InterruptedException ie) {
+					}
+				} else {
+					try {
+						FSEditLog.this.wait(1000);
+					} catch (InterruptedException ie) {
+					}
+				}
+			}
+		}
+	}
+
 	//
 	// print statistics every 1 minute.
 	//
@@ -900,27 +1115,9 @@ class FSEditLog {
 				FSEditLog.toLogReplication(newNode.getReplication()),
 				FSEditLog.toLogLong(newNode.getModificationTime()),
 				FSEditLog.toLogLong(newNode.getPreferredBlockSize()) };
-		/*
-		if(newNode.getCodingBlocks() != null && newNode.getGroups() != null){
-			logEdit(OP_ADD, new ArrayWritable(UTF8.class, nameReplicationPair),
-					new ArrayWritable(Block.class, newNode.getBlocks()),
-					new ArrayWritable(Block.class, newNode.getCodingBlocks()),
-					new ArrayWritable(RSGroup.class, newNode.getGroups()),
-					new UTF8(String.valueOf(newNode.RSn)), 
-					new UTF8(String.valueOf(newNode.RSm)), 
-					newNode.getPermissionStatus(), 
-					new UTF8(newNode.getClientName()),
-					new UTF8(newNode.getClientMachine()));
-		} else {
-			logEdit(OP_ADD, new ArrayWritable(UTF8.class, nameReplicationPair),
-					new ArrayWritable(Block.class, newNode.getBlocks()),
-					newNode.getPermissionStatus(), 
-					new UTF8(newNode.getClientName()),
-					new UTF8(newNode.getClientMachine()));
-		}
-		*/
 		logEdit(OP_ADD, new ArrayWritable(UTF8.class, nameReplicationPair),
 				new ArrayWritable(Block.class, newNode.getBlocks()),
+				new ArrayWritable(Block.class, codingBlocksOf(newNode)),
 				newNode.getPermissionStatus(), 
 				new UTF8(newNode.getClientName()),
 				new UTF8(newNode.getClientMachine()));
@@ -934,26 +1131,24 @@ class FSEditLog {
 				FSEditLog.toLogReplication(newNode.getReplication()),
 				FSEditLog.toLogLong(newNode.getModificationTime()),
 				FSEditLog.toLogLong(newNode.getPreferredBlockSize()) };
-		/*
-		if(newNode.getCodingBlocks() != null && newNode.getGroups() != null){
-			logEdit(OP_CLOSE, new ArrayWritable(UTF8.class, nameReplicationPair),
+		logEdit(OP_CLOSE, new ArrayWritable(UTF8.class, nameReplicationPair),
 				new ArrayWritable(Block.class, newNode.getBlocks()),
-				new ArrayWritable(Block.class, newNode.getCodingBlocks()),
-				new ArrayWritable(RSGroup.class, newNode.getGroups()),
-				new UTF8(String.valueOf(newNode.RSn)), 
-				new UTF8(String.valueOf(newNode.RSm)), 
+				new ArrayWritable(Block.class, codingBlocksOf(newNode)),
 				newNode.getPermissionStatus());
-		} else {
-			logEdit(OP_CLOSE, new ArrayWritable(UTF8.class, nameReplicationPair),
-					new ArrayWritable(Block.class, newNode.getBlocks()),
-					newNode.getPermissionStatus());
-		}
-		*/
+	}
 
-		logEdit(OP_CLOSE, new ArrayWritable(UTF8.class, nameReplicationPair),
-				new ArrayWritable(Block.class, newNode.getBlocks()), newNode
-						.getPermissionStatus());
+	/**
+	 * Add a record of the redundant blocks of a file to the edit log, when
+	 * they are allocated or get a new generation stamp.
+	 */
+	void logSetCodingBlocks(String path, INodeFile file) {
+		logEdit(OP_SET_CODING_BLOCKS, new UTF8(path), new ArrayWritable(
+				Block.class, codingBlocksOf(file)));
+	}
 
+	static private Block[] codingBlocksOf(INodeFile file) {
+		Block[] cBlocks = file.getCodingBlocks();
+		return cBlocks == null ? new Block[0] : cBlocks;
 	}
 
 	/**
@@ -1034,6 +1229,44 @@ class FSEditLog {
 		logEdit(OP_SET_GENSTAMP, new LongWritable(genstamp));
 	}
 
+	/**
+	 * Add the last file handed to the encoding conversion to edit log, an
+	 * empty path marks the end of a pass
+	 */
+	void logConversionCheckpoint(String path) {
+		logEdit(OP_CONVERSION_CHECKPOINT, new UTF8(path == null ? "" : path));
+	}
+
+	/**
+	 * Add a shared group, its replication and all its blocks to edit log,
+	 * when it is built or its redundant blocks get a new generation stamp
+	 */
+	void logSetSharedGroup(RSGroup group, INodeFile holder) {
+		BlockInfo[] blks = group.getBlocks();
+		int m = group.getNumOfRealBlocks();
+		Block[] members = new Block[m];
+		System.arraycopy(blks, 0, members, 0, m);
+		logEdit(OP_SET_SHARED_GROUP, new IntWritable(group.getGroupId()),
+				toLogReplication(holder.getReplication()), new ArrayWritable(
+						Block.class, members), new ArrayWritable(Block.class,
+						group.getCodingBlocks()));
+	}
+
+	/**
+	 * Add the removal of a shared group to edit log
+	 */
+	void logRemoveSharedGroup(int groupId) {
+		logEdit(OP_REMOVE_SHARED_GROUP, new IntWritable(groupId));
+	}
+
+	/**
+	 * Add a block moving into the pool of the given directory to edit log, a
+	 * null directory only takes the block out of its pool
+	 */
+	void logPoolBlock(String dir, Block block) {
+		logEdit(OP_POOL_BLOCK, new UTF8(dir == null ? "" : dir), block);
+	}
+
 	static private UTF8 toLogReplication(short replication) {
 		return new UTF8(Short.toString(replication));
 	}
@@ -1093,6 +1326,7 @@ class FSEditLog {
 				idx--;
 			}
 		}
+		startSyncThread();
 	}
 
 	/**
@@ -1204,24 +1438,133 @@ class FSEditLog {
 		return Long.parseLong(FSImage.readString(in));
 	}
 
-	static private Block[] readBlocks(DataInputStream in) throws IOException {
-		int numBlocks = in.readInt();
+	/*
+	 * Read numBlocks blocks into the Block objects of the pool. The blocks of
+	 * a transaction are only used as keys to find or create their BlockInfo
+	 * in the blocks map, which copies them, so the same Block objects can be
+	 * used again by the next transaction. Groups are not logged, they follow
+	 * from the block positions in the file.
+	 */
+	static private Block[] readBlocks(DataInputStream in, int numBlocks,
+			Block[] pool) throws IOException {
 		Block[] blocks = new Block[numBlocks];
 		for (int i = 0; i < numBlocks; i++) {
-			blocks[i] = new Block();
+			blocks[i] = pool[i];
 			blocks[i].readFields(in);
 		}
 
 		return blocks;
 	}
-	
-	static private RSGroup[] readGroups(DataInputStream in) throws IOException {
-		int numGroups = in.readInt();
-		RSGroup[] groups = new RSGroup[numGroups];
-		for(int i = 0; i < numGroups; i++){
-			groups[i] = new RSGroup();
-			groups[i].readFields(in);
-		}
-		return groups;
+
+	static private Block[] growBlockPool(Block[] pool, int size) {
+		Block[] newPool = new Block[Math.max(size, 2 * pool.length)];
+		System.arraycopy(pool, 0, newPool, 0, pool.length);
+		for (int i = pool.length; i < newPool.length; i++) {
+			newPool[i] = new Block();
+		}
+		return newPool;
+	}
+
+	/**
+	 * An input stream reading the edits file through memory mapped windows of
+	 * the file, so that loading the edits does not copy the file through the
+	 * buffers of a FileInputStream and a BufferedInputStream. The file is
+	 * mapped window by window because a single mapping cannot exceed 2GB.
+	 */
+	static class MappedEditsInputStream extends InputStream {
+		private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+		private final RandomAccessFile file;
+		private final FileChannel fc;
+		private final long length;
+		private MappedByteBuffer window = null;
+		private long windowStart = 0; // position of the window in the file
+		private long mark = 0;
+
+		MappedEditsInputStream(File name) throws IOException {
+			file = new RandomAccessFile(name, "r");
+			fc = file.getChannel();
+			length = fc.size();
+			map(0);
+		}
+
+		// map the window starting at the given position of the file
+		private void map(long pos) throws IOException {
+			windowStart = pos;
+			window = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(
+					WINDOW_SIZE, length - pos));
+		}
+
+		private long position() {
+			return windowStart + window.position();
+		}
+
+		// @return false at the end of the file
+		private boolean ensureAvailable() throws IOException {
+			if (window.hasRemaining()) {
+				return true;
+			}
+			long pos = position();
+			if (pos >= length) {
+				return false;
+			}
+			map(pos);
+			return true;
+		}
+
+		public int read() throws IOException {
+			if (!ensureAvailable()) {
+				return -1;
+			}
+			return window.get() & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!ensureAvailable()) {
+				return -1;
+			}
+			int n = Math.min(len, window.remaining());
+			window.get(b, off, n);
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long pos = position();
+			long target = Math.min(length, pos + Math.max(0, n));
+			if (target - windowStart <= window.limit()) {
+				window.position((int) (target - windowStart));
+			} else {
+				map(target);
+			}
+			return target - pos;
+		}
+
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, length - position());
+		}
+
+		public boolean markSupported() {
+			return true;
+		}
+
+		public void mark(int readlimit) {
+			mark = position();
+		}
+
+		public void reset() throws IOException {
+			if (mark >= windowStart && mark - windowStart <= window.limit()) {
+				window.position((int) (mark - windowStart));
+			} else {
+				map(mark);
+			}
+		}
+
+		public void close() throws IOException {
+			window = null;
+			file.close();
+		}
 	}
 }
@@ -743,6 +743,19 @@ class FSImage extends Storage {
 				long genstamp = in.readLong();
 				fsNamesys.setGenerationStamp(genstamp);
 			}
+			// the groups of the files follow from the RS layout
+			if (imgVersion <= -17) {
+				int n = in.readInt();
+				int m = in.readInt();
+				if (n != fsNamesys.getRSn() || m != fsNamesys.getRSm()) {
+					throw new IOException("Image " + curFile
+							+ " is encoded with dfs.RSn = " + n + ", dfs.RSm = "
+							+ m + " but dfs.RSn = " + fsNamesys.getRSn()
+							+ ", dfs.RSm = " + fsNamesys.getRSm()
+							+ " are configured");
+				}
+				fsNamesys.setConversionCheckpoint(readString_EmptyAsNull(in));
+			}
 
 			needToSave = (imgVersion != FSConstants.LAYOUT_VERSION);
 
@@ -801,46 +814,17 @@ class FSImage extends Storage {
 					}
 				}
 
-				// TODO read the code-relevant field
-				// I don't know what is the version meaningful
-				// I default version the newest, and do the 
-				// newest-version handling
-				/*
-				int numCBlocks = in.readInt();
+				// redundant blocks, appeared in version -17
 				Block cBlocks[] = null;
-				
-				if ((-9 <= imgVersion && numCBlocks > 0)
-						|| (imgVersion < -9 && numCBlocks >= 0)) {
+				if (imgVersion <= -17 && blocks != null) {
+					int numCBlocks = in.readInt();
 					cBlocks = new Block[numCBlocks];
 					for (int j = 0; j < numCBlocks; j++) {
 						cBlocks[j] = new Block();
-						if (-14 < imgVersion) {
-							cBlocks[j].set(in.readLong(), in.readLong(),
-									Block.GRANDFATHER_GENERATION_STAMP);
-						} else {
-							cBlocks[j].readFields(in);		
-						}
-						if(cBlocks[j].getNumBytes() != fsNamesys.getDefaultBlockSize()){
-							cBlocks[j].setNumBytes(fsNamesys.getDefaultBlockSize());
-						}
+						cBlocks[j].readFields(in);
 					}
 				}
 
-				int numGroups = in.readInt();
-				Debug.writeTime();
-				Debug.writeDebug("At FSImage.java, in the func: loadFSImage.");
-				Debug.writeDebug("This time we got a group with a length of " + numGroups);
-				RSGroup groups[] = new RSGroup[numGroups];
-				for (int j = 0; j < numGroups; j++) {
-					groups[j].readFields(in);
-				}			
-				int n = in.readInt();
-				int m = in.readInt();
-				Debug.writeDebug("This time we got a RSn of " + n);
-				Debug.writeDebug("This time we got a RSm of " + m);
-				*/
-				// TODO
-
 				// get quota only when the node is a directory
 				long quota = -1L;
 				if (imgVersion <= -16 && blocks == null) {
@@ -867,11 +851,8 @@ class FSImage extends Storage {
 				}
 				// add new inode
 				parentINode = fsDir.addToParent(path, parentINode, permissions,
-						blocks, replication, modificationTime,
+						blocks, cBlocks, replication, modificationTime,
 						quota, blockSize);
-				//parentINode = fsDir.addToParent(path, parentINode, permissions,
-						//blocks, cBlocks, groups, replication, modificationTime,
-						//quota, blockSize, n, m);
 			}
 
 			// load datanode info
@@ -880,6 +861,11 @@ class FSImage extends Storage {
 			// load Files Under Construction
 			this.loadFilesUnderConstruction(imgVersion, in, fsNamesys);
 
+			// load the shared groups, after the blocks of their members
+			if (imgVersion <= -17) {
+				fsNamesys.loadSharedGroups(in);
+			}
+
 			// update the count of each directory with quota
 			fsDir.updateCountForINodeWithQuota();
 		} finally {
@@ -935,6 +921,11 @@ class FSImage extends Storage {
 			out.writeInt(namespaceID);
 			out.writeLong(fsDir.rootDir.numItemsInTree());
 			out.writeLong(fsNamesys.getGenerationStamp());
+			out.writeInt(fsNamesys.getRSn());
+			out.writeInt(fsNamesys.getRSm());
+			// where the encoding conversion resumes
+			String checkpoint = fsNamesys.getConversionCheckpoint();
+			writeString(checkpoint == null ? "" : checkpoint, out);
 			byte[] byteStore = new byte[4 * FSConstants.MAX_PATH_LENGTH];
 			ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
 			// save the root
@@ -942,6 +933,7 @@ class FSImage extends Storage {
 			// save the rest of the nodes
 			saveImage(strbuf, 0, fsDir.rootDir, out);
 			fsNamesys.saveFilesUnderConstruction(out);
+			fsNamesys.saveSharedGroups(out);
 			strbuf = null;
 		} finally {
 			out.close();
@@ -1035,24 +1027,7 @@ class FSImage extends Storage {
 			out.writeInt(blocks.length);
 			for (Block blk : blocks)
 				blk.write(out);
-			
-			/* TODO
-			// TODO put the coded blocks onto the out stream
-			Block[] cBlocks = fileINode.getCodingBlocks();
-			out.write(cBlocks.length);
-			for (Block cblk : cBlocks)
-				cblk.write(out);
-
-			RSGroup[] groups = fileINode.getGroups();
-			out.write(groups.length);
-			for (RSGroup grp : groups)
-				grp.write(out);
-			// TODO
-
-			out.writeInt(fileINode.RSn);
-			out.writeInt(fileINode.RSm);
-			*/
-
+			writeCodingBlocks(fileINode, out);
 			FILE_PERM.fromShort(fileINode.getFsPermissionShort());
 			PermissionStatus.write(out, fileINode.getUserName(), fileINode
 					.getGroupName(), FILE_PERM);
@@ -1068,6 +1043,21 @@ class FSImage extends Storage {
 		}
 	}
 
+	/*
+	 * Save the redundant blocks of a file, the groups follow from them.
+	 */
+	private static void writeCodingBlocks(INodeFile file, DataOutputStream out)
+			throws IOException {
+		Block[] cBlocks = file.getCodingBlocks();
+		if (cBlocks == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(cBlocks.length);
+		for (Block cblk : cBlocks)
+			cblk.write(out);
+	}
+
 	/**
 	 * Save file tree image starting from the given root. This is a recursive
 	 * procedure, which first saves all children of a current directory and then
@@ -1121,7 +1111,8 @@ class FSImage extends Storage {
 		LOG.info("Number of files under construction = " + size);
 
 		for (int i = 0; i < size; i++) {
-			INodeFileUnderConstruction cons = readINodeUnderConstruction(in);
+			INodeFileUnderConstruction cons = readINodeUnderConstruction(in,
+					version, fs);
 
 			// verify that file exists in namespace
 			String path = cons.getLocalName();
@@ -1143,7 +1134,8 @@ class FSImage extends Storage {
 	// from the input stream
 	//
 	static INodeFileUnderConstruction readINodeUnderConstruction(
-			DataInputStream in) throws IOException {
+			DataInputStream in, int version, FSNamesystem fs)
+			throws IOException {
 		byte[] name = readBytes(in);
 		short blockReplication = in.readShort();
 		long modificationTime = in.readLong();
@@ -1155,6 +1147,15 @@ class FSImage extends Storage {
 			blk.readFields(in);
 			blocks[i] = new BlockInfo(blk, blockReplication);
 		}
+		BlockInfo[] cBlocks = null;
+		if (version <= -17) {
+			int numCBlocks = in.readInt();
+			cBlocks = new BlockInfo[numCBlocks];
+			for (int i = 0; i < numCBlocks; i++) {
+				blk.readFields(in);
+				cBlocks[i] = new BlockInfo(blk, blockReplication);
+			}
+		}
 		PermissionStatus perm = PermissionStatus.read(in);
 		String clientName = readString(in);
 		String clientMachine = readString(in);
@@ -1168,8 +1169,8 @@ class FSImage extends Storage {
 		}
 
 		return new INodeFileUnderConstruction(name, blockReplication,
-				modificationTime, preferredBlockSize, blocks, perm, clientName,
-				clientMachine, null);
+				modificationTime, preferredBlockSize, blocks, cBlocks, perm,
+				clientName, clientMachine, null, fs.getRSn(), fs.getRSm());
 	}
 
 	// Helper function that writes an INodeUnderConstruction
@@ -1186,6 +1187,7 @@ class FSImage extends Storage {
 		for (int i = 0; i < nrBlocks; i++) {
 			cons.getBlocks()[i].write(out);
 		}
+		writeCodingBlocks(cons, out);
 		cons.getPermissionStatus().write(out);
 		writeString(cons.getClientName(), out);
 		writeString(cons.getClientMachine(), out);
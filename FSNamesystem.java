@@ -46,6 +46,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -120,6 +121,8 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	private long pendingEncodingTasks = 0L,
 				 underEncodingTasks = 0L,
 				 scheduledEncodingTasks = 0L;
+	// Bytes freed by dropping the extra replicas of encoded blocks
+	private long encodedBytesReclaimed = 0L;
 
 	//
 	// Stores the correct file name hierarchy
@@ -202,9 +205,17 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	//
 	private UnderReplicatedBlocks neededReplications = new UnderReplicatedBlocks();
 	private PendingReplicationBlocks pendingReplications;
+	// Blocks without live replicas that are recovered by decoding, ordered
+	// by how close their group is to data loss
+	private UnderDecodedBlocks neededDecodings = new UnderDecodedBlocks();
 	
 	private UnderEncodedGroups neededEncodedGroups = new UnderEncodedGroups();
 	private PendingEncodedGroups pendingEncodings;
+	// Groups whose redundant blocks have just been stored, the extra
+	// replicas of their data blocks are yet to be dropped
+	private LinkedList<RSGroup> encodedGroupsToTrim = new LinkedList<RSGroup>();
+	// Groups shared by the last blocks of several files
+	private SharedGroups sharedGroups = new SharedGroups();
 
 	LeaseManager leaseManager = new LeaseManager(this);
 
@@ -217,6 +228,7 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	Daemon smmthread = null; // SafeModeMonitor thread
 	Daemon replthread = null; // Replication thread
 	Daemon resthread = null; // ResolutionMonitor thread
+	Daemon convthread = null; // ConversionMonitor thread
 
 	private volatile boolean fsRunning = true;
 	long systemStart = 0;
@@ -226,6 +238,27 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	// How many outgoing replication streams a given node should have at one
 	// time
 	private int maxReplicationStreams;
+	// How many encoding and decoding tasks a given node is handed per
+	// heartbeat
+	private int maxCodingStreams;
+	// Replication kept for the data blocks of an encoded group, 0 keeps
+	// the replication of the file
+	private short encodedReplication;
+	// How many encoded groups are trimmed per replication monitor iteration
+	private int trimGroupsPerIteration;
+	// Subtrees whose existing files are converted to encoded groups, null
+	// if the conversion is off
+	private String[] conversionDirs;
+	private long conversionInterval;
+	private int conversionFilesPerIteration;
+	// The conversion stops feeding the scheduler while this many groups
+	// are waiting for encoding
+	private int conversionMaxQueuedGroups;
+	// The last file handed to the conversion, null at the start of a pass
+	private volatile String conversionCheckpoint = null;
+	// Pack the last blocks of the files of a directory into shared groups
+	// instead of padding each file's last group with empty blocks
+	private boolean groupPacking;
 	// MIN_REPLICATION is how many copies we need in place or else we disallow
 	// the write
 	private int minReplication;
@@ -321,8 +354,8 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		setBlockTotal();
 		pendingReplications = new PendingReplicationBlocks(conf.getInt(
 				"dfs.replication.pending.timeout.sec", -1) * 1000L);
-		// TODO We use the default timeout, that is 10 minutes
-		pendingEncodings = new PendingEncodedGroups();
+		pendingEncodings = new PendingEncodedGroups(conf.getInt(
+				"dfs.encoding.pending.timeout.sec", -1) * 1000L);
 		this.hbthread = new Daemon(new HeartbeatMonitor());
 		this.lmthread = new Daemon(leaseManager.new Monitor());
 		this.replthread = new Daemon(new ReplicationMonitor());
@@ -331,6 +364,10 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		lmthread.start();
 		replthread.start();
 		resthread.start();
+		if (conversionDirs != null) {
+			this.convthread = new Daemon(new ConversionMonitor());
+			convthread.start();
+		}
 
 		this.hostsReader = new HostsFileReader(conf.get("dfs.hosts", ""), conf
 				.get("dfs.hosts.exclude", ""));
@@ -460,6 +497,19 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 							+ " must be less than dfs.replication.max = "
 							+ maxReplication);
 		this.maxReplicationStreams = conf.getInt("dfs.max-repl-streams", 2);
+		this.maxCodingStreams = conf.getInt("dfs.max-coding-streams", 2);
+		this.encodedReplication = (short) conf.getInt(
+				"dfs.encoded.replication", 0);
+		this.trimGroupsPerIteration = conf.getInt(
+				"dfs.encoded.trim.groups.per.iteration", 100);
+		this.conversionDirs = conf.getStrings("dfs.encoding.conversion.dirs");
+		this.conversionInterval = conf.getLong(
+				"dfs.encoding.conversion.interval", 60) * 1000;
+		this.conversionFilesPerIteration = conf.getInt(
+				"dfs.encoding.conversion.files.per.iteration", 1000);
+		this.conversionMaxQueuedGroups = conf.getInt(
+				"dfs.encoding.conversion.max.queued.groups", 1000);
+		this.groupPacking = conf.getBoolean("dfs.group.packing", false);
 		long heartbeatInterval = conf.getLong("dfs.heartbeat.interval", 3) * 1000;
 		this.heartbeatRecheckInterval = conf.getInt(
 				"heartbeat.recheck.interval", 5 * 60 * 1000); // 5 minutes
@@ -515,6 +565,8 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 				replthread.interrupt();
 			if (resthread != null)
 				resthread.interrupt();
+			if (convthread != null)
+				convthread.interrupt();
 			if (dnthread != null)
 				dnthread.interrupt();
 			if (smmthread != null)
@@ -567,11 +619,37 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			}
 		}
 
+		//
+		// Dump contents of neededDecodings
+		//
+		synchronized (neededDecodings) {
+			out.println("Metasave: Blocks waiting for decoding: "
+					+ neededDecodings.size());
+			int[] histogram = neededDecodings.getHistogram();
+			for (int i = 0; i < histogram.length; i++) {
+				out.println("Groups with remaining redundancy " + i + ": "
+						+ histogram[i] + " blocks");
+			}
+			for (Block block : neededDecodings) {
+				out.println(block);
+			}
+		}
+
 		//
 		// Dump blocks from pendingReplication
 		//
 		pendingReplications.metaSave(out);
 
+		//
+		// Dump encoded groups waiting to drop their extra replicas
+		//
+		out.println("Metasave: Encoded groups waiting to be trimmed: "
+				+ encodedGroupsToTrim.size() + ", bytes reclaimed: "
+				+ encodedBytesReclaimed);
+		out.println("Metasave: Shared groups: " + sharedGroups.size()
+				+ ", blocks waiting for a shared group: "
+				+ sharedGroups.getNumPooledBlocks());
+
 		//
 		// Dump blocks that are waiting to be deleted
 		//
@@ -590,6 +668,14 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		return defaultBlockSize;
 	}
 
+	int getRSn() {
+		return RSn;
+	}
+
+	int getRSm() {
+		return RSm;
+	}
+
 	/* get replication factor of a block */
 	private int getReplication(Block block) {
 		INodeFile fileINode = blocksMap.getINode(block);
@@ -597,7 +683,22 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			return 0;
 		}
 		assert !fileINode.isDirectory() : "Block cannot belong to a directory.";
-		return fileINode.getReplication();
+		return getExpectedReplication(block, fileINode);
+	}
+
+	/*
+	 * get the number of replicas a block should have: the replication of
+	 * its file, lowered to dfs.encoded.replication once the group of the
+	 * block has been encoded.
+	 */
+	private short getExpectedReplication(Block block, INodeFile fileINode) {
+		short replication = fileINode.getReplication();
+		if (encodedReplication > 0 && encodedReplication < replication) {
+			BlockInfo storedBlock = blocksMap.getStoredBlock(block);
+			if (storedBlock != null && storedBlock.isEncoded())
+				return encodedReplication;
+		}
+		return replication;
 	}
 
 	/* updates a block in under replication queue */
@@ -786,6 +887,55 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		return ret;
 	}
 
+	/**
+	 * Get the blocks of the group holding a block of a file, in group order,
+	 * with the locations of their healthy replicas sorted by distance to the
+	 * client. The empty blocks padding a group have no locations. Clients
+	 * rebuild a block from the rest of its group with them.
+	 * 
+	 * @return null if the group of the block is not encoded
+	 */
+	LocatedBlock[] getGroupLocations(String clientMachine, String src,
+			Block block) throws IOException {
+		if (isPermissionEnabled) {
+			checkPathAccess(src, FsAction.READ);
+		}
+		LocatedBlock[] result;
+		synchronized (this) {
+			INodeFile inode = dir.getFileINode(src);
+			BlockInfo storedBlock = blocksMap.getStoredBlock(block);
+			if (inode == null || storedBlock == null
+					|| storedBlock.getINode() != inode) {
+				return null;
+			}
+			RSGroup group = getGroup(inode, storedBlock);
+			if (group == null || !group.isComplete() || !isGroupEncoded(group)) {
+				return null;
+			}
+			BlockInfo[] blks = group.getBlocks();
+			result = new LocatedBlock[blks.length];
+			for (int i = 0; i < blks.length; i++) {
+				List<DatanodeDescriptor> nodes = new ArrayList<DatanodeDescriptor>();
+				if (blks[i].getBlockId() != 0) {
+					for (Iterator<DatanodeDescriptor> it = blocksMap
+							.nodeIterator(blks[i]); it.hasNext();) {
+						DatanodeDescriptor dn = it.next();
+						if (!corruptReplicas.isReplicaCorrupt(blks[i], dn))
+							nodes.add(dn);
+					}
+				}
+				result[i] = new LocatedBlock(blks[i], nodes
+						.toArray(new DatanodeDescriptor[nodes.size()]));
+			}
+		}
+		DatanodeDescriptor client = host2DataNodeMap
+				.getDatanodeByHost(clientMachine);
+		for (LocatedBlock b : result) {
+			clusterMap.pseudoSortByDistance(client, b.getLocations());
+		}
+		return result;
+	}
+
 	private synchronized LocatedBlocks getBlockLocationsInternal(
 			INodeFile inode, long offset, long length, int nrBlocksToReturn) {
 		if (inode == null) {
@@ -1122,6 +1272,7 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 							clientNode);
 
 			dir.replaceNode(src, f, newnode);
+			releaseSharedBlocks(newnode);
 			leaseManager.addLease(newnode.clientName, src);
 
 		} catch (IOException ie) {
@@ -1292,23 +1443,37 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 							.getClientMachine())));
 			return OPERATION_FAILED;
 		} else if (!checkFileProgress(pendingFile, true)) {
-			String s = "\n*******************************************\n" +
-					   "At FSNamesystem.java, in the func: completeFileInternal." +
-					   "Half return because file is still in progress.";
-			Debug.writeDebug(s);
+			if (LOG.isDebugEnabled()) {
+				String s = "\n*******************************************\n" +
+						   "At FSNamesystem.java, in the func: completeFileInternal." +
+						   "Half return because file is still in progress.";
+				Debug.writeDebug(s);
+			}
 			return STILL_WAITING;
 		}
 
+		// allocate the redundant blocks of the last group before the file
+		// is closed, so that they are carried over and logged with it
+		boolean packable = isPackable(pendingFile);
+		if (!packable) {
+			this.addCodingBlockToGroup(src, pendingFile, pendingFile
+					.getBlockSize());
+		}
 		finalizeINodeFileUnderConstruction(src, pendingFile);
-		
-		RSGroup[] groups = pendingFile.getGroups();
-		int numBlocksInFile = pendingFile.getBlockSize();
-		this.addCodingBlockToGroup(pendingFile, numBlocksInFile);
-		
-		for(int i = 0; i < (groups.length); i++)
+		INodeFile file = dir.getFileINode(src);
+		if (packable) {
+			packLastGroup(file);
+		}
+
+		for(int i = 0; i < file.getGroupSize(); i++)
 		{
-			if(groups[i].getCodingBlocks() != null){
-				this.neededEncodedGroups.add(groups[i]);
+			if(file.isGroupComplete(i)){
+				RSGroup group = file.getGroup(i);
+				// The client may have written the redundant blocks itself
+				if (!pendingEncodings.contains(group)
+						&& !isGroupEncoded(group)) {
+					this.neededEncodedGroups.add(group);
+				}
 			}
 		}
 
@@ -1358,7 +1523,7 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		// original number of block for coding
 		if(blkSize % this.RSm == 0)
 		{		
-			addCodingBlockToGroup(file, blkSize);		
+			addCodingBlockToGroup(src, file, blkSize);		
 		}
 		//TODO Add Complete
 		
@@ -1369,12 +1534,387 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		return b;
 	}
 	
+	/**
+	 * Get the group of a block: its shared group if it has one, else the
+	 * group of its file.
+	 */
+	RSGroup getGroup(INodeFile file, BlockInfo block) throws IOException {
+		RSGroup group = sharedGroups.getGroup(block);
+		if (group != null)
+			return group;
+		return file.getGroupfromBlock(block);
+	}
+
+	/*
+	 * Return true if the last group of the file is partial and is to be
+	 * shared with other files.
+	 */
+	private boolean isPackable(INodeFile file) {
+		int numGroups = file.getGroupSize();
+		return groupPacking && RSn > RSm && numGroups > 0
+				&& file.getBlockSize() % RSm != 0
+				&& !file.isGroupComplete(numGroups - 1);
+	}
+
+	/*
+	 * Put the blocks of the last, partial group of a closed file into the
+	 * pool of its directory. A shared group is built each time the pool
+	 * holds RSm blocks.
+	 */
+	private void packLastGroup(INodeFile file) throws IOException {
+		if (file == null || file.getParent() == null)
+			return;
+		BlockInfo[] blocks = file.getBlocks();
+		for (int i = (file.getGroupSize() - 1) * RSm; i < blocks.length; i++) {
+			poolBlock(file.getParent(), blocks[i]);
+		}
+	}
+
+	/*
+	 * Put a block into the pool of a directory and log it. A shared group is
+	 * built once the pool holds RSm blocks.
+	 */
+	private void poolBlock(INodeDirectory parent, BlockInfo block)
+			throws IOException {
+		if (sharedGroups.contains(block))
+			return;
+		List<BlockInfo> members = sharedGroups.pool(parent, block, RSm);
+		getEditLog().logPoolBlock(parent.getFullPathName(), block);
+		if (members != null)
+			addSharedGroup(members);
+	}
+
+	/*
+	 * A file reopened for append may grow its last group: take the blocks
+	 * of that group out of their shared group or pool.
+	 */
+	private void releaseSharedBlocks(INodeFile file) throws IOException {
+		BlockInfo[] blocks = file.getBlocks();
+		for (int i = Math.max(0, (file.getGroupSize() - 1) * RSm); i < blocks.length; i++) {
+			RSGroup group = sharedGroups.getGroup(blocks[i]);
+			if (group != null)
+				removeSharedGroup(group);
+			else if (sharedGroups.unpool(blocks[i]))
+				getEditLog().logPoolBlock(null, blocks[i]);
+		}
+	}
+
+	/*
+	 * Build a shared group of RSm data blocks, allocate its redundant
+	 * blocks and queue it for encoding. The redundant blocks belong to a
+	 * holder file that is not part of the namespace.
+	 */
+	private RSGroup addSharedGroup(List<BlockInfo> members) throws IOException {
+		int red = RSn - RSm;
+		short replication = 1;
+		for (BlockInfo b : members) {
+			INodeFile file = b.getINode();
+			if (file != null && file.getReplication() > replication)
+				replication = file.getReplication();
+		}
+		int groupId = sharedGroups.nextGroupId();
+		INodeFile holder = newHolder(groupId, replication);
+		BlockInfo[] blks = new BlockInfo[RSn];
+		for (int i = 0; i < RSm; i++)
+			blks[i] = members.get(i);
+		for (int i = 0; i < red; i++) {
+			Block b;
+			do {
+				b = new Block(FSNamesystem.randBlockId.nextLong(), 0,
+						getGenerationStamp());
+			} while (isValidBlock(b));
+			blks[RSm + i] = blocksMap.addINode(b, holder);
+			holder.setCodingBlocks(i, blks[RSm + i]);
+		}
+		RSGroup group = new RSGroup(groupId, blks, RSn, RSm, RSm, true);
+		sharedGroups.add(group, holder);
+		getEditLog().logSetSharedGroup(group, holder);
+		neededEncodedGroups.add(group);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Shared group " + group.getGroupName() + " is built");
+		}
+		return group;
+	}
+
+	/*
+	 * A member of a shared group is deleted or appended to: drop the group
+	 * and its redundant blocks. The remaining members go back to the pool of
+	 * their directory and keep the replication of their file meanwhile.
+	 */
+	private void removeSharedGroup(RSGroup group) throws IOException {
+		if (sharedGroups.remove(group) == null)
+			return;
+		if (dir.ready) {
+			// logged ahead of the delete, whose replay then finds no group
+			getEditLog().logRemoveSharedGroup(group.getGroupId());
+		}
+		neededEncodedGroups.remove(group, false);
+		pendingEncodings.remove(group);
+		encodedGroupsToTrim.remove(group);
+		for (BlockInfo c : group.getCodingBlocks()) {
+			blocksMap.removeINode(c);
+			corruptReplicas.removeFromCorruptReplicasMap(c);
+			addToInvalidates(c);
+		}
+		BlockInfo[] blks = group.getBlocks();
+		for (int i = 0; i < group.getNumOfRealBlocks(); i++) {
+			INodeFile file = blks[i].getINode();
+			if (file == null || file.getParent() == null)
+				continue; // deleted
+			blks[i].setEncoded(false);
+			NumberReplicas num = countNodes(blks[i]);
+			neededReplications.add(blks[i], num.liveReplicas(), num
+					.decommissionedReplicas(), file.getReplication());
+			if (!file.isUnderConstruction() && dir.ready)
+				poolBlock(file.getParent(), blks[i]);
+		}
+	}
+
+	/*
+	 * Move the pooled blocks of a renamed file to the pool of its new
+	 * directory. Shared groups are kept by block and need no update.
+	 */
+	private void movePooledBlocks(String dst) throws IOException {
+		INodeFile file = dir.getFileINode(dst);
+		if (file == null || file.getParent() == null
+				|| file.isUnderConstruction())
+			return;
+		for (BlockInfo b : file.getBlocks()) {
+			if (sharedGroups.unpool(b))
+				poolBlock(file.getParent(), b);
+		}
+	}
+
+	private INodeFile newHolder(int groupId, short replication) {
+		INodeFile holder = new INodeFile(defaultPermission, new BlockInfo[0],
+				new BlockInfo[RSn - RSm], replication, now(), defaultBlockSize,
+				RSn, RSm);
+		holder.setLocalName("grp_" + groupId);
+		return holder;
+	}
+
+	/**
+	 * Set a shared group read from the image or the edit log, replacing the
+	 * group of the same id. Its members leave the pools they wait in.
+	 */
+	void unprotectedSetSharedGroup(int groupId, short replication,
+			Block[] members, Block[] cBlocks) throws IOException {
+		unprotectedRemoveSharedGroup(groupId);
+		BlockInfo[] blks = new BlockInfo[RSn];
+		for (int i = 0; i < RSm; i++) {
+			blks[i] = blocksMap.getStoredBlock(members[i]);
+			if (blks[i] == null || blks[i].getINode() == null)
+				throw new IOException("Shared group " + groupId
+						+ " refers to unknown block " + members[i]);
+			sharedGroups.unpool(blks[i]);
+		}
+		INodeFile holder = newHolder(groupId, replication);
+		for (int i = 0; i < RSn - RSm; i++) {
+			blks[RSm + i] = blocksMap.addINode(cBlocks[i], holder);
+			holder.setCodingBlocks(i, blks[RSm + i]);
+		}
+		sharedGroups.add(new RSGroup(groupId, blks, RSn, RSm, RSm, true),
+				holder);
+		sharedGroups.reserveGroupId(groupId);
+	}
+
+	/**
+	 * Drop a shared group as recorded in the edit log. The re-pooling of its
+	 * members is logged on its own.
+	 */
+	void unprotectedRemoveSharedGroup(int groupId) {
+		RSGroup group = sharedGroups.getGroup(groupId);
+		if (group == null || sharedGroups.remove(group) == null)
+			return;
+		for (BlockInfo c : group.getCodingBlocks())
+			blocksMap.removeINode(c);
+	}
+
+	/**
+	 * Move a block into the pool of a directory as recorded in the edit log,
+	 * or only out of its pool if the path is empty. Shared groups are built
+	 * by their own records.
+	 */
+	void unprotectedPoolBlock(String path, Block block) throws IOException {
+		BlockInfo storedBlock = blocksMap.getStoredBlock(block);
+		if (storedBlock == null)
+			throw new IOException("Pooled block " + block + " is unknown");
+		sharedGroups.unpool(storedBlock);
+		if (path == null)
+			return;
+		INodeDirectory parent = getDirectory(path);
+		sharedGroups.restore(parent, storedBlock);
+	}
+
+	private INodeDirectory getDirectory(String path) throws IOException {
+		INode node = dir.rootDir.getNode(path);
+		if (node == null || !node.isDirectory())
+			throw new IOException("Pool directory " + path + " does not exist");
+		return (INodeDirectory) node;
+	}
+
+	/**
+	 * Save the shared groups, their holders and the pools to the image.
+	 */
+	void saveSharedGroups(DataOutputStream out) throws IOException {
+		List<RSGroup> groups = sharedGroups.getGroups();
+		out.writeInt(sharedGroups.getNextGroupId());
+		out.writeInt(groups.size());
+		for (RSGroup group : groups) {
+			out.writeInt(group.getGroupId());
+			out.writeShort(sharedGroups.getHolder(group).getReplication());
+			BlockInfo[] blks = group.getBlocks();
+			for (int i = 0; i < RSn; i++)
+				blks[i].write(out);
+		}
+		Map<INodeDirectory, List<BlockInfo>> pools = sharedGroups.getPools();
+		out.writeInt(pools.size());
+		for (Map.Entry<INodeDirectory, List<BlockInfo>> e : pools.entrySet()) {
+			FSImage.writeString(e.getKey().getFullPathName(), out);
+			out.writeInt(e.getValue().size());
+			for (BlockInfo b : e.getValue())
+				b.write(out);
+		}
+	}
+
+	/**
+	 * Load the shared groups and the pools saved by saveSharedGroups.
+	 */
+	void loadSharedGroups(DataInputStream in) throws IOException {
+		sharedGroups.reserveGroupId(in.readInt() - 1);
+		int numGroups = in.readInt();
+		Block[] members = new Block[RSm];
+		Block[] cBlocks = new Block[RSn - RSm];
+		for (int i = 0; i < numGroups; i++) {
+			int groupId = in.readInt();
+			short replication = in.readShort();
+			for (int j = 0; j < RSm; j++) {
+				members[j] = new Block();
+				members[j].readFields(in);
+			}
+			for (int j = 0; j < RSn - RSm; j++) {
+				cBlocks[j] = new Block();
+				cBlocks[j].readFields(in);
+			}
+			unprotectedSetSharedGroup(groupId, replication, members, cBlocks);
+		}
+		int numPools = in.readInt();
+		Block block = new Block();
+		for (int i = 0; i < numPools; i++) {
+			String path = FSImage.readString(in);
+			int size = in.readInt();
+			for (int j = 0; j < size; j++) {
+				block.readFields(in);
+				unprotectedPoolBlock(path, block);
+			}
+		}
+	}
+
+	/**
+	 * Return true if every redundant block of the group has been stored on
+	 * at least one datanode.
+	 */
+	private boolean isGroupEncoded(RSGroup group) {
+		for (BlockInfo b : group.getCodingBlocks()) {
+			if (blocksMap.numNodes(b) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The client computes the redundant blocks of a group while it writes
+	 * the file and stores them itself. Allocate the redundant blocks of the
+	 * given group if needed and choose their targets. The group is tracked
+	 * as pending, so that an encoding task is only scheduled if the client
+	 * does not deliver the blocks in time.
+	 * 
+	 * @param lastGroup true if the group ends with the last block of the
+	 *        file, so it may hold fewer than RSm blocks
+	 * @return the redundant blocks of the group and their targets
+	 */
+	public LocatedBlock[] getParityBlocks(String src, String clientName,
+			int groupIndex, boolean lastGroup) throws IOException {
+		RSGroup group;
+		int replication;
+		long blockSize;
+		DatanodeDescriptor clientNode;
+		synchronized (this) {
+			if (isInSafeMode()) {
+				throw new SafeModeException("Cannot add parity blocks to "
+						+ src, safeMode);
+			}
+			INodeFileUnderConstruction pendingFile = checkLease(src,
+					clientName);
+			int numBlocks = pendingFile.getBlockSize();
+			int numGroups = pendingFile.getGroupSize();
+			if (groupIndex < 0 || groupIndex >= numGroups) {
+				throw new IOException("File " + src + " has no group "
+						+ groupIndex);
+			}
+			if (!pendingFile.isGroupComplete(groupIndex)) {
+				if (groupIndex != numGroups - 1) {
+					throw new IOException("Groups of " + src
+							+ " must be encoded in order, group "
+							+ groupIndex + " is not the last one");
+				}
+				if (!lastGroup && numBlocks < (groupIndex + 1) * RSm) {
+					// the last data blocks of the group are not allocated yet
+					throw new NotReplicatedYetException("Group " + groupIndex
+							+ " of " + src + " is not full yet");
+				}
+				addCodingBlockToGroup(src, pendingFile, numBlocks);
+			}
+			group = pendingFile.getGroup(groupIndex);
+			if (pendingEncodings.contains(group)) {
+				// a datanode or an earlier call is storing the parity
+				throw new IOException("Parity of group " + groupIndex + " of "
+						+ src + " is already being written");
+			}
+			replication = pendingFile.getReplication();
+			blockSize = pendingFile.getPreferredBlockSize();
+			clientNode = pendingFile.getClientNode();
+			// claim the group now, the encoder scheduler skips pending groups
+			pendingEncodings.add(group, replication);
+		}
+		getEditLog().logSync();
+
+		BlockInfo[] cBlocks = group.getCodingBlocks();
+		LocatedBlock[] result = new LocatedBlock[cBlocks.length];
+		int numTargets = replication;
+		for (int i = 0; i < cBlocks.length; i++) {
+			DatanodeDescriptor targets[] = replicator.chooseTarget(
+					replication, clientNode, null, blockSize);
+			if (targets.length < this.minReplication) {
+				synchronized (this) {
+					pendingEncodings.remove(group);
+				}
+				throw new IOException("Parity of " + src
+						+ " could only be replicated to " + targets.length
+						+ " nodes, instead of " + minReplication);
+			}
+			for (DatanodeDescriptor dn : targets) {
+				dn.incBlocksScheduled();
+			}
+			numTargets = Math.min(numTargets, targets.length);
+			result[i] = new LocatedBlock(cBlocks[i], targets);
+		}
+		if (numTargets < replication) {
+			synchronized (this) {
+				pendingEncodings.remove(group);
+				pendingEncodings.add(group, numTargets);
+			}
+		}
+		return result;
+	}
+
 	/*
 	 *  Here we just add the latest block to the last group.
 	 *  At the mean time, we will figure out if it is the 
 	 *  very time to generate the redundant block
 	 */
-	public void addCodingBlockToGroup(INode file, int blkSize) throws IOException
+	public void addCodingBlockToGroup(String src, INode file, int blkSize)
+			throws IOException
 	{
 		// TODO Add the code to add a block into the group.
 		// Here, when the current block is ready for write,
@@ -1386,34 +1926,28 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		Block blocks[] = new Block[(n-m)];
 		BlockInfo newCodingBlocks[] = new BlockInfo[(n - m)];
 		
-		INodeFile filenode = (INodeFile) file;	
-		RSGroup lastGroup = filenode.getLastGroup(); 
-		if(lastGroup == null)
+		INodeFile filenode = (INodeFile) file;
+		int numGroups = filenode.getGroupSize();
+		if(numGroups == 0 || filenode.isGroupComplete(numGroups - 1))
 			return;
-		
+
+		// The empty blocks padding the last group up to m are not stored,
+		// the group view adds them once the redundant blocks exist.
 		if (blkSize != 0) { // When there is no block yet
-			int numCurBlocksInLastGroup = lastGroup.getBlockSize();
-			lastGroup.setNumOfRealBlocks(numCurBlocksInLastGroup);
-			if(numCurBlocksInLastGroup < m) { // Add some dirty blocks
-				for(int i = 0; i < (m - numCurBlocksInLastGroup); i++){
-					BlockInfo b = new BlockInfo(new Block(0, 0, 0), 0);
-					lastGroup.addBlock(b);
-				}
-			}
 			for (int i = 0; i < (n - m); i++) {
 				do {
 					blocks[i] = new Block(FSNamesystem.randBlockId.nextLong(),
 							0, getGenerationStamp());
 				} while (isValidBlock(blocks[i]));
-				Debug.writeDebug("The redundant block has been generated!!\n");
+				if (LOG.isDebugEnabled()) {
+					Debug.writeDebug("The redundant block has been generated!!\n");
+				}
 				this.blocksMap.addINode(blocks[i], filenode);
 				newCodingBlocks[i] = this.blocksMap.getStoredBlock(blocks[i]);
 				filenode.addCodingBlock(newCodingBlocks[i]);
 			}
+			getEditLog().logSetCodingBlocks(src, filenode);
 		}
-		
-		lastGroup.finish();
-		// TODO Add complete
 	}
 	
 	/**
@@ -1423,23 +1957,24 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	 */
 	synchronized boolean checkFileProgress(INodeFile v, boolean checkall) {
 		
-		String s = "At FSNamesystem.java, in the func: checkFileProgress.";
-		Debug.writeTime();
-		Debug.writeDebug(s);
 		if (checkall) {
 			//
 			// check all blocks of the file.
 			//
 			for (Block block : v.getBlocks()) {
-				if (blocksMap.numNodes(block) < this.minReplication) {				
-					Debug.writeDebug(s);
-					Debug.writeDebug("File is still in progress.");
-					Debug.writeDebug("Because Block " + 
-									 block +
-									 " have existed in only " +
-									 blocksMap.numNodes(block) +
-									 " nodes, which is less than the minReplication:" +
-									 this.minReplication);
+				int numNodes = blocksMap.numNodes(block);
+				if (numNodes < this.minReplication) {
+					if (LOG.isDebugEnabled()) {
+						Debug.writeTime();
+						Debug.writeDebug("At FSNamesystem.java, in the func: checkFileProgress.");
+						Debug.writeDebug("File is still in progress.");
+						Debug.writeDebug("Because Block " +
+										 block +
+										 " have existed in only " +
+										 numNodes +
+										 " nodes, which is less than the minReplication:" +
+										 this.minReplication);
+					}
 					return false;
 				}
 			}
@@ -1565,7 +2100,8 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			assert inode != null : (blk + " in blocksMap must belongs to a file.");
 			// Add this replica to corruptReplicas Map
 			corruptReplicas.addToCorruptReplicasMap(blk, node);
-			if (countNodes(blk).liveReplicas() > inode.getReplication()) {
+			if (countNodes(blk).liveReplicas() > getExpectedReplication(blk,
+					inode)) {
 				// the block is over-replicated so invalidate the replicas
 				// immediately
 				invalidateBlock(blk, node);
@@ -1648,8 +2184,12 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		}
 
 		DFSFileInfo dinfo = dir.getFileInfo(dst);
+		String actualdst = dir.isDir(dst) ? dst + Path.SEPARATOR
+				+ new Path(src).getName() : dst;
 		if (dir.renameTo(src, dst)) {
 			changeLease(src, dst, dinfo); // update lease with new filename
+			if (groupPacking)
+				movePooledBlocks(actualdst);
 			return true;
 		}
 		return false;
@@ -1703,6 +2243,11 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	void removePathAndBlocks(String src, List<Block> blocks) throws IOException {
 		leaseManager.removeLeaseWithPrefixPath(src);
 		for (Block b : blocks) {
+			RSGroup group = sharedGroups.getGroup(b);
+			if (group != null)
+				removeSharedGroup(group);
+			else
+				sharedGroups.unpool(b);
 			blocksMap.removeINode(b);
 			corruptReplicas.removeFromCorruptReplicasMap(b);
 			addToInvalidates(b);
@@ -1931,27 +2476,15 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			INodeFileUnderConstruction pendingFile) throws IOException {
 		leaseManager.removeLease(pendingFile.clientName, src);
 		// TODO SUR_ECCS.log <function:"Compare the variables in INodeFileUnderConstruction and INodeFile in file "+this.toString()>
-		String s = "At FSNamesystem.java, FSNamesystem.finalizeINodeFileUnderConstruction,"+
-				   "<function:Compare the variables in INodeFileUnderConstruction and INodeFile" + 
-				   ">";
-		Debug.writeTime();
-		Debug.writeDebug(s);
-		String s_INF_UC = "In INodeFileUnderConstruction, " // + pendingFile.toString()
-						  + "\n" +
-						  "blocks = \n";
-		for (BlockInfo b : pendingFile.getBlocks())
-			s_INF_UC = s_INF_UC + b.toString() + " \n";
-		s_INF_UC = s_INF_UC + "\n" + "groups = \n";
-		for (RSGroup r : pendingFile.getGroups())
-			s_INF_UC = s_INF_UC + r.toString() + " \n";
-		s_INF_UC = s_INF_UC + "\n" + "codingBlocks = \n";
-		if(pendingFile.getCodingBlocks() != null)
-		{
-		for (BlockInfo c : pendingFile.getCodingBlocks())
-			s_INF_UC = s_INF_UC + c.toString() + " \n";
+		if (LOG.isDebugEnabled()) {
+			String s = "At FSNamesystem.java, FSNamesystem.finalizeINodeFileUnderConstruction,"+
+					   "<function:Compare the variables in INodeFileUnderConstruction and INodeFile" +
+					   ">";
+			Debug.writeTime();
+			Debug.writeDebug(s);
+			Debug.writeDebug(fileLayoutToString(
+					"In INodeFileUnderConstruction, ", pendingFile));
 		}
-		s_INF_UC = s_INF_UC + "\n";
-		Debug.writeDebug(s_INF_UC);
 
 
 		// The file is no longer pending.
@@ -1959,29 +2492,37 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		INodeFile newFile = pendingFile.convertToInodeFile();
 		
 		// TODO SUR_ECCS.log <function:"Compare the variables in INodeFileUnderConstruction and INodeFile in file "+this.toString()>
-		String s_INF = "In INodeFile, "// + newFile.toString()
-						+ "\n" +
-					   "blocks = \n";
-		for (BlockInfo b : newFile.getBlocks())
-			s_INF = s_INF + b.toString() + " \n";
-		s_INF = s_INF + "\n" + "groups = \n";
-		for (RSGroup r : newFile.getGroups())
-			s_INF = s_INF + r.toString() + " \n";
-		s_INF = s_INF + "\n" + "codingBlocks = \n";
-		if(pendingFile.getCodingBlocks() != null)
-		{
-		for (BlockInfo c : newFile.getCodingBlocks())
-			s_INF = s_INF + c.toString() + " \n";
+		if (LOG.isDebugEnabled()) {
+			Debug.writeDebug(fileLayoutToString("In INodeFile, ", newFile));
 		}
-		s_INF = s_INF + "\n";
-		Debug.writeDebug(s_INF);
 		dir.replaceNode(src, pendingFile, newFile);
 
 		// close file and persist block allocations for this file
 		dir.closeFile(src, newFile);
 
 		checkReplicationFactor(newFile);
-		
+
+	}
+
+	/*
+	 * Describe the blocks, groups and redundant blocks of a file,
+	 * for debugging only.
+	 */
+	private static String fileLayoutToString(String prefix, INodeFile file) {
+		StringBuilder b = new StringBuilder(prefix);
+		b.append("\nblocks = \n");
+		for (BlockInfo blk : file.getBlocks())
+			b.append(blk).append(" \n");
+		b.append("\ngroups = \n");
+		for (int i = 0; i < file.getGroupSize(); i++)
+			b.append("grp_").append(i).append(" \n");
+		b.append("\ncodingBlocks = \n");
+		if (file.getCodingBlocks() != null) {
+			for (BlockInfo c : file.getCodingBlocks())
+				b.append(c).append(" \n");
+		}
+		b.append("\n");
+		return b.toString();
 	}
 
 	synchronized void commitBlockSynchronization(Block lastblock,
@@ -2346,20 +2887,25 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	 * If a substantial amount of time passed since the last datanode heartbeat
 	 * then request an immediate block report.
 	 * 
-	 * @return a datanode command
+	 * All kinds of pending work are handed out in the same reply, each
+	 * bounded by its own budget, so that encoding and decoding tasks are not
+	 * held back while the node still has replication or invalidation work.
+	 * 
+	 * @return an array of datanode commands, or null if there is no work
 	 * @throws IOException
 	 */
-	DatanodeCommand handleHeartbeat(DatanodeRegistration nodeReg,
+	DatanodeCommand[] handleHeartbeat(DatanodeRegistration nodeReg,
 			long capacity, long dfsUsed, long remaining, int xceiverCount,
-			int xmitsInProgress) throws IOException {
-		DatanodeCommand cmd = null;
+			int xmitsInProgress, int activeEncodes, int activeDecodes,
+			long codingBytesQueued, long codingThroughput) throws IOException {
+		List<DatanodeCommand> cmds = new ArrayList<DatanodeCommand>();
 		synchronized (heartbeats) {
 			synchronized (datanodeMap) {
 				DatanodeDescriptor nodeinfo = null;
 				try {
 					nodeinfo = getDatanode(nodeReg);
 				} catch (UnregisteredDatanodeException e) {
-					return DatanodeCommand.REGISTER;
+					return new DatanodeCommand[] { DatanodeCommand.REGISTER };
 				}
 
 				// Check if this datanode should actually be shutdown instead.
@@ -2369,39 +2915,36 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 				}
 
 				if (nodeinfo == null || !nodeinfo.isAlive) {
-					return DatanodeCommand.REGISTER;
+					return new DatanodeCommand[] { DatanodeCommand.REGISTER };
 				}
 
 				updateStats(nodeinfo, false);
 				nodeinfo.updateHeartbeat(capacity, dfsUsed, remaining,
 						xceiverCount);
+				nodeinfo.updateCodingLoad(activeEncodes, activeDecodes,
+						codingBytesQueued, codingThroughput);
 				updateStats(nodeinfo, true);
 
 				// check lease recovery
-				if (cmd == null) {
-					cmd = nodeinfo.getLeaseRecoveryCommand(Integer.MAX_VALUE);
-				}
+				addCommand(cmds, nodeinfo.getLeaseRecoveryCommand(Integer.MAX_VALUE));
 				// check pending replication
-				if (cmd == null) {
-					cmd = nodeinfo.getReplicationCommand(maxReplicationStreams
-							- xmitsInProgress);
-				}
+				addCommand(cmds, nodeinfo.getReplicationCommand(
+						maxReplicationStreams - xmitsInProgress));
 				// check block invalidation
-				if (cmd == null) {
-					cmd = nodeinfo.getInvalidateBlocks(blockInvalidateLimit);
-				}
-				
-				// TODO Add command for encoding
-				if(cmd == null){
-					// Cause we don't know the opration conditions for 
-					// coding task, we just currently support only one 
-					// coding task processing at one time.
-					cmd = nodeinfo.getEncodingCommand();
+				addCommand(cmds, nodeinfo.getInvalidateBlocks(blockInvalidateLimit));
+
+				// Coding tasks share their own budget, less the tasks the
+				// node is still running. Decoding repairs lost blocks, so it
+				// is served before encoding.
+				int codingSlots = maxCodingStreams
+						- nodeinfo.getActiveCodingTasks();
+				for (; codingSlots > 0; codingSlots--) {
+					if (!addCommand(cmds, nodeinfo.getDecodingCommand()))
+						break;
 				}
-				
-				// TODO Add command for decoding
-				if(cmd == null) {
-					cmd = nodeinfo.getDecodingCommand();
+				for (; codingSlots > 0; codingSlots--) {
+					if (!addCommand(cmds, nodeinfo.getEncodingCommand()))
+						break;
 				}
 			}
 		}
@@ -2413,16 +2956,25 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			// If we never processed a block report from this datanode, we
 			// shouldn't
 			// have any work for that as well
-			assert (cmd == null);
+			assert (cmds.isEmpty());
 			if (isResolved(nodeReg)) {
-				return DatanodeCommand.BLOCKREPORT;
+				return new DatanodeCommand[] { DatanodeCommand.BLOCKREPORT };
 			}
 		}
 		// check distributed upgrade
-		if (cmd == null) {
-			cmd = getDistributedUpgradeCommand();
+		if (cmds.isEmpty()) {
+			addCommand(cmds, getDistributedUpgradeCommand());
 		}
-		return cmd;
+		return cmds.isEmpty() ? null : cmds.toArray(new DatanodeCommand[cmds
+				.size()]);
+	}
+
+	private static boolean addCommand(List<DatanodeCommand> cmds,
+			DatanodeCommand cmd) {
+		if (cmd == null)
+			return false;
+		cmds.add(cmd);
+		return true;
 	}
 
 	private void updateStats(DatanodeDescriptor node, boolean isAdded) {
@@ -2494,6 +3046,147 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		}
 	}
 
+	/**
+	 * Periodically hands the files of the conversion directories to the
+	 * encoding scheduler, so that files stored before the encoding was
+	 * turned on get their groups encoded as well.
+	 */
+	class ConversionMonitor implements Runnable {
+		public void run() {
+			while (fsRunning) {
+				try {
+					Thread.sleep(conversionInterval);
+					convertFiles();
+				} catch (InterruptedException ie) {
+					LOG.warn("ConversionMonitor thread received InterruptedException."
+									+ ie);
+					break;
+				} catch (IOException ie) {
+					LOG.warn("ConversionMonitor thread received exception. "
+							+ ie);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walk the conversion directories from the last checkpoint on and queue
+	 * the groups of the files found for encoding. At most
+	 * dfs.encoding.conversion.files.per.iteration files are looked at per
+	 * call, and no more groups are queued once
+	 * dfs.encoding.conversion.max.queued.groups are waiting. The last file
+	 * looked at is logged after the coding blocks allocated for it, so that
+	 * the walk resumes there after a restart.
+	 */
+	void convertFiles() throws IOException {
+		if (isInSafeMode())
+			return;
+		int room = conversionMaxQueuedGroups - neededEncodedGroups.size();
+		if (room <= 0)
+			return;
+		String checkpoint = conversionCheckpoint;
+		String last = checkpoint;
+		int d = getConversionDirIndex(last);
+		if (d < 0) {
+			d = 0;
+			last = null;
+		}
+		int scanned = 0, queued = 0;
+		while (scanned < conversionFilesPerIteration && queued < room) {
+			int limit = conversionFilesPerIteration - scanned;
+			List<String> files = dir.getClosedFilesAfter(conversionDirs[d],
+					last, limit);
+			int i = 0;
+			for (; i < files.size() && queued < room; i++) {
+				queued += convertFile(files.get(i));
+				last = files.get(i);
+			}
+			scanned += i;
+			if (i < files.size() || files.size() == limit)
+				continue; // more files left in this directory
+			// move on to the next directory, starting at its top
+			if (++d == conversionDirs.length) {
+				LOG.info("Finished a pass of the encoding conversion");
+				last = null;
+				break;
+			}
+			last = conversionDirs[d];
+		}
+		if (queued > 0) {
+			LOG.info("Encoding conversion queued " + queued + " groups from "
+					+ scanned + " files");
+		}
+		if (last == null ? checkpoint != null : !last.equals(checkpoint)) {
+			synchronized (this) {
+				conversionCheckpoint = last;
+				getEditLog().logConversionCheckpoint(last);
+			}
+		}
+		getEditLog().logSync();
+	}
+
+	/*
+	 * Return the index of the conversion directory holding the path, or -1.
+	 */
+	private int getConversionDirIndex(String path) {
+		if (path == null)
+			return -1;
+		for (int i = 0; i < conversionDirs.length; i++) {
+			String d = conversionDirs[i];
+			if (path.equals(d) || path.startsWith(d.endsWith(Path.SEPARATOR) ? d
+					: d + Path.SEPARATOR))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Allocate the redundant blocks of a closed file that does not have
+	 * them yet, and queue its groups that are not encoded for encoding.
+	 * 
+	 * @return number of groups queued.
+	 */
+	private synchronized int convertFile(String src) throws IOException {
+		INodeFile file = dir.getFileINode(src);
+		if (file == null || file.isUnderConstruction())
+			return 0;
+		int numGroups = file.getGroupSize();
+		boolean packable = isPackable(file);
+		int numFileGroups = packable ? numGroups - 1 : numGroups;
+		// each call adds the redundant blocks of the next group
+		for (int i = 0; i < numFileGroups
+				&& !file.isGroupComplete(numFileGroups - 1); i++) {
+			addCodingBlockToGroup(src, file, file.getBlockSize());
+		}
+		if (packable)
+			packLastGroup(file);
+		int queued = 0;
+		for (int i = 0; i < numGroups; i++) {
+			if (!file.isGroupComplete(i))
+				continue;
+			RSGroup group = file.getGroup(i);
+			if (pendingEncodings.contains(group)
+					|| neededEncodedGroups.contains(group) != null
+					|| isGroupEncoded(group))
+				continue;
+			neededEncodedGroups.add(group);
+			queued++;
+		}
+		return queued;
+	}
+
+	String getConversionCheckpoint() {
+		return conversionCheckpoint;
+	}
+
+	/**
+	 * Restore the position of the encoding conversion from the image or the
+	 * edit log.
+	 */
+	void setConversionCheckpoint(String path) {
+		this.conversionCheckpoint = path;
+	}
+
 	// ///////////////////////////////////////////////////////
 	//
 	// These methods are called by the Namenode system, to see
@@ -2530,6 +3223,7 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		
 		if (workFound == 0) {
 			workFound = computeReplicationWork(blocksToProcess);
+			workFound += computeDecodingWork(blocksToProcess);
 
 			// Update FSNamesystemMetrics counters
 			pendingReplicationBlocksCount = pendingReplications.size();
@@ -2537,13 +3231,99 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			scheduledReplicationBlocksCount = workFound;
 		}
 
+		trimEncodedGroups(trimGroupsPerIteration);
+
 		if (workFound == 0)
 			workFound = computeInvalidateWork(nodesToProcess);
 		return workFound;
 	}
 	
+	/**
+	 * Lower the data blocks of encoded groups to dfs.encoded.replication.
+	 * The extra replicas are only dropped once all the redundant blocks of
+	 * the group are stored, and at most <code>groupsToProcess</code> groups
+	 * are handled per call so that the deletions are spread over time.
+	 * 
+	 * @return number of groups trimmed.
+	 */
+	private synchronized int trimEncodedGroups(int groupsToProcess) {
+		int trimmed = 0;
+		while (trimmed < groupsToProcess && !encodedGroupsToTrim.isEmpty()) {
+			RSGroup group = encodedGroupsToTrim.removeFirst();
+			if (!isGroupEncoded(group))
+				continue; // a redundant block got lost again
+			BlockInfo[] blks = group.getBlocks();
+			for (int i = 0; i < group.getNumOfRealBlocks(); i++) {
+				BlockInfo storedBlock = blocksMap.getStoredBlock(blks[i]);
+				if (storedBlock == null || storedBlock.getINode() == null)
+					continue; // the file has been deleted
+				INodeFile fileINode = storedBlock.getINode();
+				short fileReplication = fileINode.getReplication();
+				storedBlock.setEncoded(true);
+				short expected = getExpectedReplication(storedBlock, fileINode);
+				NumberReplicas num = countNodes(storedBlock);
+				int live = num.liveReplicas();
+				if (live > expected) {
+					encodedBytesReclaimed += (live - expected)
+							* storedBlock.getNumBytes();
+					processOverReplicatedBlock(storedBlock, expected, null, null);
+				}
+				if (live >= expected) {
+					neededReplications.remove(storedBlock, live,
+							num.decommissionedReplicas(), fileReplication);
+				}
+			}
+			trimmed++;
+		}
+		if (trimmed > 0 && LOG.isDebugEnabled()) {
+			LOG.debug("Trimmed " + trimmed + " encoded groups, "
+					+ encodedBytesReclaimed + " bytes reclaimed in total");
+		}
+		return trimmed;
+	}
+
+	/*
+	 * After a restart, mark the members of the encoded shared groups and
+	 * queue the other shared groups for encoding again.
+	 */
+	private void checkSharedGroups() {
+		for (RSGroup group : sharedGroups.getGroups()) {
+			if (!isGroupEncoded(group)) {
+				if (!pendingEncodings.contains(group))
+					neededEncodedGroups.add(group);
+				continue;
+			}
+			BlockInfo[] blks = group.getBlocks();
+			for (int i = 0; i < group.getNumOfRealBlocks(); i++)
+				blks[i].setEncoded(true);
+		}
+	}
+
+	/*
+	 * The encoded flag of the blocks is not persisted, set it again for
+	 * the groups of the file whose redundant blocks are all stored.
+	 */
+	private void markEncodedGroups(INodeFile file) {
+		if (file.isUnderConstruction())
+			return;
+		for (int i = 0; i < file.getGroupSize(); i++) {
+			if (!file.isGroupComplete(i))
+				continue;
+			RSGroup group = file.getGroup(i);
+			if (!isGroupEncoded(group))
+				continue;
+			BlockInfo[] blks = group.getBlocks();
+			for (int j = 0; j < group.getNumOfRealBlocks(); j++) {
+				BlockInfo storedBlock = blocksMap.getStoredBlock(blks[j]);
+				if (storedBlock != null)
+					storedBlock.setEncoded(true);
+			}
+		}
+	}
+
 	private int computeEncodingWork(int groupsToProcess) {
 		int scheduledEncodingCount = 0;
+		RSGroup group = null;
 		synchronized(neededEncodedGroups){
 			groupsToProcess = Math.min(groupsToProcess, neededEncodedGroups
 					.size());
@@ -2556,27 +3336,28 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 				neededEncodingsIter.next();
 			}
 			
-			groupsToProcess = 1; // We currently support only one group per time
-			for (int groupCnt = 0; groupCnt < groupsToProcess; groupCnt++) {
-				encodingIndex++;
-				if (!neededEncodingsIter.hasNext()) {
-					// start from the beginning
-					encodingIndex = 0;
-					groupsToProcess = Math.min(groupsToProcess,
-							neededReplications.size());
-					if (groupCnt >= groupsToProcess)
-						break;
-				}
-				RSGroup group = neededEncodingsIter.next().getGroup();
-				if(group != null) {
-					this.initiateEncodingProcess(group,scheduledEncodingCount);
-					try {
-						Thread.sleep(60*1000);
-					} catch(InterruptedException e){
-						// Log the exception
-					}
-				}
-			}		
+			// We currently support only one group per time
+			encodingIndex++;
+			if (!neededEncodingsIter.hasNext()) {
+				// start from the beginning
+				encodingIndex = 1;
+				neededEncodingsIter = neededEncodedGroups
+						.getUnderEncodedGroups().iterator();
+			}
+			group = neededEncodingsIter.next().getGroup();
+		}
+		if(group != null) {
+			// under the namesystem lock, so that getParityBlocks cannot hand
+			// the same group to a client meanwhile
+			synchronized (this) {
+				this.initiateEncodingProcess(group,scheduledEncodingCount);
+			}
+			getEditLog().logSync();
+			try {
+				Thread.sleep(60*1000);
+			} catch(InterruptedException e){
+				// Log the exception
+			}
 		}
 		return scheduledEncodingCount;
 	}
@@ -2588,9 +3369,12 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	private void initiateEncodingProcess(RSGroup group, int workFound)
 	{
 		// TODO This (n, m) should be configurable and RSn and RSm give a default value
+		final boolean debug = LOG.isDebugEnabled();
 		String s = "At FSNamesystem.java, In the func: initiateEncodingProcess";
-		Debug.writeTime();
-		Debug.writeDebug(s);
+		if (debug) {
+			Debug.writeTime();
+			Debug.writeDebug(s);
+		}
 		
 		if (group == null) {
 			encodingIndex--;
@@ -2599,6 +3383,13 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			Debug.writeDebug("Half return because the blks-refered group is null.");
 			return;
 		}
+		if (pendingEncodings.contains(group)) {
+			// its parity is being written by a client; the group comes back
+			// here if that times out
+			encodingIndex--;
+			neededEncodedGroups.remove(group, false);
+			return;
+		}
 		Block[] blks = group.getCodingBlocks();		
 		assert(blks != null);
 		
@@ -2635,25 +3426,30 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		BlockInfo[] grpBlocks = group.getBlocks();
 		int numRealSources = group.getNumOfRealBlocks();
 		
-		// For dubug
-		for(i = 0; i < grpBlocks.length; i++)
-		{
-			Debug.writeDebug("The pre-encoding blocks[" + i + "] is "+grpBlocks[i]);
+		if (debug) {
+			for(i = 0; i < grpBlocks.length; i++)
+			{
+				Debug.writeDebug("The pre-encoding blocks[" + i + "] is "+grpBlocks[i]);
+			}
 		}
 		DatanodeDescriptor sources[] = new DatanodeDescriptor[m];
 		// Choose the sourceNode from the other blocks in the same group
 		List<DatanodeDescriptor> containingNodes = new ArrayList<DatanodeDescriptor>();
 		NumberReplicas numReplicas = new NumberReplicas();
-		Debug.writeDebug("The real number of sources to read the block is:"
-				+ numRealSources);
+		if (debug) {
+			Debug.writeDebug("The real number of sources to read the block is:"
+					+ numRealSources);
+		}
 		for(i = 0; i < m; i++)
 		{
 			if (i < numRealSources) {
 				sources[i] = chooseSourceDatanode(grpBlocks[i],
 						containingNodes, numReplicas);
 
-				Debug.writeDebug("We get source node:" + sources[i] + " for "
-						+ grpBlocks[i]);
+				if (debug) {
+					Debug.writeDebug("We get source node:" + sources[i] + " for "
+							+ grpBlocks[i]);
+				}
 				if (sources[i] == null) {
 					// TODO log the failure, blocks' failures block the encoding
 					// process
@@ -2671,8 +3467,10 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			} else {
 				sources[i] = new DatanodeDescriptor((new DatanodeID(
 						"NullForCode", "0", 0, 0)));
-				Debug.writeDebug("We have an empty block of position-" + i
-						+ " in this group!");
+				if (debug) {
+					Debug.writeDebug("We have an empty block of position-" + i
+							+ " in this group!");
+				}
 			}
 		}
 		
@@ -2709,13 +3507,26 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 				//targets[j+i*size] = tar[i][j];
 			//}
 		//}
-		DatanodeDescriptor encodingNode = tar[0][0];
-		Debug.writeDebug("The target datanode chosen to conduct the encoding task is "
-						+ tar[0][0]);
+		DatanodeDescriptor encodingNode = chooseCodingNode(tar);
+		if (debug) {
+			Debug.writeDebug("The target datanode chosen to conduct the encoding task is "
+							+ encodingNode);
+		}
+		// A client may still be writing this group's parity from an earlier
+		// getParityBlocks hand-off; fence it off before the node writes the
+		// same block ids
+		fenceCodingBlocks(group);
 		encodingNode.addBlockToBeEncoded(blks, sources, tar, group);
 		encodingIndex--;
 		neededEncodedGroups.remove(group, false);
-		pendingEncodings.add(group, tar[0].length);
+		// Give the group twice the time the node should need to read the
+		// sources, on top of its queued coding work
+		long sourceBytes = 0;
+		for (i = 0; i < numRealSources; i++) {
+			sourceBytes += grpBlocks[i].getNumBytes();
+		}
+		pendingEncodings.add(group, tar[0].length, 2 * encodingNode
+				.estimateCodingTime(sourceBytes));
 		
 		for(i = 0; i < tar.length; i++){
 			for (DatanodeDescriptor dn : tar[i]) {
@@ -2724,10 +3535,49 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			}
 		}
 		
-		Debug.writeDebug("Out of the func: initiateEncodingProcess.");
+		if (debug) {
+			Debug.writeDebug("Out of the func: initiateEncodingProcess.");
+		}
 	}
 
 
+	/**
+	 * Give the coding blocks of a group a new generation stamp and drop the
+	 * replicas written so far. Replicas that a client or an earlier encoder
+	 * still finishes under the old stamp no longer match the stored blocks,
+	 * so they are refused in blockReceived and deleted on the next block
+	 * report.
+	 */
+	private void fenceCodingBlocks(RSGroup group) {
+		long stamp = nextGenerationStamp();
+		INodeFile file = null;
+		for (Block b : group.getCodingBlocks()) {
+			BlockInfo storedBlock = blocksMap.getStoredBlock(b);
+			if (storedBlock == null) {
+				continue;
+			}
+			List<DatanodeDescriptor> nodes = new ArrayList<DatanodeDescriptor>();
+			for (Iterator<DatanodeDescriptor> it = blocksMap
+					.nodeIterator(storedBlock); it.hasNext();) {
+				nodes.add(it.next());
+			}
+			Block stale = new Block(storedBlock);
+			for (DatanodeDescriptor node : nodes) {
+				blocksMap.removeNode(storedBlock, node);
+				addToInvalidates(stale, node);
+			}
+			// the table hashes on the block id only, so the entry stays put
+			storedBlock.set(storedBlock.getBlockId(), 0, stamp);
+			file = storedBlock.getINode();
+		}
+		INodeFile holder = sharedGroups.getHolder(group);
+		if (holder != null) {
+			getEditLog().logSetSharedGroup(group, holder);
+		} else if (file != null) {
+			getEditLog().logSetCodingBlocks(file.getFullPathName(), file);
+		}
+	}
+
 	private int computeInvalidateWork(int nodesToProcess) {
 		int blockCnt = 0;
 		for (int nodeCnt = 0; nodeCnt < nodesToProcess; nodeCnt++) {
@@ -2793,7 +3643,8 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 					replIndex--;
 					continue;
 				}
-				int requiredReplication = fileINode.getReplication();
+				int requiredReplication = getExpectedReplication(block,
+						fileINode);
 
 				// get a source data-node
 				List<DatanodeDescriptor> containingNodes = new ArrayList<DatanodeDescriptor>();
@@ -2801,11 +3652,13 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 				DatanodeDescriptor srcNode = chooseSourceDatanode(block,
 						containingNodes, numReplicas);
 				if (srcNode == null) {
-					// block can not be replicated from any node
-					// TODO but we can still recover it by coding method
-					processDecodingTask(block,neededReplicationsIterator,
-							scheduledReplicationCount);
-					// TODO
+					// block can not be replicated from any node, but it can
+					// still be recovered by decoding the rest of its group
+					if (queueForDecoding(fileINode, block)) {
+						neededReplicationsIterator.remove(); // remove from
+																// neededReplications
+						replIndex--;
+					}
 					continue;
 				}
 
@@ -2876,37 +3729,117 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		}
 		return scheduledReplicationCount;
 	}
+
+	/**
+	 * Schedule decoding of lost blocks, starting with the blocks whose group
+	 * has the least redundancy left.
+	 * 
+	 * @return number of blocks scheduled for decoding during this iteration.
+	 */
+	private synchronized int computeDecodingWork(int blocksToProcess) {
+		int scheduledDecodingCount = 0;
+		synchronized (neededDecodings) {
+			Iterator<Block> it = neededDecodings.iterator();
+			for (int blkCnt = 0; blkCnt < blocksToProcess && it.hasNext(); blkCnt++) {
+				Block block = it.next();
+				INodeFile fileINode = blocksMap.getINode(block);
+				if (fileINode == null // abandoned block
+						|| pendingReplications.getNumReplicas(block) > 0) {
+					it.remove();
+					continue;
+				}
+				NumberReplicas num = countNodes(block);
+				if (num.liveReplicas() > 0) {
+					// a replica showed up again, plain replication will do
+					it.remove();
+					neededReplications.add(block, num.liveReplicas(), num
+							.decommissionedReplicas(), getExpectedReplication(
+							block, fileINode));
+					continue;
+				}
+				int numTargets = processDecodingTask(block);
+				if (numTargets == 0)
+					continue;
+				scheduledDecodingCount++;
+				// Move the block to pending even with fewer targets than it
+				// needs: once the decoded replica is reported the block has a
+				// live replica, so neededReplications takes it at the level of
+				// its live replicas for the rest. If the decoding times out,
+				// the block goes back through neededReplications to here.
+				it.remove();
+				pendingReplications.add(block, numTargets);
+				if (NameNode.stateChangeLog.isDebugEnabled()) {
+					NameNode.stateChangeLog.debug("BLOCK* block " + block
+							+ " is moved from neededDecodings to pendingReplications");
+				}
+			}
+		}
+		return scheduledDecodingCount;
+	}
+
+	/**
+	 * Put a block without live replicas into the decoding queue, and move the
+	 * queued blocks of the same group to the group's new redundancy.
+	 * 
+	 * @return true if the block can be recovered by decoding and was queued.
+	 */
+	private boolean queueForDecoding(INodeFile fileINode, Block block) {
+		BlockInfo storedBlock = blocksMap.getStoredBlock(block);
+		if (storedBlock == null || countNodes(block).liveReplicas() > 0)
+			return false;
+		RSGroup group = null;
+		try {
+			group = getGroup(fileINode, storedBlock);
+		} catch (IOException e) {
+			return false;
+		}
+		if (group == null || !group.isComplete())
+			return false;
+		int lost = 0;
+		for (BlockInfo b : group.getBlocks()) {
+			if (b.getBlockId() != 0 && countNodes(b).liveReplicas() == 0)
+				lost++;
+		}
+		int redundancy = group.getN() - group.getM() - lost;
+		if (redundancy < 0)
+			return false;
+		for (BlockInfo b : group.getBlocks()) {
+			if (b.getBlockId() != 0
+					&& (b.equals(block) || neededDecodings.contains(b)))
+				neededDecodings.add(b, redundancy);
+		}
+		return true;
+	}
 	
 	/** TODO
 	 *It is necessary to process coding task when a block lost all its
 	 * replication and it could be recover from coding method by the other
 	 * blocks in the same group
 	 * @param block The broken block to be recovered from erasure decoding
-	 * @param neededReplicationsIterator The neededReplications list.</br>
-	 * After recovery processed, the task should be removed from needeReplications list,</br>
-	 * and meanwhile be added to the pendingReplications list
-	 * @param workFound The total work found during an assignation of the recover task
-	 */
-	private void processDecodingTask(Block block,
-						   Iterator<Block> neededReplicationsIterator,
-						   int workFound)
+	 * @return The number of targets the block is decoded to, 0 if the decoding
+	 * could not be scheduled
+	 */
+	private int processDecodingTask(Block block)
 	{
-		String s = "At FSNameSystem.java, In the func: FSNameSystem.processDecodingTask";
-		Debug.writeTime();
-		Debug.writeDebug(s);
+		final boolean debug = LOG.isDebugEnabled();
+		if (debug) {
+			String s = "At FSNameSystem.java, In the func: FSNameSystem.processDecodingTask";
+			Debug.writeTime();
+			Debug.writeDebug(s);
+		}
 		int i = 0;
 		int index = 0;
 		int n = RSn;
 		int m = RSm;
 		BlockInfo blkInfo = blocksMap.getStoredBlock(block);
-		if(blkInfo == null)			
-			return;					
+		if(blkInfo == null)
+			return 0;
 		int maxTargets = maxReplicationStreams;
 		INodeFile filenode = blocksMap.getINode(block);
 		//BlockInfo[] blocks = filenode.getBlocks();
 		//BlockInfo[] codingBlocks = filenode.getCodingBlocks();
 		
-		int requiredReplication = filenode.getReplication();
+		int requiredReplication = getExpectedReplication(block, filenode);
 		int allowDamaged = n - m;
 		//int needForCoding = FSConstants.RSm;
 		int blockDamaged = 0; // We have confirmed at least one blocks to be broken
@@ -2915,16 +3848,16 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		// Here the group should play a key role
 		RSGroup group = null;
 		try{
-			group = filenode.getGroupfromBlock(blkInfo);
+			group = getGroup(filenode, blkInfo);
 		}catch(IOException e){
 			Debug.writeDebug("IOException while getting block from group.");
 		}
 		
-		if(group == null) {
-			Debug.writeDebug("There's no group refer to the block " + block);
+		if(group == null || !group.isComplete()) {
+			Debug.writeDebug("There's no complete group refer to the block " + block);
 			// TODO Log the error message for the block does not belong to any group
-			return;
-		} else {
+			return 0;
+		} else if (debug) {
 			Debug.writeDebug("The group to process decoding task is:\n" + group);
 		}
 		BlockInfo[] grpBlocks = group.getBlocks();
@@ -2932,7 +3865,9 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 
 		int numRealSources = group.getNumOfRealBlocks();
 		
-		Debug.writeDebug("The number of real sources is:" + numRealSources);
+		if (debug) {
+			Debug.writeDebug("The number of real sources is:" + numRealSources);
+		}
 		DatanodeDescriptor sources[] = new DatanodeDescriptor[n];
 		// Choose the sourceNode from the other blocks in the same group
 		List<DatanodeDescriptor> containingNodes = new ArrayList<DatanodeDescriptor>();
@@ -2949,21 +3884,23 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 				}
 				if (sources[i] == null) {
 					blockDamaged++;
-				} else {
+				} else if (debug) {
 					Debug.writeDebug("The block:" + grpBlocks[i]
 							+ " could be got from source:" + sources[i]);
 				}
 			} else if(i >= numRealSources && i < m) { // We add some null sources for decoding
 				sources[i] = new DatanodeDescriptor((new DatanodeID(
 						"NullForCode", "0", 0, 0)));
-				Debug.writeDebug("We have an empty block of position-" + i
-						+ " in this group!");
+				if (debug) {
+					Debug.writeDebug("We have an empty block of position-" + i
+							+ " in this group!");
+				}
 			} else if(i >= m) { // Final is the redundant sources
 				sources[i] = chooseSourceDatanode(grpBlocks[i],
 						containingNodes, numReplicas);
 				if (sources[i] == null) {
 					blockDamaged++;
-				} else {
+				} else if (debug) {
 					Debug.writeDebug("The block:" + grpBlocks[i]
 							+ " could be got from source:" + sources[i]);
 				}
@@ -2978,32 +3915,41 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			}
 			group.setUnableToCode();
 			Debug.writeDebug("Damage overwhelmed, we cannot process the decode!");
-			return;
+			return 0;
 		}
 		DatanodeDescriptor targets[] = replicator.chooseTarget(Math
 				.min(requiredReplication,maxTargets),null, new ArrayList<DatanodeDescriptor>(), 
 				null, FSConstants.DEFAULT_BLOCK_SIZE);
 		if(targets.length == 0)
-			return;
-		DatanodeDescriptor srcNode = targets[0]; // The first targets will do the coding task
+			return 0;
+		// The least loaded target will do the coding task
+		DatanodeDescriptor srcNode = chooseCodingNode(
+				new DatanodeDescriptor[][] { targets });
 		//scheduledReplication++;
 		srcNode.addBlockToBeDecoded(block,sources,targets, index, group);
-		workFound++;
 		for(DatanodeDescriptor dn : targets) {
 			dn.incBlocksScheduled();
 		}
-		
-		if (targets.length >= requiredReplication) {
-			neededReplicationsIterator.remove(); // remove from
-													// neededReplications
-			replIndex--;
-			pendingReplications.add(block, targets.length);
-			NameNode.stateChangeLog
-					.debug("BLOCK* block "
-							+ block
-							+ " is moved from neededReplications to pendingReplications");
+		return targets.length;
+	}
+
+	/**
+	 * Choose the target with the least coding work to run a coding task.
+	 * Nodes are compared by the number of coding tasks they run or have
+	 * queued, then by the time they need to read their queued source bytes.
+	 */
+	private DatanodeDescriptor chooseCodingNode(DatanodeDescriptor[][] targets) {
+		DatanodeDescriptor best = targets[0][0];
+		for (DatanodeDescriptor[] tars : targets) {
+			for (DatanodeDescriptor node : tars) {
+				int diff = node.getCodingLoad() - best.getCodingLoad();
+				if (diff < 0 || (diff == 0
+						&& node.getCodingBacklog() < best.getCodingBacklog())) {
+					best = node;
+				}
+			}
 		}
-				
+		return best;
 	}
 
 	/**
@@ -3308,7 +4254,7 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	 * (machine-->blocklist) and (block-->machinelist) tables.
 	 */
 	public synchronized void processReport(DatanodeID nodeID,
-			BlockListAsLongs newReport) throws IOException {
+			PackedBlockList newReport) throws IOException {
 		long startTime = now();
 		if (NameNode.stateChangeLog.isDebugEnabled()) {
 			NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReport: "
@@ -3362,6 +4308,75 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 				.inc((int) (now() - startTime));
 	}
 
+	/**
+	 * The given node is reporting the blocks it finalized and removed since
+	 * its last report. Only these blocks are reconciled, so the time spent
+	 * here follows the amount of change rather than the number of blocks on
+	 * the node.
+	 */
+	public synchronized void processDeltaReport(DatanodeID nodeID,
+			PackedBlockList added, PackedBlockList removed)
+			throws IOException {
+		long startTime = now();
+		if (NameNode.stateChangeLog.isDebugEnabled()) {
+			NameNode.stateChangeLog.debug("BLOCK* NameSystem.processDeltaReport: "
+					+ "from " + nodeID.getName() + " "
+					+ added.getNumberOfBlocks() + " added and "
+					+ removed.getNumberOfBlocks() + " removed blocks");
+		}
+		DatanodeDescriptor node = getDatanode(nodeID);
+		if (node == null) {
+			throw new IOException("ProcessDeltaReport from unregisterted node: "
+					+ nodeID.getName());
+		}
+
+		// Check if this datanode should actually be shutdown instead.
+		if (shouldNodeShutdown(node)) {
+			setDatanodeDead(node);
+			throw new DisallowedDatanodeException(node);
+		}
+
+		// a delta is only meaningful on top of a full report
+		if (!node.getBlockReportProcessed()) {
+			throw new IOException("ProcessDeltaReport from " + nodeID.getName()
+					+ " before its first full block report");
+		}
+
+		// reuse one block for the lookups, as in reportDiff
+		Block iblk = new Block();
+		for (int i = 0; i < removed.getNumberOfBlocks(); i++) {
+			iblk.set(removed.getBlockId(i), removed.getBlockLen(i), removed
+					.getBlockGenStamp(i));
+			BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
+			if (storedBlock != null && storedBlock.findDatanode(node) >= 0) {
+				removeStoredBlock(storedBlock, node);
+			}
+		}
+		for (int i = 0; i < added.getNumberOfBlocks(); i++) {
+			iblk.set(added.getBlockId(i), added.getBlockLen(i), added
+					.getBlockGenStamp(i));
+			BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
+			if (storedBlock == null) {
+				// the block does not belong to any file
+				Block b = new Block(iblk);
+				NameNode.stateChangeLog
+						.info("BLOCK* NameSystem.processDeltaReport: block "
+								+ b + " on " + node.getName() + " size "
+								+ b.getNumBytes()
+								+ " does not belong to any file.");
+				addToInvalidates(b, node);
+				continue;
+			}
+			if (storedBlock.findDatanode(node) < 0) {
+				// a new length is picked up by addStoredBlock
+				addStoredBlock(storedBlock.getNumBytes() != iblk.getNumBytes()
+						? new Block(iblk) : storedBlock, node, null);
+			}
+		}
+		NameNode.getNameNodeMetrics().blockReport
+				.inc((int) (now() - startTime));
+	}
+
 	/**
 	 * Modify (block-->datanode) map. Remove block from set of needed
 	 * replications if this takes care of the problem.
@@ -3408,7 +4423,8 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 											+ " from "
 											+ node.getName()
 											+ "as corrupt because its length is shorter than existing ones");
-							markBlockAsCorrupt(block, node);
+							// the stored block, the reported one may be reused
+							markBlockAsCorrupt(storedBlock, node);
 						} else {
 							// new replica is larger in size than existing
 							// block.
@@ -3431,7 +4447,7 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 												+ " from "
 												+ node.getName()
 												+ " as corrupt because its length is shorter than the new one");
-								markBlockAsCorrupt(block, nodes[j]);
+								markBlockAsCorrupt(storedBlock, nodes[j]);
 							}
 							//
 							// change the size of block in blocksMap
@@ -3505,14 +4521,14 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 			return block;
 
 		// handle underReplication/overReplication
-		short fileReplication = fileINode.getReplication();
+		short fileReplication = getExpectedReplication(storedBlock, fileINode);
 		if (numCurrentReplica >= fileReplication) {
 			neededReplications.remove(block, numCurrentReplica,
 					num.decommissionedReplicas, fileReplication);
 			// TODO
 			RSGroup group = null;
 			try {
-				group = fileINode.getGroupfromBlock(storedBlock);
+				group = getGroup(fileINode, storedBlock);
 			} catch(IOException e) {
 				// Log the exception
 			}
@@ -3582,6 +4598,10 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 	private synchronized void processMisReplicatedBlocks() {
 		long nrInvalid = 0, nrOverReplicated = 0, nrUnderReplicated = 0;
 		neededReplications.clear();
+		neededDecodings.clear();
+		encodedGroupsToTrim.clear();
+		checkSharedGroups();
+		Set<INodeFile> filesChecked = new HashSet<INodeFile>();
 		for (BlocksMap.BlockInfo block : blocksMap.getBlocks()) {
 			INodeFile fileINode = block.getINode();
 			if (fileINode == null) {
@@ -3591,7 +4611,11 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 				continue;
 			}
 			// calculate current replication
-			short expectedReplication = fileINode.getReplication();
+			if (encodedReplication > 0 && !block.isEncoded()
+					&& filesChecked.add(fileINode))
+				markEncodedGroups(fileINode);
+			short expectedReplication = getExpectedReplication(block,
+					fileINode);
 			NumberReplicas num = countNodes(block);
 			int numCurrentReplica = num.liveReplicas();
 			// add to under-replicated queue if need to be
@@ -3815,6 +4839,21 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		corruptReplicas.removeFromCorruptReplicasMap(block, node);
 	}
 
+	/**
+	 * The given node is reporting that it received the given blocks.
+	 */
+	public synchronized void blockReceived(DatanodeID nodeID,
+			PackedBlockList blocks, String[] delHints) throws IOException {
+		// one block reused for every entry, as in processReport; nothing
+		// below keeps a reference to it
+		Block block = new Block();
+		for (int i = 0; i < blocks.getNumberOfBlocks(); i++) {
+			block.set(blocks.getBlockId(i), blocks.getBlockLen(i), blocks
+					.getBlockGenStamp(i));
+			blockReceived(nodeID, block, delHints[i]);
+		}
+	}
+
 	/**
 	 * The given node is reporting that it received a certain block.
 	 */
@@ -3863,11 +4902,14 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		pendingReplications.remove(block);
 		// TODO
 		BlockInfo storedBlock = blocksMap.getStoredBlock(block);
-		INodeFile filenode = storedBlock.getINode();
+		// null for a stale replica of a fenced coding block
+		INodeFile filenode = storedBlock == null ? null : storedBlock.getINode();
 		if(filenode != null) {
-			RSGroup group = filenode.getGroupfromBlock(storedBlock);
-			if(group != null)
-				pendingEncodings.remove(group);
+			RSGroup group = getGroup(filenode, storedBlock);
+			if (group != null && pendingEncodings.remove(group, block)
+					&& encodedReplication > 0) {
+				encodedGroupsToTrim.add(group);
+			}
 		}
 		addStoredBlock(block, node, delHintNode);
 	}
@@ -5005,6 +6047,10 @@ class FSNamesystem implements FSConstants, FSNamesystemMBean {
 		return this.scheduledEncodingTasks;
 	}
 
+	public long getEncodedBytesReclaimed(){
+		return this.encodedBytesReclaimed;
+	}
+
 	public String getFSState() {
 		return isInSafeMode() ? "safeMode" : "Operational";
 	}
@@ -254,6 +254,20 @@ abstract class INode implements Comparable<byte[]> {
 		return this.parent;
 	}
 
+	/**
+	 * Get the absolute path of this inode, built from its ancestors
+	 */
+	String getFullPathName() {
+		if (parent == null) {
+			return Path.SEPARATOR;
+		}
+		StringBuilder path = new StringBuilder();
+		for (INode node = this; node.parent != null; node = node.parent) {
+			path.insert(0, node.getLocalName()).insert(0, Path.SEPARATOR);
+		}
+		return path.toString();
+	}
+
 	/**
 	 * Get last modification time of inode.
 	 * 
@@ -846,15 +860,19 @@ class INodeFile extends INode {
 	protected short blockReplication;
 	protected long preferredBlockSize;
 
-	// TODO Add the group List in InodeFile
-	// The group will not currently support the FSImage,
-	// Obviously, we will get an updated modification to 
-	// support that operation.
-	protected RSGroup groups[] = null;
+	// Groups are not stored in the file. The group of a block is fully
+	// determined by its position: the i-th data block belongs to group
+	// i / RSm and the i-th redundant block to group i / (RSn - RSm).
+	// Groups are built on demand by getGroup(int).
 	protected BlockInfo codingBlocks[] = null;
 	protected int RSn;
 	protected int RSm;
 
+	// the empty block padding the last group of a file, shared by all the
+	// group views
+	private static final BlockInfo PADDING = new BlockInfo(
+			new Block(0, 0, 0), 0);
+
 	// TODO
 
 	INodeFile(PermissionStatus permissions, int nrBlocks, short replication,
@@ -867,9 +885,9 @@ class INodeFile extends INode {
 	// TODO Important!! This construct method will support the convert between
 	// INodeFile and INodeFileUnderConstruction
 	INodeFile(PermissionStatus permissions, int nrBlocks, int nrCodedBlocks,
-			RSGroup[] groups, short replication,
-			long modificationTime, long preferredBlockSize, int n, int m) {
-		this(permissions, new BlockInfo[nrBlocks], groups,
+			short replication, long modificationTime,
+			long preferredBlockSize, int n, int m) {
+		this(permissions, new BlockInfo[nrBlocks],
 				new BlockInfo[nrCodedBlocks], replication,
 				modificationTime, preferredBlockSize, n, m);
 	}
@@ -879,9 +897,7 @@ class INodeFile extends INode {
 		blockReplication = 0;
 		preferredBlockSize = 0;
 
-		// TODO add groups here
-		groups = null;
-		codingBlocks = null;		
+		codingBlocks = null;
 		Configuration conf = new Configuration();		
 		this.RSn = conf.getInt("dfs.RSn", FSConstants.RSn);
 		this.RSm = conf.getInt("dfs.RSm", FSConstants.RSm);
@@ -893,9 +909,9 @@ class INodeFile extends INode {
 		this.blockReplication = replication;
 		this.preferredBlockSize = preferredBlockSize;
 		blocks = blklist;
-		groups = null;
+		setIndexes(blocks, false);
 		codingBlocks = null;
-		Configuration conf = new Configuration();		
+		Configuration conf = new Configuration();
 		this.RSn = conf.getInt("dfs.RSn", FSConstants.RSn);
 		this.RSm = conf.getInt("dfs.RSm", FSConstants.RSm);
 	}
@@ -903,14 +919,15 @@ class INodeFile extends INode {
 	// TODO Important!! This construct method will support the convert between
 	// INodeFile and INodeFileUnderConstruction
 	protected INodeFile(PermissionStatus permissions, BlockInfo[] blklist,
-			RSGroup[] grpList, BlockInfo[] codedBlkList, short replication,
+			BlockInfo[] codedBlkList, short replication,
 			long modificationTime, long preferredBlockSize, int n, int m) {
 		super(permissions, modificationTime);
 		this.blockReplication = replication;
 		this.preferredBlockSize = preferredBlockSize;
 		blocks = blklist;
-		groups = grpList;
 		codingBlocks = codedBlkList;
+		setIndexes(blocks, false);
+		setIndexes(codingBlocks, true);
 		RSn = n;
 		RSm = m;		
 	}
@@ -949,48 +966,62 @@ class INodeFile extends INode {
 		return this.blocks;
 	}
 
-	// TODO Add here, Get file groups
-	// @return file groups
+	/**
+	 * Get file groups
+	 *
+	 * @return views of all the groups of the file, or null if the file has
+	 *         no blocks yet
+	 */
 	public RSGroup[] getGroups() {
-		return this.groups;
+		int size = this.getGroupSize();
+		if (size == 0) {
+			return null;
+		}
+		RSGroup[] grps = new RSGroup[size];
+		for (int i = 0; i < size; i++) {
+			grps[i] = this.getGroup(i);
+		}
+		return grps;
 	}
-	
-	/*
-	 * Function Name: addGroup
-	 * @input RSGroup newGroup:��ǰҪ��ӵ�group
-	 * @return void
+
+	/**
+	 * A group is complete once its redundant blocks are allocated.
 	 */
-	public void addGroup(RSGroup newGroup) throws IOException {
-		// TODO SUR_ECCS.log <function:"Add newGroup "+newGroup+" to file "+this.toString()>
-		String s = "At INode.java, INodeFile.addGroup,"+
-				   "<function:Add newGroup " +
-				   newGroup + 
-				   " to file " +
-				   this.toString()+">";
-		Debug.writeTime();
-		Debug.writeDebug(s);
-		
-		if (this.groups == null) {
-			this.groups = new RSGroup[1];
-			this.groups[0] = newGroup;
-		} else {
-			int size = this.groups.length;
-			RSGroup[] newlist = new RSGroup[size + 1];
-			for (int i = 0; i < size; i++) {
-				newlist[i] = this.groups[i];
+	boolean isGroupComplete(int grpIndex) {
+		int red = RSn - RSm;
+		return red > 0 && this.codingBlocks != null
+				&& this.codingBlocks.length >= (grpIndex + 1) * red;
+	}
+
+	/**
+	 * Build the view of the grpIndex-th group of the file. The group holds
+	 * the real data blocks of the group and, once the group is complete,
+	 * empty blocks up to RSm followed by the RSn - RSm redundant blocks.
+	 */
+	RSGroup getGroup(int grpIndex) {
+		int first = grpIndex * RSm;
+		int numOfRealBlocks = Math.min(RSm, this.blocks.length - first);
+		boolean complete = this.isGroupComplete(grpIndex);
+		BlockInfo[] grpBlocks = new BlockInfo[complete ? RSn
+				: numOfRealBlocks];
+		System.arraycopy(this.blocks, first, grpBlocks, 0, numOfRealBlocks);
+		if (complete) {
+			for (int i = numOfRealBlocks; i < RSm; i++) {
+				grpBlocks[i] = PADDING;
 			}
-			newlist[size] = newGroup;
-			this.groups = newlist;
+			System.arraycopy(this.codingBlocks, grpIndex * (RSn - RSm),
+					grpBlocks, RSm, RSn - RSm);
 		}
+		return new RSGroup(grpIndex, grpBlocks, RSn, RSm, numOfRealBlocks,
+				complete);
 	}
 
 	public RSGroup getLastGroup() {
-
-		if (this.groups == null) {
+		int size = this.getGroupSize();
+		if (size == 0) {
 			return (RSGroup) null;
 		}
-		int size = this.groups.length;
-		return this.groups[size - 1];
+		return this.getGroup(size - 1);
 	}
 
 	/*
@@ -1001,14 +1032,18 @@ class INodeFile extends INode {
 	 */
 	void addCodingBlock(BlockInfo newblock) throws IOException {
 		// TODO SUR_ECCS.log <function:"Add new redundant block "+newBlock+" to file "+this.toString()>
-		String s = "At INode.java, INodeFile.addCodingBlock,"+
-				   "<function:Add new redundant block " +
-				   newblock + 
-				   " to file " +
-				   this.toString()+">";
-		Debug.writeTime();
-		Debug.writeDebug(s);
+		if (FSNamesystem.LOG.isDebugEnabled()) {
+			String s = "At INode.java, INodeFile.addCodingBlock,"+
+					   "<function:Add new redundant block " +
+					   newblock +
+					   " to file " +
+					   this.toString()+">";
+			Debug.writeTime();
+			Debug.writeDebug(s);
+		}
 	
+		newblock.setFileIndex(this.codingBlocks == null ? 0
+				: this.codingBlocks.length, true);
 		if (this.codingBlocks == null) {
 			this.codingBlocks = new BlockInfo[1];
 			this.codingBlocks[0] = newblock;
@@ -1021,8 +1056,6 @@ class INodeFile extends INode {
 			newlist[size] = newblock;
 			this.codingBlocks = newlist;
 		}
-		RSGroup lastGroup = this.getLastGroup();
-		lastGroup.addBlock(newblock);
 	}
 
 	BlockInfo[] getCodingBlocks() {
@@ -1031,34 +1064,56 @@ class INodeFile extends INode {
 
 	void setCodingBlocks(int idx, BlockInfo blk) {
 		this.codingBlocks[idx] = blk;
-		int numCodingBlock = (RSn - RSm);
-		if (this.groups != null) {
-			int grpIndex = (int) (idx / numCodingBlock);
-			int blockInGroup = (int) (idx % numCodingBlock);
-			RSGroup group = this.groups[grpIndex];
-			group.setBlock(blockInGroup, blk);
+		blk.setFileIndex(idx, true);
+	}
+
+	void setCodingBlocks(BlockInfo[] codedBlkList) {
+		this.codingBlocks = codedBlkList;
+		setIndexes(codingBlocks, true);
+	}
+
+	/* Record the position of each block of a block list */
+	private static void setIndexes(BlockInfo[] list, boolean coding) {
+		for (int i = 0; list != null && i < list.length; i++) {
+			if (list[i] != null) {
+				list[i].setFileIndex(i, coding);
+			}
 		}
 	}
 
-	RSGroup getGroupfromBlock(BlockInfo block) throws IOException {		
-		if (this.groups == null)
-			return (RSGroup) null;
-		int size = this.groups.length;
-		int i = 0;
-		for (; i < size; i++) {
-			if (-1 != this.groups[i].getGroupfromBlock(block))
-				break;
+	/**
+	 * Get the group of a block of this file. The group follows from the
+	 * position recorded in the block; the block lists are only searched if
+	 * the block does not carry its position in this file.
+	 */
+	RSGroup getGroupfromBlock(BlockInfo block) throws IOException {
+		int idx = block.getFileIndex();
+		BlockInfo[] list = block.isCodingBlock() ? this.codingBlocks
+				: this.blocks;
+		if (idx >= 0 && list != null && idx < list.length
+				&& list[idx] != null
+				&& list[idx].getBlockId() == block.getBlockId()) {
+			return this.getGroup(block.isCodingBlock() ? idx / (RSn - RSm)
+					: idx / RSm);
 		}
-		if (i == size){
+		if (this.blocks != null) {
+			for (int i = 0; i < this.blocks.length; i++) {
+				if (this.blocks[i].getBlockId() == block.getBlockId())
+					return this.getGroup(i / RSm);
+			}
+		}
+		if (this.codingBlocks != null) {
+			for (int i = 0; i < this.codingBlocks.length; i++) {
+				if (this.codingBlocks[i].getBlockId() == block.getBlockId())
+					return this.getGroup(i / (RSn - RSm));
+			}
+		}
+		if (FSNamesystem.LOG.isDebugEnabled()) {
 			String s = "<Could not find block " +
 					   block + " at any group.>";
 			Debug.writeDebug(s);
-			return (RSGroup) null;
-		}
-		else
-		{
-			return groups[i];
 		}
+		return (RSGroup) null;
 	}
 
 	// TODO Add complete
@@ -1069,22 +1124,25 @@ class INodeFile extends INode {
 	 */
 	void addBlock(BlockInfo newblock) throws IOException {
 		// TODO SUR_ECCS.log <function:"Add new block "+newBlock+" to file "+this.toString()>
-		String s = "At INode.java, INodeFile.addBlock,"+
-				   "<function:Add new block " +
-				   newblock + 
-				   " to file " +
-				   this.toString()+">";
-		Debug.writeTime();
-		Debug.writeDebug(s);
-
-		// TODO m should be revise to be configurable	
-		int size = 0;
-		int grpSize = this.getGroupSize();
+		if (FSNamesystem.LOG.isDebugEnabled()) {
+			String s = "At INode.java, INodeFile.addBlock,"+
+					   "<function:Add new block " +
+					   newblock +
+					   " to file " +
+					   this.toString()+">";
+			Debug.writeTime();
+			Debug.writeDebug(s);
+		}
+
+		// The block joins group (size / RSm), a new group is
+		// started every RSm blocks.
+		newblock.setFileIndex(this.blocks == null ? 0 : this.blocks.length,
+				false);
 		if (this.blocks == null) {
 			this.blocks = new BlockInfo[1];
 			this.blocks[0] = newblock;
 		} else {
-			size = this.blocks.length;
+			int size = this.blocks.length;
 			BlockInfo[] newlist = new BlockInfo[size + 1];
 			for (int i = 0; i < size; i++) {
 				newlist[i] = this.blocks[i];
@@ -1092,18 +1150,6 @@ class INodeFile extends INode {
 			newlist[size] = newblock;
 			this.blocks = newlist;
 		}
-		// size == 0 indicate this is the first add
-		// and we just update the data in the first add 
-		// TODO I choose here to add the block to ensure consistency
-		if (size % RSm == 0) {
-			RSGroup newGroup = new RSGroup(grpSize++, RSn, RSn, RSm);
-			this.addGroup(newGroup);			
-		}
-		// We must make sure that at least one block is in the blocks
-		// So we can add it to the latest group.
-		RSGroup lastGroup = this.groups[grpSize - 1];
-		lastGroup.addBlock(newblock);
-		// TODO
 	}
 
 	// TODO New code added, to get the current Size of Blocks in INodeFile
@@ -1115,10 +1161,10 @@ class INodeFile extends INode {
 	}
 
 	int getGroupSize() {
-		if (this.groups == null)
+		if (this.blocks == null)
 			return 0;
 		else
-			return this.groups.length;
+			return (this.blocks.length + RSm - 1) / RSm;
 	}
 
 	// TODO
@@ -1128,15 +1174,7 @@ class INodeFile extends INode {
 	 */
 	void setBlock(int idx, BlockInfo blk) {
 		this.blocks[idx] = blk;
-
-		// TODO We must meanwhile update the block in the group
-		if (this.groups != null) {
-			int grpIndex = (int) (idx / RSm);
-			int blockInGroup = (int) (idx % RSm);
-			RSGroup group = this.groups[grpIndex];
-			group.setBlock(blockInGroup, blk);
-		}
-		// TODO add here
+		blk.setFileIndex(idx, false);
 	}
 
 	int collectSubtreeBlocksAndClear(List<Block> v) {
@@ -1145,12 +1183,13 @@ class INodeFile extends INode {
 			v.add(blk);
 		}
 		// TODO to add the coding blocks to be removed list
-		for (Block cblk : codingBlocks) {
-			v.add(cblk);
+		if (codingBlocks != null) {
+			for (Block cblk : codingBlocks) {
+				v.add(cblk);
+			}
 		}
 		blocks = null;
 		codingBlocks = null; // TODO
-		groups = null;
 		return 1;
 	}
 
@@ -1192,8 +1231,7 @@ class INodeFile extends INode {
 		}
 		// TODO change to support groups and codingBlocks
 		return new INodeFileUnderConstruction(name, blockReplication,
-				modificationTime, preferredBlockSize, blocks, groups, 
-				codingBlocks,
+				modificationTime, preferredBlockSize, blocks, codingBlocks,
 				getPermissionStatus(), clientName, clientMachine, clientNode, RSn, RSm);
 		// TODO
 		
@@ -1242,10 +1280,10 @@ class INodeFileUnderConstruction extends INodeFile {
 	// TODO add here to support the construct of groups and codingBlocks
 	INodeFileUnderConstruction(byte[] name, short blockReplication,
 			long modificationTime, long preferredBlockSize, BlockInfo[] blocks,
-			RSGroup[] groups, BlockInfo[] cBlocks,
+			BlockInfo[] cBlocks,
 			PermissionStatus perm, String clientName, String clientMachine,
 			DatanodeDescriptor clientNode, int n, int m) throws IOException {
-		super(perm, blocks, groups, cBlocks,blockReplication, modificationTime,
+		super(perm, blocks, cBlocks,blockReplication, modificationTime,
 				preferredBlockSize, n, m);
 		setLocalName(name);
 		this.clientName = new StringBytesWritable(clientName);
@@ -1292,7 +1330,7 @@ class INodeFileUnderConstruction extends INodeFile {
 				//getReplication(),getModificationTime(),getPreferredBlockSize());
 		//TODO change to support groups and codingBlocks
 		INodeFile obj = new INodeFile(getPermissionStatus(), getBlocks(),
-				getGroups(),getCodingBlocks(),getReplication(),
+				getCodingBlocks(),getReplication(),
 				getModificationTime(),getPreferredBlockSize(), RSn, RSm);
 		//TODO
 		return obj;
@@ -1330,6 +1368,7 @@ class INodeFileUnderConstruction extends INodeFile {
 							+ ")");
 		}
 		blocks[blocks.length - 1] = newblock;
+		newblock.setFileIndex(blocks.length - 1, false);
 		setTargets(newtargets);
 		lastRecoveryTime = 0;
 	}
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.dfs;
+
+import java.io.*;
+import java.util.Collection;
+
+import org.apache.hadoop.io.*;
+
+/* A list of blocks kept as parallel arrays of block ids, lengths and
+ * generation stamps, used by the block-list RPCs between datanodes and the
+ * namenode instead of one Block Writable per entry. The reader of a list
+ * can look its blocks up in the BlocksMap through a single Block it reuses.
+ * Lengths and generation stamps are small numbers, so they are sent as
+ * variable-length longs whenever that is shorter. Block ids are random and
+ * always take eight bytes.
+ */
+class PackedBlockList implements Writable {
+	static { // register a ctor
+		WritableFactories.setFactory(PackedBlockList.class,
+				new WritableFactory() {
+					public Writable newInstance() {
+						return new PackedBlockList();
+					}
+				});
+	}
+
+	private static final long[] EMPTY = {};
+
+	private long[] ids = EMPTY;
+	private long[] lens = EMPTY;
+	private long[] genStamps = EMPTY;
+
+	/* constructor */
+	PackedBlockList() {
+	}
+
+	PackedBlockList(Block[] blocks) {
+		ids = new long[blocks.length];
+		lens = new long[blocks.length];
+		genStamps = new long[blocks.length];
+		for (int i = 0; i < blocks.length; i++) {
+			ids[i] = blocks[i].getBlockId();
+			lens[i] = blocks[i].getNumBytes();
+			genStamps[i] = blocks[i].getGenerationStamp();
+		}
+	}
+
+	PackedBlockList(Collection<Block> blocks) {
+		this(blocks.toArray(new Block[blocks.size()]));
+	}
+
+	int getNumberOfBlocks() {
+		return ids.length;
+	}
+
+	long getBlockId(int i) {
+		return ids[i];
+	}
+
+	long getBlockLen(int i) {
+		return lens[i];
+	}
+
+	long getBlockGenStamp(int i) {
+		return genStamps[i];
+	}
+
+	/**
+	 * Copy the i-th block into the given block.
+	 */
+	void getBlock(int i, Block b) {
+		b.set(ids[i], lens[i], genStamps[i]);
+	}
+
+	/**
+	 * Return the blocks as new Block objects.
+	 */
+	Block[] toBlocks() {
+		Block[] blocks = new Block[ids.length];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = new Block(ids[i], lens[i], genStamps[i]);
+		}
+		return blocks;
+	}
+
+	/* Check if the lengths and generation stamps are shorter as varints */
+	private boolean useVarints() {
+		long size = 0;
+		for (int i = 0; i < ids.length; i++) {
+			size += WritableUtils.getVIntSize(lens[i])
+					+ WritableUtils.getVIntSize(genStamps[i]);
+		}
+		return size < 16L * ids.length;
+	}
+
+	// ///////////////////////////////////
+	// Writable
+	// ///////////////////////////////////
+	public void write(DataOutput out) throws IOException {
+		boolean varints = useVarints();
+		out.writeInt(ids.length);
+		out.writeBoolean(varints);
+		for (int i = 0; i < ids.length; i++) {
+			out.writeLong(ids[i]);
+		}
+		for (int i = 0; i < ids.length; i++) {
+			if (varints) {
+				WritableUtils.writeVLong(out, lens[i]);
+				WritableUtils.writeVLong(out, genStamps[i]);
+			} else {
+				out.writeLong(lens[i]);
+				out.writeLong(genStamps[i]);
+			}
+		}
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		int n = in.readInt();
+		if (n < 0) {
+			throw new IOException("Unexpected number of blocks: " + n);
+		}
+		boolean varints = in.readBoolean();
+		ids = new long[n];
+		lens = new long[n];
+		genStamps = new long[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = in.readLong();
+		}
+		for (int i = 0; i < n; i++) {
+			if (varints) {
+				lens[i] = WritableUtils.readVLong(in);
+				genStamps[i] = WritableUtils.readVLong(in);
+			} else {
+				lens[i] = in.readLong();
+				genStamps[i] = in.readLong();
+			}
+			if (lens[i] < 0) {
+				throw new IOException("Unexpected block size: " + lens[i]);
+			}
+		}
+	}
+}
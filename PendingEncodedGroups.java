@@ -27,20 +27,35 @@ import java.sql.Time;
  * PendingEncodedGroups does the bookkeeping of all groups that are getting
  * encoded.
  * 
+ * Every group gets its own deadline. Deadlines are kept in a hashed timing
+ * wheel of one second ticks, so that adding, removing and expiring a group
+ * take constant time and a timed-out group is reported within a tick.
+ * 
  ***************************************************/
 class PendingEncodedGroups {
-	private List<RSGroup> pendingEncodedGroups;
+	private Map<RSGroup, PendingGroupInfo> pendingEncodedGroups;
 	private Map<Block, PendingBlockInfo> pendingReplications;
 	private ArrayList<RSGroup> timedOutItems;
 	Daemon timerThread = null;
 	private volatile boolean fsRunning = true;
 
 	//
-	// It might take anywhere between 5 to 10 minutes before
-	// a request is timed out.
+	// The longest a group may stay pending, whatever its estimated
+	// encoding time, and the shortest deadline it is given.
 	//
 	private long timeout = 10 * 60 * 1000;
-	private long defaultRecheckInterval = 10 * 60 * 1000;
+	private static final long MIN_TIMEOUT = 30 * 1000;
+
+	//
+	// The timing wheel. A group due in d msec sits in the slot
+	// d / TICK_INTERVAL ahead of the current one, and waits for the
+	// given number of further turns of the wheel.
+	//
+	private static final long TICK_INTERVAL = 1000;
+	private static final int WHEEL_SIZE = 512;
+	private List<Set<RSGroup>> wheel;
+	private int currentSlot = 0;
+	private long lastTick;
 
 	PendingEncodedGroups(long timeoutPeriod) {
 		if (timeoutPeriod > 0) {
@@ -54,9 +69,14 @@ class PendingEncodedGroups {
 	}
 
 	void init() {
-		pendingEncodedGroups = new ArrayList<RSGroup>();
+		pendingEncodedGroups = new HashMap<RSGroup, PendingGroupInfo>();
 		pendingReplications = new HashMap<Block, PendingBlockInfo>();
 		timedOutItems = new ArrayList<RSGroup>();
+		wheel = new ArrayList<Set<RSGroup>>(WHEEL_SIZE);
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new LinkedHashSet<RSGroup>());
+		}
+		lastTick = FSNamesystem.now();
 		this.timerThread = new Daemon(new PendingEncodedGroupsMonitor());
 		timerThread.start();
 	}
@@ -66,79 +86,102 @@ class PendingEncodedGroups {
 	 * redundant block to the list of pending Replications
 	 */
 	void add(RSGroup group, int numReplicas) {
-		synchronized (pendingEncodedGroups) {
-			boolean found = pendingEncodedGroups.contains(group);
-			if (found == false) {
-				pendingEncodedGroups.add(group);
-				Block[] cBlocks = group.getCodingBlocks();
-				for (int i = 0; i < cBlocks.length; i++) {
-					pendingReplications.put(cBlocks[i], new PendingBlockInfo(
-							numReplicas));
-				}
-			}
+		add(group, numReplicas, timeout);
+	}
+
+	/**
+	 * Add a group that is expected to be encoded within the given number of
+	 * milliseconds. The deadline is kept between 30 seconds and the
+	 * configured timeout.
+	 */
+	synchronized void add(RSGroup group, int numReplicas, long timeoutPeriod) {
+		if (pendingEncodedGroups.containsKey(group)) {
+			return;
+		}
+		long period = Math.max(MIN_TIMEOUT, Math.min(timeoutPeriod, timeout));
+		long ticks = (period + TICK_INTERVAL - 1) / TICK_INTERVAL;
+		PendingGroupInfo info = new PendingGroupInfo(
+				(int) ((currentSlot + ticks) % WHEEL_SIZE),
+				(int) ((ticks - 1) / WHEEL_SIZE));
+		pendingEncodedGroups.put(group, info);
+		wheel.get(info.slot).add(group);
+		Block[] cBlocks = group.getCodingBlocks();
+		for (int i = 0; i < cBlocks.length; i++) {
+			pendingReplications.put(cBlocks[i], new PendingBlockInfo(
+					numReplicas));
 		}
 	}
 	
-	boolean contains(RSGroup group){
+	synchronized boolean contains(RSGroup group){
 		if(group == null)
 			return false;
 		else
-			return this.pendingEncodedGroups.contains(group);
+			return this.pendingEncodedGroups.containsKey(group);
 	}
 
 	/**
-	 * One replication request for this block has finished. Decrement the number
-	 * of pending replication requests for this block.
+	 * One replication request for this redundant block has finished.
+	 * Decrement the number of pending replication requests for the block,
+	 * and drop the group once all its redundant blocks are in place.
+	 * 
+	 * @return true if this completed the encoding of the group
 	 */
-	void remove(RSGroup group) {
-		int completeCount = 0;
-		if (group.isComplete()) {
-			if (this.contains(group)) {
-				int red = group.getN() - group.getM();
-				Block[] cBlocks = group.getCodingBlocks();
-				PendingBlockInfo[] found = new PendingBlockInfo[cBlocks.length];
-				synchronized (pendingEncodedGroups) {
-					for (int i = 0; i < cBlocks.length; i++) {
-						synchronized (pendingReplications) {
-							found[i] = pendingReplications.get(cBlocks[i]);
-							if (found[i] != null) {
-								found[i].decrementReplicas();
-								if (found[i].getNumReplicas() <= 0) {
-									// pendingReplications.remove(block);
-									completeCount++;
-								}
-							}
-						}
-					}
-					if (completeCount == red) {
-						pendingEncodedGroups.remove(group);
-						for (int i = 0; i < cBlocks.length; i++) {
-							synchronized (pendingReplications) {
-								pendingReplications.remove(cBlocks[i]);
-							}
-						}
-					}
+	synchronized boolean remove(RSGroup group, Block block) {
+		if (group.isComplete() && pendingEncodedGroups.containsKey(group)) {
+			PendingBlockInfo found = pendingReplications.get(block);
+			if (found == null) {
+				return false;
+			}
+			found.decrementReplicas();
+			Block[] cBlocks = group.getCodingBlocks();
+			for (int i = 0; i < cBlocks.length; i++) {
+				found = pendingReplications.get(cBlocks[i]);
+				if (found != null && found.getNumReplicas() > 0) {
+					return false;
 				}
 			}
+			removeGroup(group);
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Drop a group and its redundant blocks from the pending lists.
+	 */
+	private void removeGroup(RSGroup group) {
+		PendingGroupInfo info = pendingEncodedGroups.remove(group);
+		if (info != null) {
+			wheel.get(info.slot).remove(group);
+		}
+		Block[] cBlocks = group.getCodingBlocks();
+		for (int i = 0; i < cBlocks.length; i++) {
+			pendingReplications.remove(cBlocks[i]);
 		}
 	}
 
+	/**
+	 * Drop a group that is no longer needed, whatever the state of its
+	 * redundant blocks.
+	 */
+	synchronized void remove(RSGroup group) {
+		removeGroup(group);
+	}
+
 	/**
 	 * The total number of blocks that are undergoing replication
 	 */
-	int size() {
+	synchronized int size() {
 		return pendingEncodedGroups.size();
 	}
 
 	/**
 	 * How many copies of this block is pending replication?
 	 */
-	int getNumReplicas(Block block) {
-		synchronized (pendingReplications) {
-			PendingBlockInfo found = pendingReplications.get(block);
-			if (found != null) {
-				return found.getNumReplicas();
-			}
+	synchronized int getNumReplicas(Block block) {
+		PendingBlockInfo found = pendingReplications.get(block);
+		if (found != null) {
+			return found.getNumReplicas();
 		}
 		return 0;
 	}
@@ -159,61 +202,66 @@ class PendingEncodedGroups {
 		}
 	}
 
+	/**
+	 * Position of a pending group in the timing wheel.
+	 */
+	static class PendingGroupInfo {
+		final int slot;
+		int rounds;
+
+		PendingGroupInfo(int slot, int rounds) {
+			this.slot = slot;
+			this.rounds = rounds;
+		}
+	}
+
 	/*
-	 * A periodic thread that scans for blocks that never finished their
-	 * replication request.
+	 * A periodic thread that turns the timing wheel and collects the groups
+	 * that never finished their encoding request.
 	 */
 	class PendingEncodedGroupsMonitor implements Runnable {
 		public void run() {
 			while (fsRunning) {
-				long period = Math.min(defaultRecheckInterval, timeout);
 				try {
 					pendingEncodingGroupsCheck();
-					Thread.sleep(period);
+					Thread.sleep(TICK_INTERVAL);
 				} catch (InterruptedException ie) {
 					FSNamesystem.LOG
-							.debug("PendingReplicationMonitor thread received exception. "
+							.debug("PendingEncodedGroupsMonitor thread received exception. "
 									+ ie);
 				}
 			}
 		}
 
 		/**
-		 * Iterate through all items and detect timed-out items
+		 * Advance the wheel by the ticks elapsed since the last check and
+		 * expire the groups that became due.
 		 */
 		void pendingEncodingGroupsCheck() {
-			Debug.writeTime();
-			String s = "At PendingEncodedGroups.java, in the func: PendingEncodingGroupsCheck.";
-			Debug.writeDebug(s);
-			synchronized (pendingEncodedGroups) {
-				Iterator iter = pendingEncodedGroups.iterator();
-				long now = FSNamesystem.now();
-				FSNamesystem.LOG
-						.debug("PendingEncodingGroupsMonitor checking.");
-				while (iter.hasNext()) {
-					// Map.Entry entry = (Map.Entry) iter.next();
-					RSGroup group = (RSGroup) iter.next();
-					Debug.writeDebug("The group:" + group + " is in the pending encoding list!");
-					Block[] blocks = group.getCodingBlocks();
-					PendingBlockInfo[] pendingBlock = new PendingBlockInfo[blocks.length];
-					for (int i = 0; i < blocks.length; i++) {
-						synchronized (pendingReplications) {
-							pendingBlock[i] = pendingReplications.get(blocks[i]);
+			long now = FSNamesystem.now();
+			synchronized (PendingEncodedGroups.this) {
+				for (; now - lastTick >= TICK_INTERVAL; lastTick += TICK_INTERVAL) {
+					currentSlot = (currentSlot + 1) % WHEEL_SIZE;
+					Iterator<RSGroup> iter = wheel.get(currentSlot).iterator();
+					while (iter.hasNext()) {
+						RSGroup group = iter.next();
+						PendingGroupInfo info = pendingEncodedGroups.get(group);
+						if (info.rounds > 0) {
+							info.rounds--;
+							continue;
+						}
+						iter.remove();
+						pendingEncodedGroups.remove(group);
+						Block[] blocks = group.getCodingBlocks();
+						for (int j = 0; j < blocks.length; j++) {
+							pendingReplications.remove(blocks[j]);
 						}
-						if (now > pendingBlock[i].getTimeStamp() + timeout) {
-							// Block block = (Block) entry.getKey();
-							synchronized (timedOutItems) {
-								timedOutItems.add(group);
-							}
-							FSNamesystem.LOG
-									.warn("PendingReplicationMonitor timed out block "
-											+ blocks[i]);
-							iter.remove();
-							for(int j = 0; j < blocks.length; j++){
-								pendingReplications.remove(blocks[j]);
-							}
-							break;
+						synchronized (timedOutItems) {
+							timedOutItems.add(group);
 						}
+						FSNamesystem.LOG
+								.warn("PendingEncodedGroupsMonitor timed out group "
+										+ group);
 					}
 				}
 			}
@@ -28,6 +28,22 @@ class RSCoder
     short[][] A;
     static short[][] div;
     static short[][] mult;
+    private static boolean tablesReady = false;
+    
+    /**
+     * Set up the Galois field tables once for the whole process. They are
+     * shared by all the coders, and rebuilding them while a coder is using
+     * them would let it read zeroed tables.
+     */
+    static synchronized void setupTables()
+    {
+        if (!tablesReady)
+        {
+            setup_tables();
+            CalculateValue();
+            tablesReady = true;
+        }
+    }
     
     static public void setup_tables()
     {        
@@ -187,6 +203,44 @@ class RSCoder
         }
 
     }
+    /*
+     * Add the contribution of data unit j to the redundant units, starting
+     * at offset pos of each of them. Encoding is linear, so the data units
+     * may be fed one after another as they are written.
+     */
+    public void RSEncodeUnit(byte[] data, int off, int len, int j,
+                             byte[][] redundant, int pos)
+    {
+        for (int k = 0; k < redundant.length; k++)
+        {
+            short[] row = mult[maxtrix[k][j]];
+            byte[] out = redundant[k];
+            for (int i = 0; i < len; i++)
+                out[pos + i] ^= (byte) row[data[off + i] & 0xff];
+        }
+    }
+
+    /*
+     * Rebuild len bytes of data unit index into out at offset pos, once
+     * InitialInvertedCauchyMatrix has been set up with the units that are
+     * at hand. units[j] holds the bytes of unit ParaNotNull[j], null stands
+     * for a unit of zeros.
+     */
+    public void RSDecodeUnit(byte[][] units, int len, int index,
+                             byte[] out, int pos)
+    {
+        for (int i = 0; i < len; i++)
+            out[pos + i] = 0;
+        for (int j = 0; j < units.length; j++)
+        {
+            byte[] in = units[j];
+            if (in == null || E[index][j] == 0) continue;
+            short[] row = mult[E[index][j]];
+            for (int i = 0; i < len; i++)
+                out[pos + i] ^= (byte) row[in[i] & 0xff];
+        }
+    }
+
     //public void RSDecode(short[][] buffers, short cut, short redundance)
     //{    	
     	//int len=buffers[0].length;
@@ -20,7 +20,6 @@ package org.apache.hadoop.dfs;
 import java.io.*;
 
 import org.apache.hadoop.io.*;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.dfs.BlocksMap.BlockInfo;
 
 /**************************************************
@@ -60,6 +59,46 @@ class RSGroup implements Writable{
 	// Writable To support serialization, we should write a block to disc
 	// ///////////////////////////////////
 	public void write(DataOutput out) throws IOException {
+		writeHeader(out);
+		out.writeInt(blocks.length);
+		for(int i = 0; i < blocks.length; i++)
+		{
+			blocks[i].write(out);
+		}
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		readHeader(in);
+		this.blocks = new BlockInfo[in.readInt()];
+		for(int i = 0; i < blocks.length; i++)
+		{
+			blocks[i] = new BlockInfo();
+			blocks[i].readFields(in);
+		}
+	}
+
+	/**
+	 * Serialization for the commands sent to datanodes: the fields of
+	 * write() with the blocks packed into a PackedBlockList.
+	 */
+	void writePacked(DataOutput out) throws IOException {
+		writeHeader(out);
+		new PackedBlockList(blocks).write(out);
+	}
+
+	void readPacked(DataInput in) throws IOException {
+		readHeader(in);
+		PackedBlockList list = new PackedBlockList();
+		list.readFields(in);
+		this.blocks = new BlockInfo[list.getNumberOfBlocks()];
+		for(int i = 0; i < blocks.length; i++)
+		{
+			blocks[i] = new BlockInfo();
+			list.getBlock(i, blocks[i]);
+		}
+	}
+
+	private void writeHeader(DataOutput out) throws IOException {
 		out.writeInt(groupID);
 		out.writeInt(szGroup);
 		out.writeInt(couldBeCoded);
@@ -67,14 +106,9 @@ class RSGroup implements Writable{
 		out.writeInt(rsn);
 		out.writeInt(rsm);
 		out.writeInt(numOfRealBlocks);
-		out.writeInt(blocks.length);
-		for(int i = 0; i < blocks.length; i++)
-		{
-			blocks[i].write(out);
-		}
 	}
 
-	public void readFields(DataInput in) throws IOException {
+	private void readHeader(DataInput in) throws IOException {
 		this.groupID = in.readInt();
 		this.szGroup = in.readInt();
 		this.couldBeCoded = in.readInt();
@@ -82,12 +116,6 @@ class RSGroup implements Writable{
 		this.rsn = in.readInt();
 		this.rsm = in.readInt();
 		this.numOfRealBlocks = in.readInt();
-		this.blocks = new BlockInfo[in.readInt()];
-		for(int i = 0; i < blocks.length; i++)
-		{
-			blocks[i] = new BlockInfo();
-			blocks[i].readFields(in);
-		}
 		if (szGroup < 0) {
 			throw new IOException("Unexpected Group size: " + szGroup);
 		}
@@ -99,11 +127,11 @@ class RSGroup implements Writable{
 		blocks = null;
 		couldBeCoded = 1;
 		complete = false;
-		
-		Configuration conf = new Configuration();		
-		rsn = conf.getInt("dfs.RSn", FSConstants.RSn);
-		rsm = conf.getInt("dfs.RSm", FSConstants.RSm);
-		
+
+		// Overwritten by readFields
+		rsn = FSConstants.RSn;
+		rsm = FSConstants.RSm;
+
 		numOfRealBlocks = 0;
 	}
 
@@ -113,6 +141,19 @@ class RSGroup implements Writable{
 		couldBeCoded = 1;
 	}
 
+	/**
+	 * Build a view of a group of a file. The members are not stored by the
+	 * file as a group, they are derived from their positions in the data and
+	 * redundant block lists of the file, see {@link INodeFile#getGroup(int)}.
+	 */
+	RSGroup(int gID, BlockInfo[] blks, int n, int m, int numOfRealBlocks,
+			boolean complete) {
+		this(gID, n, n, m);
+		this.blocks = blks;
+		this.numOfRealBlocks = numOfRealBlocks;
+		this.complete = complete;
+	}
+
 	public void set(int gID, int size, int n, int m) {
 		groupID = gID;
 		szGroup = size;
@@ -177,13 +218,15 @@ class RSGroup implements Writable{
 	 */
 	public void addBlock(BlockInfo newblock) throws IOException {
 		// TODO SUR_ECCS.log <function:"Add newBlock "+newBlock+" to group "+this.toString()>
-		String s = "At RSGroup.java, RSGroup.addBlock,"+
-				   "<function:Add newBlock " +
-				   newblock + 
-				   " to group " +
-				   this.toString()+">";
-		Debug.writeTime();
-		Debug.writeDebug(s);
+		if (FSNamesystem.LOG.isDebugEnabled()) {
+			String s = "At RSGroup.java, RSGroup.addBlock,"+
+					   "<function:Add newBlock " +
+					   newblock +
+					   " to group " +
+					   this.toString()+">";
+			Debug.writeTime();
+			Debug.writeDebug(s);
+		}
 		
 		if (this.blocks == null) {
 			this.blocks = new BlockInfo[1];
@@ -211,6 +254,8 @@ class RSGroup implements Writable{
 	public boolean isGrouptheSame(RSGroup group)
 	{
 		Block[] blks = group.getBlocks();
+		if(blocks == null || blks == null)
+			return blocks == blks && groupID == group.getGroupId();
 		if(blocks.length != blks.length)
 			return false;
 		else
@@ -292,6 +337,28 @@ class RSGroup implements Writable{
 		return ("grp_" + String.valueOf(groupID));
 	}
 
+	/**
+	 * Groups are views rebuilt on demand, so two groups are the same
+	 * if they hold the same blocks.
+	 */
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof RSGroup)) {
+			return false;
+		}
+		return isGrouptheSame((RSGroup) o);
+	}
+
+	public int hashCode() {
+		// The first block of a group is always a real block
+		if (blocks == null || blocks.length == 0) {
+			return groupID;
+		}
+		return blocks[0].hashCode();
+	}
+
 	public int getBlockSize() {
 		return this.blocks.length;
 	}
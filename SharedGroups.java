@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.dfs;
+
+import java.util.*;
+
+import org.apache.hadoop.dfs.BlocksMap.BlockInfo;
+
+/* Class for keeping track of groups made of the blocks of several files.
+ * A small file, or the last blocks of a larger file, do not fill a group of
+ * their own. With group packing on, these blocks wait in a pool of their
+ * directory until RSm of them can share a group, instead of being padded
+ * with empty blocks. The redundant blocks of a shared group belong to a
+ * holder file that is not part of the namespace.
+ * Shared groups are looked up by block, so renames do not affect them.
+ * The groups, their holders and the pools are saved in the image and every
+ * change is logged by FSNamesystem.
+ */
+class SharedGroups {
+	// all the blocks of the shared groups, data and redundant
+	private Map<Block, RSGroup> groupsByBlock = new HashMap<Block, RSGroup>();
+	private Map<RSGroup, INodeFile> holders = new HashMap<RSGroup, INodeFile>();
+	private Map<Integer, RSGroup> groupsById = new HashMap<Integer, RSGroup>();
+	// blocks waiting for a group, per directory
+	private Map<INodeDirectory, List<BlockInfo>> pools =
+		new IdentityHashMap<INodeDirectory, List<BlockInfo>>();
+	private Map<Block, INodeDirectory> pooled = new HashMap<Block, INodeDirectory>();
+	private int nextGroupId = 0;
+
+	/* constructor */
+	SharedGroups() {
+	}
+
+	/* Return the number of shared groups */
+	synchronized int size() {
+		return holders.size();
+	}
+
+	/* Return the number of blocks waiting for a shared group */
+	synchronized int getNumPooledBlocks() {
+		return pooled.size();
+	}
+
+	synchronized int nextGroupId() {
+		return nextGroupId++;
+	}
+
+	synchronized int getNextGroupId() {
+		return nextGroupId;
+	}
+
+	/* Make sure a group id read from the image or the edit log is not reused */
+	synchronized void reserveGroupId(int groupId) {
+		nextGroupId = Math.max(nextGroupId, groupId + 1);
+	}
+
+	/* Return the shared group of the given id, or null */
+	synchronized RSGroup getGroup(int groupId) {
+		return groupsById.get(groupId);
+	}
+
+	/* Return a copy of the shared groups */
+	synchronized List<RSGroup> getGroups() {
+		return new ArrayList<RSGroup>(holders.keySet());
+	}
+
+	/* Return a copy of the pools, per directory */
+	synchronized Map<INodeDirectory, List<BlockInfo>> getPools() {
+		Map<INodeDirectory, List<BlockInfo>> copy =
+			new IdentityHashMap<INodeDirectory, List<BlockInfo>>();
+		for (Map.Entry<INodeDirectory, List<BlockInfo>> e : pools.entrySet())
+			copy.put(e.getKey(), new ArrayList<BlockInfo>(e.getValue()));
+		return copy;
+	}
+
+	/**
+	 * Get the shared group of a block.
+	 *
+	 * @return the group or null if the block is not in a shared group
+	 */
+	synchronized RSGroup getGroup(Block block) {
+		return groupsByBlock.get(block);
+	}
+
+	/* Return the file holding the redundant blocks of a shared group */
+	synchronized INodeFile getHolder(RSGroup group) {
+		return holders.get(group);
+	}
+
+	/* Check if a block is in a shared group or waiting for one */
+	synchronized boolean contains(Block block) {
+		return groupsByBlock.containsKey(block) || pooled.containsKey(block);
+	}
+
+	/**
+	 * Put a block in the pool of a directory.
+	 *
+	 * @return the first m blocks of the pool once it holds m blocks, these
+	 *         are taken out of the pool; null otherwise
+	 */
+	synchronized List<BlockInfo> pool(INodeDirectory dir, BlockInfo block,
+			int m) {
+		if (contains(block))
+			return null;
+		List<BlockInfo> blocks = pools.get(dir);
+		if (blocks == null) {
+			blocks = new ArrayList<BlockInfo>(m);
+			pools.put(dir, blocks);
+		}
+		blocks.add(block);
+		pooled.put(block, dir);
+		if (blocks.size() < m)
+			return null;
+		List<BlockInfo> members = new ArrayList<BlockInfo>(blocks.subList(0, m));
+		blocks.subList(0, m).clear();
+		if (blocks.isEmpty())
+			pools.remove(dir);
+		for (BlockInfo b : members)
+			pooled.remove(b);
+		return members;
+	}
+
+	/**
+	 * Append a block to the pool of a directory without building a group,
+	 * when the pools are read back from the image or the edit log.
+	 */
+	synchronized void restore(INodeDirectory dir, BlockInfo block) {
+		List<BlockInfo> blocks = pools.get(dir);
+		if (blocks == null) {
+			blocks = new ArrayList<BlockInfo>();
+			pools.put(dir, blocks);
+		}
+		blocks.add(block);
+		pooled.put(block, dir);
+	}
+
+	/**
+	 * Take a block out of the pool it waits in.
+	 *
+	 * @return true if the block was pooled
+	 */
+	synchronized boolean unpool(Block block) {
+		INodeDirectory dir = pooled.remove(block);
+		if (dir == null)
+			return false;
+		List<BlockInfo> blocks = pools.get(dir);
+		blocks.remove(block);
+		if (blocks.isEmpty())
+			pools.remove(dir);
+		return true;
+	}
+
+	/**
+	 * Register a new shared group and the file holding its redundant blocks.
+	 */
+	synchronized void add(RSGroup group, INodeFile holder) {
+		holders.put(group, holder);
+		groupsById.put(group.getGroupId(), group);
+		for (BlockInfo b : group.getBlocks())
+			groupsByBlock.put(b, group);
+	}
+
+	/**
+	 * Drop a shared group.
+	 *
+	 * @return the file holding the redundant blocks of the group, or null if
+	 *         the group is not known
+	 */
+	synchronized INodeFile remove(RSGroup group) {
+		INodeFile holder = holders.remove(group);
+		if (holder != null) {
+			groupsById.remove(group.getGroupId());
+			for (BlockInfo b : group.getBlocks())
+				groupsByBlock.remove(b);
+		}
+		return holder;
+	}
+
+	/**
+	 * Empty the table.
+	 */
+	synchronized void clear() {
+		groupsByBlock.clear();
+		holders.clear();
+		groupsById.clear();
+		pools.clear();
+		pooled.clear();
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.dfs;
+
+import java.util.*;
+
+/* Class for keeping track of blocks that lost all their replicas and have
+ * to be recovered by decoding.
+ * Blocks are kept by the remaining redundancy of their group, that is the
+ * number of further units the group may lose before data is lost. Level 0
+ * holds the groups closest to data loss and is served first.
+ */
+class UnderDecodedBlocks implements Iterable<Block> {
+	private List<TreeSet<Block>> priorityQueues = new ArrayList<TreeSet<Block>>();
+	private Map<Block, Integer> levels = new HashMap<Block, Integer>();
+
+	/* constructor */
+	UnderDecodedBlocks() {
+	}
+
+	/**
+	 * Empty the queues.
+	 */
+	synchronized void clear() {
+		for (TreeSet<Block> set : priorityQueues) {
+			set.clear();
+		}
+		levels.clear();
+	}
+
+	/* Return the total number of blocks waiting for decoding */
+	synchronized int size() {
+		return levels.size();
+	}
+
+	/* Check if a block is waiting for decoding */
+	synchronized boolean contains(Block block) {
+		return levels.containsKey(block);
+	}
+
+	/*
+	 * add a block to the queue, or move it if the redundancy of its group
+	 * has changed
+	 * 
+	 * @param block a block without live replicas
+	 * 
+	 * @param redundancy remaining redundancy of the group of the block
+	 */
+	synchronized boolean add(Block block, int redundancy) {
+		if (redundancy < 0) {
+			return false;
+		}
+		Integer old = levels.get(block);
+		if (old != null) {
+			if (old.intValue() == redundancy) {
+				return false;
+			}
+			priorityQueues.get(old.intValue()).remove(block);
+		}
+		while (priorityQueues.size() <= redundancy) {
+			priorityQueues.add(new TreeSet<Block>());
+		}
+		priorityQueues.get(redundancy).add(block);
+		levels.put(block, redundancy);
+		if (NameNode.stateChangeLog.isDebugEnabled()) {
+			NameNode.stateChangeLog
+					.debug("BLOCK* NameSystem.UnderDecodedBlocks.add:" + block
+							+ " is added to neededDecodings at redundancy "
+							+ redundancy);
+		}
+		return old == null;
+	}
+
+	/* remove a block from the queue */
+	synchronized boolean remove(Block block) {
+		Integer level = levels.remove(block);
+		if (level == null) {
+			return false;
+		}
+		priorityQueues.get(level.intValue()).remove(block);
+		return true;
+	}
+
+	/*
+	 * Return the number of queued blocks for each remaining redundancy,
+	 * index 0 being the blocks whose group cannot lose another unit.
+	 */
+	synchronized int[] getHistogram() {
+		int[] histogram = new int[priorityQueues.size()];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = priorityQueues.get(i).size();
+		}
+		return histogram;
+	}
+
+	/* return an iterator over the blocks, riskiest groups first */
+	public synchronized Iterator<Block> iterator() {
+		return new Iterator<Block>() {
+			private int level = 0;
+			private Block last = null;
+			private List<Iterator<Block>> iterators = new ArrayList<Iterator<Block>>();
+
+			{
+				for (TreeSet<Block> set : priorityQueues) {
+					iterators.add(set.iterator());
+				}
+			}
+
+			private void update() {
+				while (level < iterators.size() - 1
+						&& !iterators.get(level).hasNext()) {
+					level++;
+				}
+			}
+
+			public Block next() {
+				update();
+				if (iterators.isEmpty()) {
+					throw new NoSuchElementException();
+				}
+				last = iterators.get(level).next();
+				return last;
+			}
+
+			public boolean hasNext() {
+				update();
+				return !iterators.isEmpty() && iterators.get(level).hasNext();
+			}
+
+			public void remove() {
+				iterators.get(level).remove();
+				levels.remove(last);
+			}
+		};
+	}
+}